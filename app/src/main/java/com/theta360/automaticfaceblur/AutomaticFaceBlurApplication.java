@@ -16,6 +16,8 @@
 package com.theta360.automaticfaceblur;
 
 import android.app.Application;
+import com.theta360.automaticfaceblur.task.ImageProcessorTask;
+import java.io.File;
 import timber.log.Timber;
 
 /**
@@ -29,5 +31,9 @@ public class AutomaticFaceBlurApplication extends Application {
         if (BuildConfig.DEBUG) {
             Timber.plant(new Timber.DebugTree());
         }
+        //Let the bitmaps kept between shots go when the system runs low on memory.
+        registerComponentCallbacks(ImageProcessorTask.getBitmapPool());
+        //Blurring a shot again reuses the faces found the first time.
+        ImageProcessorTask.setDetectionCache(new File(getFilesDir(), "detections"));
     }
 }
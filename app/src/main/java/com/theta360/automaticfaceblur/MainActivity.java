@@ -21,6 +21,8 @@ import android.os.Environment;
 import android.text.TextUtils;
 import android.view.KeyEvent;
 import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.theta360.automaticfaceblur.detect.AndroidFaceDetectorEngine;
+import com.theta360.automaticfaceblur.detect.PreviewFacePriors;
 import com.theta360.automaticfaceblur.network.WebServer;
 import com.theta360.automaticfaceblur.network.model.commands.CommandsName;
 import com.theta360.automaticfaceblur.network.model.objects.ProgressObject;
@@ -54,6 +56,14 @@ import timber.log.Timber;
 public class MainActivity extends PluginActivity {
     public static final String DCIM = Environment.getExternalStoragePublicDirectory(
             Environment.DIRECTORY_DCIM).getPath();
+    //Width of the preview frames searched for faces.
+    private static final int PREVIEW_DETECTION_WIDTH = 1024;
+    //Maximum of faces found on a preview frame.
+    private static final int PREVIEW_MAX_FACE = 64;
+    //Time between two searches of the preview, long enough to leave the preview fluid.
+    private static final long PREVIEW_DETECTION_INTERVAL = 1000;
+    //Time after which the faces of the preview no longer apply to a shot.
+    private static final long PREVIEW_PRIOR_LIFETIME = 2000;
     private TakePictureTask mTakePictureTask;
     private ImageProcessorTask mImageProcessorTask;
     private byte[] mPreviewByteArray;
@@ -61,6 +71,8 @@ public class MainActivity extends PluginActivity {
     private GetOptionsTask mGetOptionsTask;
     private WebServer mWebServer;
     private UpdatePreviewTask mUpdatePreviewTask;
+    private PreviewFacePriors mPreviewFacePriors;
+    private PreviewFacePriors.Snapshot mPreviewPriors;
 
     /**
      * Set a KeyCallback when onCreate executes.
@@ -82,6 +94,7 @@ public class MainActivity extends PluginActivity {
             public void onKeyDown(int keyCode, KeyEvent keyEvent) {
                 if (keyCode == KeyReceiver.KEYCODE_CAMERA) {
                     if (mTakePictureTask == null && mImageProcessorTask == null) {
+                        mPreviewPriors = mPreviewFacePriors.takeSnapshot();
                         if (mUpdatePreviewTask != null) {
                             mUpdatePreviewTask.cancel(false);
                         }
@@ -113,6 +126,9 @@ public class MainActivity extends PluginActivity {
         super.onResume();
         controlLedOnCreate();
         mWebServer = new WebServer(getApplicationContext(), null, mWebServerCallback);
+        mPreviewFacePriors = new PreviewFacePriors(
+                new AndroidFaceDetectorEngine(PREVIEW_MAX_FACE), PREVIEW_DETECTION_WIDTH,
+                PREVIEW_DETECTION_INTERVAL, PREVIEW_PRIOR_LIFETIME);
     }
 
     /**
@@ -133,6 +149,7 @@ public class MainActivity extends PluginActivity {
             mUpdatePreviewTask = null;
         }
         mWebServer.stop();
+        mPreviewFacePriors.shutdown();
         mCanFinishPlugin = true;
         super.onPause();
     }
@@ -152,10 +169,12 @@ public class MainActivity extends PluginActivity {
                 notificationAudioOpen();
                 notificationLedBlink(LedTarget.LED4, LedColor.BLUE, 1000);
                 mImageProcessorTask = new ImageProcessorTask(mImageProcessorTaskCallback);
+                mImageProcessorTask.setPreviewPriors(mPreviewPriors);
                 mImageProcessorTask.execute(fileUrl);
             } else {
                 notificationError(getResources().getString(R.string.take_picture_error));
             }
+            mPreviewPriors = null;
             mTakePictureTask = null;
         }
 
@@ -261,6 +280,7 @@ public class MainActivity extends PluginActivity {
         @Override
         public void updatePreview(byte[] previewByteArray) {
             mPreviewByteArray = previewByteArray;
+            mPreviewFacePriors.offer(previewByteArray);
         }
 
         @Override
@@ -320,6 +340,7 @@ public class MainActivity extends PluginActivity {
                 case TAKE_PICTURE:
                     if (mTakePictureTask == null && mImageProcessorTask == null
                             && mSetOptionsTask == null && mGetOptionsTask == null) {
+                        mPreviewPriors = mPreviewFacePriors.takeSnapshot();
                         if (mUpdatePreviewTask != null) {
                             mUpdatePreviewTask.cancel(false);
                         }
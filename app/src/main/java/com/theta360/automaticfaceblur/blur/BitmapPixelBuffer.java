@@ -0,0 +1,56 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+/**
+ * PixelBuffer backed by a bitmap, which must be a mutable ARGB_8888 bitmap to be written.
+ */
+public class BitmapPixelBuffer implements PixelBuffer {
+    private final Bitmap mBitmap;
+
+    public BitmapPixelBuffer(@NonNull Bitmap bitmap) {
+        this.mBitmap = bitmap;
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    @Override
+    public int getWidth() {
+        return mBitmap.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mBitmap.getHeight();
+    }
+
+    @Override
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width,
+            int height) {
+        mBitmap.getPixels(pixels, offset, stride, x, y, width, height);
+    }
+
+    @Override
+    public void setPixels(int[] pixels, int offset, int stride, int x, int y, int width,
+            int height) {
+        mBitmap.setPixels(pixels, offset, stride, x, y, width, height);
+    }
+}
@@ -0,0 +1,489 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Blur engine which applies a BlurStrategy to rectangles on a block grid shared by the whole
+ * image.
+ *
+ * Rectangles are snapped outwards to the grid and collected as a set of blocks, so blocks
+ * covered by several overlapping rectangles are blurred only once. x coordinates wrap around
+ * the width of the equirectangular image. When the strategy reads context, runs of blocks which
+ * meet at the seam are read into one ring-addressed band and blurred in a single pass. Other
+ * strategies blur each side of the seam on its own, so that no mosaic block mixes pixels of both
+ * edges when the width is not a multiple of the block width. Pending blocks are read in bulk
+ * together with the context the strategy needs into a scratch band owned by the worker, blurred
+ * and written straight back, so nothing is allocated per face once the scratch buffers have
+ * grown. Each worker thread keeps one set of scratch buffers for the engines of every job, so
+ * the buffers are reused across jobs instead of left behind by each engine. Groups of block
+ * rows are spread over a fork/join pool. An instance is bound to one image size, and add() must
+ * not be called while run() is in progress.
+ */
+public class BlurEngine implements RegionSink {
+    //Leaves of the fork/join tree per worker, enough to balance uneven groups.
+    private static final int LEAVES_PER_WORKER = 4;
+    //Scratch of each worker thread, shared by all engines and grown to the widest band.
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+    private final int mWidth;
+    private final int mHeight;
+    private final int mGrid;
+    private final int mColumns;
+    private final int mRows;
+    private final BlurStrategy mStrategy;
+    private final BitSet mPendingBlocks;
+    private final BitSet mBlurredBlocks;
+    private final int mGroupRows;
+    private final int[] mGroups;
+    private EllipseMask mMask;
+
+    /**
+     * Constructor of BlurEngine.
+     *
+     * @param width width of the image
+     * @param height height of the image
+     * @param grid size of a block of the grid in pixels
+     * @param strategy blur applied to the blocks
+     */
+    public BlurEngine(int width, int height, int grid, @NonNull BlurStrategy strategy) {
+        if (width <= 0 || height <= 0 || grid <= 0) {
+            throw new IllegalArgumentException(
+                    "invalid grid: " + width + "x" + height + " block " + grid);
+        }
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mGrid = grid;
+        this.mColumns = (width + grid - 1) / grid;
+        this.mRows = (height + grid - 1) / grid;
+        this.mStrategy = strategy;
+        this.mPendingBlocks = new BitSet(mColumns * mRows);
+        this.mBlurredBlocks = new BitSet(mColumns * mRows);
+        //Rows are blurred in groups tall enough to amortize the context above and below them.
+        this.mGroupRows = Math.max(1, (2 * strategy.getHalo() + grid - 1) / grid);
+        this.mGroups = new int[(mRows + mGroupRows - 1) / mGroupRows];
+    }
+
+    public int getGrid() {
+        return mGrid;
+    }
+
+    /**
+     * Set the mask through which blurred blocks are blended into the image.
+     *
+     * @param mask mask read during run(), or null to write blurred blocks as they are
+     */
+    public void setMask(@Nullable EllipseMask mask) {
+        this.mMask = mask;
+    }
+
+    /**
+     * @return number of blocks waiting for run()
+     */
+    public int getPendingBlockCount() {
+        return mPendingBlocks.cardinality();
+    }
+
+    /**
+     * Drop the pending blocks which an earlier run() blurred already, so that a face blurred
+     * ahead of the others is not blurred twice.
+     */
+    public void removeBlurredBlocks() {
+        mPendingBlocks.andNot(mBlurredBlocks);
+    }
+
+    @Override
+    public void add(int x, int y, int width, int height) {
+        int top = Math.max(y, 0);
+        int bottom = Math.min(y + height, mHeight);
+        if (width <= 0 || top >= bottom) {
+            return;
+        }
+        int left = width >= mWidth ? 0 : Math.floorMod(x, mWidth);
+        int right = left + Math.min(width, mWidth);
+        int firstColumn = left / mGrid;
+        for (int row = top / mGrid; row <= (bottom - 1) / mGrid; row++) {
+            int rowStart = row * mColumns;
+            if (right <= mWidth) {
+                mPendingBlocks.set(rowStart + firstColumn, rowStart + (right - 1) / mGrid + 1);
+            } else {
+                mPendingBlocks.set(rowStart + firstColumn, rowStart + mColumns);
+                mPendingBlocks.set(rowStart, rowStart + (right - mWidth - 1) / mGrid + 1);
+            }
+        }
+    }
+
+    /**
+     * Add the pending blocks to a sink as runs of blocks, one block row at a time. Runs which
+     * cross the seam are split at it.
+     *
+     * @param sink receiver of the runs
+     */
+    public void addPendingBlocksTo(@NonNull RegionSink sink) {
+        for (int row = 0; row < mRows; row++) {
+            int rowStart = row * mColumns;
+            int first = mPendingBlocks.nextSetBit(rowStart);
+            while (first >= 0 && first < rowStart + mColumns) {
+                int last = Math.min(mPendingBlocks.nextClearBit(first), rowStart + mColumns);
+                int left = columnX(first - rowStart);
+                sink.add(left, row * mGrid, columnX(last - rowStart) - left, rowHeight(row));
+                first = mPendingBlocks.nextSetBit(last);
+            }
+        }
+    }
+
+    /**
+     * Blur every pending block on a fork/join pool and clear the pending set.
+     *
+     * Block rows are blurred in groups tall enough to amortize the context above and below
+     * them, and every worker blurs its groups in place with its own scratch buffers and no
+     * locking. When the strategy reads context, groups are processed in two waves, even groups
+     * first, so that groups blurred at the same time never read each other's rows. The groups
+     * of the second wave read the blurred pixels of their neighbours as context.
+     *
+     * @param buffer image to blur, of the size given to the constructor
+     * @param cancellable cancellation state checked between runs of blocks
+     * @param pool pool which runs the groups of block rows
+     */
+    public void run(@NonNull PixelBuffer buffer, @NonNull Cancellable cancellable,
+            @NonNull ForkJoinPool pool) {
+        //Even groups are listed from the start of mGroups, odd groups from the end.
+        int evenCount = 0;
+        int oddStart = mGroups.length;
+        for (int group = 0; group * mGroupRows < mRows; group++) {
+            int rowStart = group * mGroupRows * mColumns;
+            int rowEnd = Math.min((group + 1) * mGroupRows, mRows) * mColumns;
+            int next = mPendingBlocks.nextSetBit(rowStart);
+            if (next >= 0 && next < rowEnd) {
+                if (group % 2 == 0 || mStrategy.getHalo() == 0) {
+                    mGroups[evenCount++] = group * mGroupRows;
+                } else {
+                    mGroups[--oddStart] = group * mGroupRows;
+                }
+            }
+        }
+        int leaf = Math.max(1, (evenCount + mGroups.length - oddStart)
+                / (LEAVES_PER_WORKER * pool.getParallelism()));
+        if (evenCount > 0) {
+            pool.invoke(new GroupsAction(buffer, cancellable, 0, evenCount, leaf));
+        }
+        if (oddStart < mGroups.length && !cancellable.isCancelled()) {
+            pool.invoke(new GroupsAction(buffer, cancellable, oddStart, mGroups.length, leaf));
+        }
+        mBlurredBlocks.or(mPendingBlocks);
+        mPendingBlocks.clear();
+    }
+
+    private int rowHeight(int row) {
+        return Math.min((row + 1) * mGrid, mHeight) - row * mGrid;
+    }
+
+    /**
+     * x coordinate of the left edge of a block column. Columns from mColumns on continue to the
+     * right of the seam.
+     */
+    private int columnX(int column) {
+        if (column <= mColumns) {
+            return Math.min(column * mGrid, mWidth);
+        }
+        return mWidth + (column - mColumns) * mGrid;
+    }
+
+    /**
+     * Runs of set bits in [from, from + mColumns), as pairs of start and end columns relative
+     * to from. Runs separated by at most gap clear bits are merged, and with wrap also across
+     * the seam, where the end of the merged run exceeds mColumns and the run is listed last.
+     *
+     * @return number of runs
+     */
+    private int cyclicRuns(BitSet bits, int from, int gap, boolean wrap, int[] runs) {
+        int end = from + mColumns;
+        int count = 0;
+        int first = bits.nextSetBit(from);
+        while (first >= 0 && first < end) {
+            int last = Math.min(bits.nextClearBit(first), end);
+            if (count > 0 && first - from - runs[2 * count - 1] <= gap) {
+                runs[2 * count - 1] = last - from;
+            } else {
+                runs[2 * count] = first - from;
+                runs[2 * count + 1] = last - from;
+                count++;
+            }
+            first = bits.nextSetBit(last);
+        }
+        if (wrap && count > 1 && runs[0] + mColumns - runs[2 * count - 1] <= gap) {
+            runs[2 * count - 1] = runs[1] + mColumns;
+            count--;
+            System.arraycopy(runs, 2, runs, 0, 2 * count);
+        }
+        return count;
+    }
+
+    /**
+     * Blur the pending blocks of the group of block rows starting at firstRow.
+     */
+    private void processGroup(PixelBuffer buffer, Cancellable cancellable, int firstRow,
+            Scratch scratch) {
+        int lastRow = Math.min(firstRow + mGroupRows, mRows);
+        if (mStrategy.getHalo() > 0) {
+            blurGroup(buffer, cancellable, firstRow, lastRow, scratch);
+            return;
+        }
+        int[] runs = scratch.mRuns;
+        for (int row = firstRow; row < lastRow; row++) {
+            if (cancellable.isCancelled()) {
+                return;
+            }
+            int top = row * mGrid;
+            int height = rowHeight(row);
+            //Blocks are aligned to the image, so runs are split at the seam.
+            int count = cyclicRuns(mPendingBlocks, row * mColumns, 0, false, runs);
+            for (int run = 0; run < count; run++) {
+                int left = columnX(runs[2 * run]);
+                int width = columnX(runs[2 * run + 1]) - left;
+                int[] band = scratch.band(width * height);
+                readBand(buffer, band, width, left, top, width, height);
+                int[] original = mMask != null ? scratch.original(band, 0, width * height) : null;
+                scratch.mKernel.blur(band, left, top, width, width, height, 0, 0, width, height);
+                if (original != null) {
+                    mMask.blend(band, original, 0, width, left, top, width, height,
+                            scratch.alpha(width));
+                }
+                writeBand(buffer, band, 0, width, left, top, width, height);
+            }
+        }
+    }
+
+    /**
+     * Blur the pending blocks of a group of block rows together with the context the strategy
+     * needs.
+     *
+     * Columns holding pending blocks are merged into clusters whose gaps are narrower than the
+     * context on both sides, and each cluster is blurred as one band.
+     */
+    private void blurGroup(PixelBuffer buffer, Cancellable cancellable, int firstRow,
+            int lastRow, Scratch scratch) {
+        BitSet columns = scratch.mColumns;
+        columns.clear();
+        for (int row = firstRow; row < lastRow; row++) {
+            int rowStart = row * mColumns;
+            int first = mPendingBlocks.nextSetBit(rowStart);
+            while (first >= 0 && first < rowStart + mColumns) {
+                int last = Math.min(mPendingBlocks.nextClearBit(first), rowStart + mColumns);
+                columns.set(first - rowStart, last - rowStart);
+                first = mPendingBlocks.nextSetBit(last);
+            }
+        }
+
+        int[] clusters = scratch.mRuns;
+        int gap = (2 * mStrategy.getHalo() + mGrid - 1) / mGrid;
+        int count = cyclicRuns(columns, 0, gap, true, clusters);
+        for (int cluster = 0; cluster < count; cluster++) {
+            if (cancellable.isCancelled()) {
+                return;
+            }
+            blurCluster(buffer, firstRow, lastRow, clusters[2 * cluster],
+                    clusters[2 * cluster + 1], scratch);
+        }
+    }
+
+    /**
+     * Blur the block columns [firstColumn, lastColumn) of a group of block rows, where
+     * lastColumn may lie beyond the seam, and write the pending blocks back.
+     */
+    private void blurCluster(PixelBuffer buffer, int firstRow, int lastRow, int firstColumn,
+            int lastColumn, Scratch scratch) {
+        int left = columnX(firstColumn);
+        int right = columnX(lastColumn);
+        int top = firstRow * mGrid;
+        int bottom = Math.min(lastRow * mGrid, mHeight);
+
+        //The context wraps around the seam horizontally and stops at the poles.
+        int halo = mStrategy.getHalo();
+        int bandLeft = left - halo;
+        int bandTop = Math.max(top - halo, 0);
+        int bandWidth = right + halo - bandLeft;
+        int bandHeight = Math.min(bottom + halo, mHeight) - bandTop;
+        int[] band = scratch.band(bandWidth * bandHeight);
+        readBand(buffer, band, bandWidth, bandLeft, bandTop, bandWidth, bandHeight);
+        int regionOffset = (top - bandTop) * bandWidth + left - bandLeft;
+        int[] original = mMask != null ? scratch.original(band, (top - bandTop) * bandWidth,
+                (bottom - top) * bandWidth) : null;
+        scratch.mKernel.blur(band, bandLeft, bandTop, bandWidth, bandWidth, bandHeight,
+                left - bandLeft, top - bandTop, right - bandLeft, bottom - bandTop);
+        if (original != null) {
+            mMask.blend(band, original, regionOffset, bandWidth, left, top, right - left,
+                    bottom - top, scratch.alpha(right - left));
+        }
+
+        for (int row = firstRow; row < lastRow; row++) {
+            int rowStart = row * mColumns;
+            int rowTop = row * mGrid;
+            int height = rowHeight(row);
+            int first = mPendingBlocks.nextSetBit(rowStart);
+            while (first >= 0 && first < rowStart + mColumns) {
+                int last = Math.min(mPendingBlocks.nextClearBit(first), rowStart + mColumns);
+                int runLeft = columnX(first - rowStart);
+                int width = columnX(last - rowStart) - runLeft;
+                int column = first - rowStart;
+                int bandX = runLeft - bandLeft;
+                if (column < firstColumn) {
+                    column += mColumns;
+                    bandX += mWidth;
+                }
+                if (column < lastColumn) {
+                    buffer.setPixels(band, (rowTop - bandTop) * bandWidth + bandX, bandWidth,
+                            runLeft, rowTop, width, height);
+                }
+                first = mPendingBlocks.nextSetBit(last);
+            }
+        }
+    }
+
+    /**
+     * Read a band whose x coordinates wrap around the width of the image.
+     */
+    private void readBand(PixelBuffer buffer, int[] band, int stride, int x, int y, int width,
+            int height) {
+        int done = 0;
+        while (done < width) {
+            int column = Math.floorMod(x + done, mWidth);
+            int segment = Math.min(width - done, mWidth - column);
+            buffer.getPixels(band, done, stride, column, y, segment, height);
+            done += segment;
+        }
+    }
+
+    /**
+     * Write a band, at most as wide as the image, whose x coordinates wrap around the width of
+     * the image.
+     */
+    private void writeBand(PixelBuffer buffer, int[] band, int offset, int stride, int x, int y,
+            int width, int height) {
+        int done = 0;
+        while (done < width) {
+            int column = Math.floorMod(x + done, mWidth);
+            int segment = Math.min(width - done, mWidth - column);
+            buffer.setPixels(band, offset + done, stride, column, y, segment, height);
+            done += segment;
+        }
+    }
+
+    /**
+     * Scratch buffers owned by one worker thread.
+     */
+    private static class Scratch {
+        private final BitSet mColumns = new BitSet();
+        private BlurStrategy mStrategy;
+        private BlurKernel mKernel;
+        private int[] mRuns = new int[0];
+        private int[] mBand = new int[0];
+        private int[] mOriginal = new int[0];
+        private int[] mAlpha = new int[0];
+
+        /**
+         * Prepare the scratch for an engine. The kernel is kept as long as the strategy is the
+         * same.
+         *
+         * @param strategy blur of the engine
+         * @param columns block columns of the engine
+         * @return this scratch
+         */
+        private Scratch bind(BlurStrategy strategy, int columns) {
+            if (mStrategy != strategy) {
+                mStrategy = strategy;
+                mKernel = strategy.newKernel();
+            }
+            if (mRuns.length < 2 * columns) {
+                mRuns = new int[2 * columns];
+            }
+            return this;
+        }
+
+        private int[] band(int size) {
+            if (mBand.length < size) {
+                mBand = new int[size];
+            }
+            return mBand;
+        }
+
+        /**
+         * Keep the original pixels of a part of the band.
+         *
+         * @return copy laid out like the band
+         */
+        private int[] original(int[] band, int offset, int length) {
+            if (mOriginal.length < offset + length) {
+                mOriginal = new int[band.length];
+            }
+            System.arraycopy(band, offset, mOriginal, offset, length);
+            return mOriginal;
+        }
+
+        private int[] alpha(int width) {
+            if (mAlpha.length < width) {
+                mAlpha = new int[width];
+            }
+            return mAlpha;
+        }
+    }
+
+    /**
+     * Fork/join action which splits a range of mGroups until at most leaf groups are left.
+     */
+    private class GroupsAction extends RecursiveAction {
+        private final PixelBuffer mBuffer;
+        private final Cancellable mCancellable;
+        private final int mFrom;
+        private final int mTo;
+        private final int mLeaf;
+
+        private GroupsAction(PixelBuffer buffer, Cancellable cancellable, int from, int to,
+                int leaf) {
+            this.mBuffer = buffer;
+            this.mCancellable = cancellable;
+            this.mFrom = from;
+            this.mTo = to;
+            this.mLeaf = leaf;
+        }
+
+        @Override
+        protected void compute() {
+            if (mCancellable.isCancelled()) {
+                return;
+            }
+            if (mTo - mFrom <= mLeaf) {
+                Scratch scratch = SCRATCH.get().bind(mStrategy, mColumns);
+                for (int index = mFrom; index < mTo; index++) {
+                    processGroup(mBuffer, mCancellable, mGroups[index], scratch);
+                }
+                return;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new GroupsAction(mBuffer, mCancellable, mFrom, middle, mLeaf),
+                    new GroupsAction(mBuffer, mCancellable, middle, mTo, mLeaf));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+/**
+ * Geometry of blur regions in the equirectangular image.
+ *
+ * A row at latitude phi is stretched horizontally by 1/cos(phi), so a face of a given size on
+ * the sphere covers more columns the closer it is to a pole while it keeps its height in rows.
+ * The stretch of every row is kept in a lookup table built once per image height.
+ */
+public class BlurGeometry {
+    //Largest stretch used, reached within a few rows of the poles.
+    private static final float MAX_SECANT = 64f;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStripHeight;
+    private final float[] mSecant;
+
+    /**
+     * Constructor of BlurGeometry.
+     *
+     * @param width width of the equirectangular image
+     * @param height height of the equirectangular image
+     * @param stripHeight height of the strips a face region is made of, normally the block grid
+     */
+    public BlurGeometry(int width, int height, int stripHeight) {
+        if (width <= 0 || height <= 0 || stripHeight <= 0) {
+            throw new IllegalArgumentException(
+                    "invalid geometry: " + width + "x" + height + " strip " + stripHeight);
+        }
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mStripHeight = stripHeight;
+        this.mSecant = new float[height];
+        for (int y = 0; y < height; y++) {
+            double latitude = Math.PI * (0.5 - (y + 0.5) / height);
+            mSecant[y] = (float) Math.min(1 / Math.cos(latitude), MAX_SECANT);
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Horizontal stretch of a row.
+     *
+     * @param y row, clamped to the image
+     * @return 1/cos(latitude) of the row
+     */
+    public float secant(int y) {
+        return mSecant[y < 0 ? 0 : (y >= mHeight ? mHeight - 1 : y)];
+    }
+
+    /**
+     * Number of grid blocks a mosaic block spans horizontally in a row, so that blocks keep
+     * roughly the same size on the sphere.
+     *
+     * @param y row
+     * @param maxScale largest number of grid blocks
+     * @return number of grid blocks, from 1 to maxScale
+     */
+    public int blockScale(int y, int maxScale) {
+        int scale = Math.round(secant(y));
+        return Math.max(1, Math.min(scale, maxScale));
+    }
+
+    /**
+     * Size of a face on the sphere, in rows.
+     *
+     * @param centerY y coordinate of the face center
+     * @param eyesDistance distance between the eyes in pixels of the center row
+     * @return distance between the eyes in rows
+     */
+    public float faceSize(float centerY, float eyesDistance) {
+        return eyesDistance / secant((int) centerY);
+    }
+
+    /**
+     * Add the region of a face to a sink, one strip of rows at a time.
+     *
+     * The face size on the sphere is taken from the eye distance measured at the face center.
+     * Every strip is as wide as the face at its row closest to a pole and wraps around the seam,
+     * and strips beyond the top or bottom of the image are dropped.
+     *
+     * @param sink receiver of the region
+     * @param centerX x coordinate of the face center, which may lie beyond the seam
+     * @param centerY y coordinate of the face center
+     * @param eyesDistance distance between the eyes in pixels of the center row
+     * @param widthRatio width of the region in eye distances
+     * @param heightRatio height of the region in eye distances
+     */
+    public void addFace(RegionSink sink, float centerX, float centerY, float eyesDistance,
+            float widthRatio, float heightRatio) {
+        float size = faceSize(centerY, eyesDistance);
+        int top = (int) (centerY - size * heightRatio / 2);
+        int bottom = (int) (centerY + size * heightRatio / 2);
+        float halfWidth = size * widthRatio / 2;
+
+        int stripTop = Math.max(top, 0);
+        bottom = Math.min(bottom, mHeight);
+        while (stripTop < bottom) {
+            int stripBottom = Math.min((stripTop / mStripHeight + 1) * mStripHeight, bottom);
+            int stripHalfWidth = (int) (halfWidth * maxSecant(stripTop, stripBottom));
+            sink.add(Math.round(centerX) - stripHalfWidth, stripTop, 2 * stripHalfWidth,
+                    stripBottom - stripTop);
+            stripTop = stripBottom;
+        }
+    }
+
+    /**
+     * Largest stretch of the rows [top, bottom), found at one of the two ends.
+     */
+    private float maxSecant(int top, int bottom) {
+        return Math.max(secant(top), secant(bottom - 1));
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+/**
+ * Worker-owned part of a BlurStrategy which keeps the scratch buffers between regions.
+ */
+public interface BlurKernel {
+    /**
+     * Blur a region of a band of packed ARGB pixels in place.
+     *
+     * Pixels of the band outside of the region are only read as context and may be overwritten
+     * with intermediate values.
+     *
+     * @param pixels band pixels
+     * @param x x coordinate of the band in the image
+     * @param y y coordinate of the band in the image
+     * @param stride number of entries between two rows of the band
+     * @param width width of the band
+     * @param height height of the band
+     * @param left left edge of the region in the band, inclusive
+     * @param top top edge of the region in the band, inclusive
+     * @param right right edge of the region in the band, exclusive
+     * @param bottom bottom edge of the region in the band, exclusive
+     */
+    void blur(int[] pixels, int x, int y, int stride, int width, int height, int left, int top,
+            int right, int bottom);
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+/**
+ * Blur made of repeated box filters, which approaches a Gaussian blur from three passes on.
+ *
+ * Each pass is separable and slides a running sum over rows and then over columns, so the cost
+ * per pixel does not depend on the radius. Edges of the image are extended.
+ */
+public class BoxBlurStrategy implements BlurStrategy {
+    //Number of passes which gives a close approximation of a Gaussian blur.
+    public static final int GAUSSIAN_PASSES = 3;
+    private static final int OPAQUE = 0xFF000000;
+    private final int mRadius;
+    private final int mPasses;
+
+    /**
+     * Constructor of BoxBlurStrategy.
+     *
+     * @param radius radius of each box filter in pixels
+     * @param passes number of box filters applied in a row
+     */
+    public BoxBlurStrategy(int radius, int passes) {
+        if (radius <= 0 || passes <= 0) {
+            throw new IllegalArgumentException(
+                    "invalid box blur: radius " + radius + " passes " + passes);
+        }
+        this.mRadius = radius;
+        this.mPasses = passes;
+    }
+
+    public int getRadius() {
+        return mRadius;
+    }
+
+    public int getPasses() {
+        return mPasses;
+    }
+
+    /**
+     * A pixel is exact once every pass has seen the whole window around it.
+     */
+    @Override
+    public int getHalo() {
+        return mRadius * mPasses;
+    }
+
+    @Override
+    public BlurKernel newKernel() {
+        return new Kernel();
+    }
+
+    /**
+     * Box blur kernel working on planar channels of the band.
+     */
+    private class Kernel implements BlurKernel {
+        private int[][] mPlanes = new int[3][0];
+        private int[][] mSpare = new int[3][0];
+        private int[] mColumnSums = new int[0];
+
+        @Override
+        public void blur(int[] pixels, int x, int y, int stride, int width, int height,
+                int left, int top, int right, int bottom) {
+            int size = width * height;
+            if (mPlanes[0].length < size) {
+                for (int channel = 0; channel < 3; channel++) {
+                    mPlanes[channel] = new int[size];
+                    mSpare[channel] = new int[size];
+                }
+            }
+            if (mColumnSums.length < width) {
+                mColumnSums = new int[width];
+            }
+
+            int[] red = mPlanes[0];
+            int[] green = mPlanes[1];
+            int[] blue = mPlanes[2];
+            for (int row = 0; row < height; row++) {
+                int index = row * stride;
+                int plane = row * width;
+                for (int column = 0; column < width; column++) {
+                    int color = pixels[index + column];
+                    red[plane + column] = (color >> 16) & 0xFF;
+                    green[plane + column] = (color >> 8) & 0xFF;
+                    blue[plane + column] = color & 0xFF;
+                }
+            }
+
+            for (int pass = 0; pass < mPasses; pass++) {
+                for (int channel = 0; channel < 3; channel++) {
+                    blurRows(mPlanes[channel], mSpare[channel], width, height);
+                }
+                swapPlanes();
+            }
+            //Only the columns of the region are needed after the horizontal passes.
+            for (int pass = 0; pass < mPasses; pass++) {
+                for (int channel = 0; channel < 3; channel++) {
+                    blurColumns(mPlanes[channel], mSpare[channel], width, height, left, right);
+                }
+                swapPlanes();
+            }
+
+            red = mPlanes[0];
+            green = mPlanes[1];
+            blue = mPlanes[2];
+            for (int row = top; row < bottom; row++) {
+                int index = row * stride;
+                int plane = row * width;
+                for (int column = left; column < right; column++) {
+                    pixels[index + column] = OPAQUE | red[plane + column] << 16
+                            | green[plane + column] << 8 | blue[plane + column];
+                }
+            }
+        }
+
+        private void swapPlanes() {
+            int[][] planes = mPlanes;
+            mPlanes = mSpare;
+            mSpare = planes;
+        }
+
+        /**
+         * One horizontal box filter over every row.
+         */
+        private void blurRows(int[] source, int[] target, int width, int height) {
+            int window = 2 * mRadius + 1;
+            int half = window / 2;
+            int last = width - 1;
+            for (int y = 0; y < height; y++) {
+                int row = y * width;
+                int sum = 0;
+                for (int x = -mRadius; x <= mRadius; x++) {
+                    sum += source[row + clamp(x, last)];
+                }
+                for (int x = 0; x < width; x++) {
+                    target[row + x] = (sum + half) / window;
+                    sum += source[row + clamp(x + mRadius + 1, last)]
+                            - source[row + clamp(x - mRadius, last)];
+                }
+            }
+        }
+
+        /**
+         * One vertical box filter over the columns [left, right), sliding row by row.
+         */
+        private void blurColumns(int[] source, int[] target, int width, int height, int left,
+                int right) {
+            int window = 2 * mRadius + 1;
+            int half = window / 2;
+            int last = height - 1;
+            int[] sums = mColumnSums;
+            for (int x = left; x < right; x++) {
+                sums[x] = 0;
+            }
+            for (int y = -mRadius; y <= mRadius; y++) {
+                int row = clamp(y, last) * width;
+                for (int x = left; x < right; x++) {
+                    sums[x] += source[row + x];
+                }
+            }
+            for (int y = 0; y < height; y++) {
+                int row = y * width;
+                int added = clamp(y + mRadius + 1, last) * width;
+                int removed = clamp(y - mRadius, last) * width;
+                for (int x = left; x < right; x++) {
+                    target[row + x] = (sums[x] + half) / window;
+                    sums[x] += source[added + x] - source[removed + x];
+                }
+            }
+        }
+    }
+
+    private static int clamp(int value, int last) {
+        return value < 0 ? 0 : (value > last ? last : value);
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+import android.support.annotation.NonNull;
+import java.util.Arrays;
+
+/**
+ * Feathered elliptical mask which blends blurred pixels into the original image.
+ *
+ * Every face is an ellipse whose width follows the stretch of each row of the equirectangular
+ * image. The alpha of a pixel is looked up from its normalized squared distance to the center of
+ * the ellipse in a table built once per mask, so no square root is taken per pixel. Where
+ * ellipses overlap, the largest alpha wins. The mask is read only while blending, so several
+ * workers may blend with it at the same time.
+ */
+public class EllipseMask {
+    //Entries of the alpha table over squared distances from 0 to 1.
+    private static final int LUT_SIZE = 1024;
+    private final BlurGeometry mGeometry;
+    private final int mWidth;
+    private final int[] mAlpha = new int[LUT_SIZE];
+    //Ellipses as center x, center y, half width at the center row, half height.
+    private float[] mEllipses = new float[64];
+    private int mCount;
+
+    /**
+     * Constructor of EllipseMask.
+     *
+     * @param geometry geometry of the image to blend
+     * @param feather part of the radius over which the alpha falls from opaque to transparent
+     */
+    public EllipseMask(@NonNull BlurGeometry geometry, float feather) {
+        if (!(feather > 0 && feather <= 1)) {
+            throw new IllegalArgumentException("invalid feather: " + feather);
+        }
+        this.mGeometry = geometry;
+        this.mWidth = geometry.getWidth();
+        float inner = 1 - feather;
+        for (int index = 0; index < LUT_SIZE; index++) {
+            float distance = (float) Math.sqrt((index + 0.5) / LUT_SIZE);
+            float t = Math.min(Math.max((1 - distance) / feather, 0), 1);
+            mAlpha[index] = distance <= inner ? 255 : Math.round(255 * t * t * (3 - 2 * t));
+        }
+    }
+
+    /**
+     * @return number of ellipses added since the last clear()
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Add the ellipse of a face.
+     *
+     * @param centerX x coordinate of the face center, which may lie beyond the seam
+     * @param centerY y coordinate of the face center
+     * @param eyesDistance distance between the eyes in pixels of the center row
+     * @param widthRatio width of the ellipse in eye distances
+     * @param heightRatio height of the ellipse in eye distances
+     */
+    public void addFace(float centerX, float centerY, float eyesDistance, float widthRatio,
+            float heightRatio) {
+        float size = mGeometry.faceSize(centerY, eyesDistance);
+        if (mEllipses.length < 4 * (mCount + 1)) {
+            mEllipses = Arrays.copyOf(mEllipses, 2 * mEllipses.length);
+        }
+        int index = 4 * mCount++;
+        mEllipses[index] = centerX;
+        mEllipses[index + 1] = centerY;
+        mEllipses[index + 2] = size * widthRatio / 2;
+        mEllipses[index + 3] = size * heightRatio / 2;
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    /**
+     * Blend a blurred rectangle into the original one through the mask. Pixels outside every
+     * ellipse get their original color back.
+     *
+     * @param blurred blurred pixels, which receive the result
+     * @param original original pixels, laid out like blurred
+     * @param offset index of the first pixel of the rectangle
+     * @param stride distance between two rows
+     * @param x image x coordinate of the rectangle, which may lie beyond the seam
+     * @param y image y coordinate of the rectangle
+     * @param width width of the rectangle
+     * @param height height of the rectangle
+     * @param alpha scratch of at least width values
+     */
+    public void blend(int[] blurred, int[] original, int offset, int stride, int x, int y,
+            int width, int height, int[] alpha) {
+        for (int row = 0; row < height; row++) {
+            int imageY = y + row;
+            Arrays.fill(alpha, 0, width, 0);
+            for (int index = 0; index < 4 * mCount; index += 4) {
+                fillRow(alpha, mEllipses, index, imageY, x, width);
+            }
+
+            int rowStart = offset + row * stride;
+            for (int column = 0; column < width; column++) {
+                int weight = alpha[column];
+                if (weight == 255) {
+                    continue;
+                }
+                int position = rowStart + column;
+                int source = original[position];
+                if (weight == 0) {
+                    blurred[position] = source;
+                    continue;
+                }
+                //Blend red and blue together and green alone, keeping the original alpha.
+                int target = blurred[position];
+                int scale = weight + (weight >> 7);
+                int redBlue = ((source & 0xFF00FF) * (256 - scale)
+                        + (target & 0xFF00FF) * scale) >>> 8;
+                int green = ((source & 0xFF00) * (256 - scale) + (target & 0xFF00) * scale) >>> 8;
+                blurred[position] =
+                        (source & 0xFF000000) | (redBlue & 0xFF00FF) | (green & 0xFF00);
+            }
+        }
+    }
+
+    /**
+     * Raise the alpha of the columns of a rectangle row covered by one ellipse.
+     */
+    private void fillRow(int[] alpha, float[] ellipses, int index, int imageY, int x,
+            int width) {
+        float centerX = ellipses[index];
+        float halfHeight = ellipses[index + 3];
+        float dy = (imageY + 0.5f - ellipses[index + 1]) / halfHeight;
+        float rowDistance = dy * dy;
+        if (rowDistance >= 1) {
+            return;
+        }
+        float halfWidth = ellipses[index + 2] * mGeometry.secant(imageY);
+        float extent = halfWidth * (float) Math.sqrt(1 - rowDistance);
+
+        //Pixels farther than half the width are closer to another copy of the ellipse.
+        int first = (int) Math.ceil(Math.max(centerX - extent, centerX - mWidth / 2f) - 0.5f);
+        int last = (int) Math.floor(Math.min(centerX + extent, centerX + mWidth / 2f) - 0.5f);
+        float scale = 1 / (halfWidth * halfWidth);
+        for (int pixel = first; pixel <= last; pixel++) {
+            float dx = pixel + 0.5f - centerX;
+            float distance = rowDistance + dx * dx * scale;
+            if (distance >= 1) {
+                continue;
+            }
+            int weight = mAlpha[(int) (distance * LUT_SIZE)];
+            for (int column = Math.floorMod(pixel - x, mWidth); column < width;
+                    column += mWidth) {
+                if (alpha[column] < weight) {
+                    alpha[column] = weight;
+                }
+            }
+        }
+    }
+}
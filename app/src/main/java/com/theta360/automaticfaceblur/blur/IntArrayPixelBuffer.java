@@ -0,0 +1,66 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+/**
+ * PixelBuffer backed by a plain int array, used where no bitmap is available.
+ */
+public class IntArrayPixelBuffer implements PixelBuffer {
+    private final int[] mPixels;
+    private final int mWidth;
+    private final int mHeight;
+
+    public IntArrayPixelBuffer(int[] pixels, int width, int height) {
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException("pixels shorter than " + width + "x" + height);
+        }
+        this.mPixels = pixels;
+        this.mWidth = width;
+        this.mHeight = height;
+    }
+
+    public int[] getPixels() {
+        return mPixels;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width,
+            int height) {
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(mPixels, (y + row) * mWidth + x, pixels, offset + row * stride,
+                    width);
+        }
+    }
+
+    @Override
+    public void setPixels(int[] pixels, int offset, int stride, int x, int y, int width,
+            int height) {
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(pixels, offset + row * stride, mPixels, (y + row) * mWidth + x,
+                    width);
+        }
+    }
+}
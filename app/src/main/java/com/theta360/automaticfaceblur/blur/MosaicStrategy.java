@@ -0,0 +1,110 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+import android.support.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * Mosaic which replaces every block by its average color.
+ *
+ * Blocks are dot pixels high and lie on a grid anchored at the top left corner of the image, so
+ * regions handed over by a BlurEngine with the same grid size share one block grid. With a
+ * BlurGeometry, blocks are widened by whole multiples of dot towards the poles so that they keep
+ * roughly the same size on the sphere.
+ */
+public class MosaicStrategy implements BlurStrategy {
+    //Widest block in multiples of dot.
+    public static final int MAX_BLOCK_SCALE = 8;
+    private final int mDot;
+    private final BlurGeometry mGeometry;
+
+    /**
+     * Constructor of MosaicStrategy with square blocks.
+     *
+     * @param dot size of a mosaic block in pixels
+     */
+    public MosaicStrategy(int dot) {
+        this(dot, null);
+    }
+
+    /**
+     * Constructor of MosaicStrategy.
+     *
+     * @param dot height of a mosaic block in pixels
+     * @param geometry geometry which widens the blocks towards the poles, or null
+     */
+    public MosaicStrategy(int dot, @Nullable BlurGeometry geometry) {
+        if (dot <= 0) {
+            throw new IllegalArgumentException("dot must be positive: " + dot);
+        }
+        this.mDot = dot;
+        this.mGeometry = geometry;
+    }
+
+    public int getDot() {
+        return mDot;
+    }
+
+    @Override
+    public int getHalo() {
+        return 0;
+    }
+
+    @Override
+    public BlurKernel newKernel() {
+        return new Kernel();
+    }
+
+    /**
+     * Mosaic kernel averaging the blocks through a summed-area table of the region.
+     */
+    private class Kernel implements BlurKernel {
+        private final SummedAreaTable mTable = new SummedAreaTable();
+
+        @Override
+        public void blur(int[] pixels, int x, int y, int stride, int width, int height,
+                int left, int top, int right, int bottom) {
+            int regionWidth = right - left;
+            int regionHeight = bottom - top;
+            int offset = top * stride + left;
+            mTable.build(pixels, offset, stride, regionWidth, regionHeight);
+
+            //Image coordinates of the region, which is aligned to the grid.
+            int regionX = x + left;
+            int regionY = y + top;
+            for (int blockTop = 0; blockTop < regionHeight; blockTop += mDot) {
+                int blockBottom = Math.min(blockTop + mDot, regionHeight);
+                int blockWidth = mDot;
+                if (mGeometry != null) {
+                    blockWidth *= mGeometry.blockScale(regionY + blockTop + mDot / 2,
+                            MAX_BLOCK_SCALE);
+                }
+                //Start from the block of the row grid which contains the left edge.
+                int firstLeft = regionX / blockWidth * blockWidth - regionX;
+                for (int blockLeft = firstLeft; blockLeft < regionWidth; blockLeft += blockWidth) {
+                    int clippedLeft = Math.max(blockLeft, 0);
+                    int blockRight = Math.min(blockLeft + blockWidth, regionWidth);
+                    int color = mTable.average(clippedLeft, blockTop, blockRight, blockBottom);
+                    for (int row = blockTop; row < blockBottom; row++) {
+                        int index = offset + row * stride;
+                        Arrays.fill(pixels, index + clippedLeft, index + blockRight, color);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+/**
+ * Image whose packed ARGB pixels are read and written in bulk.
+ */
+public interface PixelBuffer {
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Copy a region of the image into an array.
+     *
+     * @param pixels destination array
+     * @param offset index of the first pixel written into the array
+     * @param stride number of entries between two rows in the array
+     * @param x left edge of the region
+     * @param y top edge of the region
+     * @param width width of the region
+     * @param height height of the region
+     */
+    void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height);
+
+    /**
+     * Copy an array into a region of the image.
+     *
+     * @param pixels source array
+     * @param offset index of the first pixel read from the array
+     * @param stride number of entries between two rows in the array
+     * @param x left edge of the region
+     * @param y top edge of the region
+     * @param width width of the region
+     * @param height height of the region
+     */
+    void setPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height);
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PixelBuffer which decodes the pixels it is asked for from a JPEG file and keeps the pixels
+ * written to it as patches, so the whole image never has to be decoded while blurring.
+ *
+ * Reads always return the original pixels of the file, also where patches were written. The
+ * patches are applied with applyTo() to the full image once it is needed for the output, or to
+ * each strip of the output when it is streamed.
+ */
+public class RegionDecoderPixelBuffer implements PixelBuffer {
+    private final BitmapRegionDecoder mDecoder;
+    private final List<Patch> mPatches = new ArrayList<>();
+
+    public RegionDecoderPixelBuffer(@NonNull BitmapRegionDecoder decoder) {
+        this.mDecoder = decoder;
+    }
+
+    @Override
+    public int getWidth() {
+        return mDecoder.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mDecoder.getHeight();
+    }
+
+    /**
+     * @return number of pixels held by the patches
+     */
+    public synchronized long getPatchPixels() {
+        long pixels = 0;
+        for (Patch patch : mPatches) {
+            pixels += patch.mPixels.length;
+        }
+        return pixels;
+    }
+
+    @Override
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width,
+            int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap region = mDecoder.decodeRegion(new Rect(x, y, x + width, y + height), options);
+        if (region == null) {
+            throw new IllegalStateException(
+                    "cannot decode region " + x + "," + y + " " + width + "x" + height);
+        }
+        region.getPixels(pixels, offset, stride, 0, 0, width, height);
+        region.recycle();
+    }
+
+    @Override
+    public void setPixels(int[] pixels, int offset, int stride, int x, int y, int width,
+            int height) {
+        int[] copy = new int[width * height];
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(pixels, offset + row * stride, copy, row * width, width);
+        }
+        synchronized (this) {
+            mPatches.add(new Patch(x, y, width, height, copy));
+        }
+    }
+
+    /**
+     * Write the patches to another buffer, in the order they were written here.
+     *
+     * @param target buffer of the same size
+     */
+    public synchronized void applyTo(@NonNull PixelBuffer target) {
+        for (Patch patch : mPatches) {
+            target.setPixels(patch.mPixels, 0, patch.mWidth, patch.mX, patch.mY, patch.mWidth,
+                    patch.mHeight);
+        }
+    }
+
+    /**
+     * Write the part of the patches which falls in a strip of rows to a buffer holding only
+     * that strip, in the order they were written here.
+     *
+     * @param target buffer as wide as the image
+     * @param top image row of the first row of target
+     */
+    public synchronized void applyTo(@NonNull PixelBuffer target, int top) {
+        int bottom = top + target.getHeight();
+        for (Patch patch : mPatches) {
+            int first = Math.max(patch.mY, top);
+            int last = Math.min(patch.mY + patch.mHeight, bottom);
+            if (first < last) {
+                target.setPixels(patch.mPixels, (first - patch.mY) * patch.mWidth,
+                        patch.mWidth, patch.mX, first - top, patch.mWidth, last - first);
+            }
+        }
+    }
+
+    /**
+     * Pixels written to a rectangle of the image.
+     */
+    private static class Patch {
+        private final int mX;
+        private final int mY;
+        private final int mWidth;
+        private final int mHeight;
+        private final int[] mPixels;
+
+        private Patch(int x, int y, int width, int height, int[] pixels) {
+            this.mX = x;
+            this.mY = y;
+            this.mWidth = width;
+            this.mHeight = height;
+            this.mPixels = pixels;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+import android.support.annotation.NonNull;
+import java.util.Arrays;
+
+/**
+ * Planner which merges the rectangles of all detections into disjoint spans before any pixel
+ * is touched.
+ *
+ * Rectangles are dilated, wrapped around the seam and clipped to the image. plan() sweeps a line
+ * from top to bottom over their edges, merges the x intervals of every slab between two edges
+ * and joins slabs with the same intervals, which gives a small set of disjoint spans covering
+ * exactly the union.
+ */
+public class RegionPlanner implements RegionSink {
+    private final int mWidth;
+    private final int mHeight;
+    private final int mDilation;
+    //Rectangles as left, top, right, bottom.
+    private int[] mRectangles = new int[64];
+    private int mRectangleCount;
+    private long mRequestedPixels;
+    private int[] mSpans = new int[64];
+    private int mSpanCount;
+    private long mUnionPixels;
+    //Scratch of plan(), grown with the number of rectangles and kept between calls.
+    private int[] mEdges = new int[0];
+    private int[] mIntervals = new int[0];
+    private int[] mOpen = new int[0];
+    private int[] mOpenTops = new int[0];
+    private long[] mSorted = new long[0];
+
+    /**
+     * Constructor of RegionPlanner.
+     *
+     * @param width width of the image
+     * @param height height of the image
+     * @param dilation margin in pixels added on every side of a rectangle
+     */
+    public RegionPlanner(int width, int height, int dilation) {
+        if (width <= 0 || height <= 0 || dilation < 0) {
+            throw new IllegalArgumentException(
+                    "invalid planner: " + width + "x" + height + " dilation " + dilation);
+        }
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mDilation = dilation;
+    }
+
+    @Override
+    public void add(int x, int y, int width, int height) {
+        int top = Math.max(y - mDilation, 0);
+        int bottom = Math.min(y + height + mDilation, mHeight);
+        width = Math.min(width + 2 * mDilation, mWidth);
+        if (width <= 0 || top >= bottom) {
+            return;
+        }
+        int left = width == mWidth ? 0 : Math.floorMod(x - mDilation, mWidth);
+        int right = left + width;
+        if (right > mWidth) {
+            addClipped(left, top, mWidth, bottom);
+            addClipped(0, top, right - mWidth, bottom);
+        } else {
+            addClipped(left, top, right, bottom);
+        }
+        mRequestedPixels += (long) width * (bottom - top);
+    }
+
+    private void addClipped(int left, int top, int right, int bottom) {
+        if (mRectangles.length < 4 * (mRectangleCount + 1)) {
+            mRectangles = Arrays.copyOf(mRectangles, 2 * mRectangles.length);
+        }
+        int index = 4 * mRectangleCount++;
+        mRectangles[index] = left;
+        mRectangles[index + 1] = top;
+        mRectangles[index + 2] = right;
+        mRectangles[index + 3] = bottom;
+    }
+
+    /**
+     * @return number of rectangles added, counting rectangles split at the seam twice
+     */
+    public int getRectangleCount() {
+        return mRectangleCount;
+    }
+
+    /**
+     * @return sum of the areas of the rectangles added
+     */
+    public long getRequestedPixels() {
+        return mRequestedPixels;
+    }
+
+    /**
+     * @return area of the union computed by the last plan()
+     */
+    public long getUnionPixels() {
+        return mUnionPixels;
+    }
+
+    /**
+     * @return number of disjoint spans computed by the last plan()
+     */
+    public int getSpanCount() {
+        return mSpanCount;
+    }
+
+    /**
+     * Merge the rectangles added so far into disjoint spans.
+     */
+    public void plan() {
+        mSpanCount = 0;
+        mUnionPixels = 0;
+        int count = mRectangleCount;
+        if (mOpenTops.length < count) {
+            mEdges = new int[2 * count];
+            mIntervals = new int[2 * count];
+            mOpen = new int[2 * count];
+            mOpenTops = new int[count];
+            mSorted = new long[count];
+        }
+        int[] edges = mEdges;
+        for (int index = 0; index < count; index++) {
+            edges[2 * index] = mRectangles[4 * index + 1];
+            edges[2 * index + 1] = mRectangles[4 * index + 3];
+        }
+        Arrays.sort(edges, 0, 2 * count);
+
+        //x intervals of the current slab and of the spans still open from the previous slab.
+        int[] intervals = mIntervals;
+        int[] open = mOpen;
+        int[] openTops = mOpenTops;
+        int openCount = 0;
+        long[] sorted = mSorted;
+        int previous = -1;
+        for (int edge = 0; edge < 2 * count; edge++) {
+            int top = edges[edge];
+            if (top == previous) {
+                continue;
+            }
+            previous = top;
+            int bottom = edge + 1 < 2 * count ? edges[edge + 1] : top;
+            for (int next = edge + 1; next < 2 * count && bottom == top; next++) {
+                bottom = edges[next];
+            }
+
+            //Active rectangles sorted by left edge, then merged.
+            int active = 0;
+            if (bottom > top) {
+                for (int index = 0; index < count; index++) {
+                    if (mRectangles[4 * index + 1] <= top && mRectangles[4 * index + 3] > top) {
+                        sorted[active++] = (long) mRectangles[4 * index] << 32
+                                | mRectangles[4 * index + 2];
+                    }
+                }
+            }
+            Arrays.sort(sorted, 0, active);
+            int intervalCount = 0;
+            for (int index = 0; index < active; index++) {
+                int left = (int) (sorted[index] >>> 32);
+                int right = (int) sorted[index];
+                if (intervalCount > 0 && left <= intervals[2 * intervalCount - 1]) {
+                    intervals[2 * intervalCount - 1] =
+                            Math.max(intervals[2 * intervalCount - 1], right);
+                } else {
+                    intervals[2 * intervalCount] = left;
+                    intervals[2 * intervalCount + 1] = right;
+                    intervalCount++;
+                }
+            }
+
+            //Keep the open spans growing while the slab has exactly the same intervals.
+            boolean same = intervalCount == openCount;
+            for (int index = 0; same && index < 2 * intervalCount; index++) {
+                same = intervals[index] == open[index];
+            }
+            if (!same) {
+                for (int index = 0; index < openCount; index++) {
+                    addSpan(open[2 * index], openTops[index], open[2 * index + 1], top);
+                }
+                System.arraycopy(intervals, 0, open, 0, 2 * intervalCount);
+                openCount = intervalCount;
+                for (int index = 0; index < openCount; index++) {
+                    openTops[index] = top;
+                }
+            }
+        }
+    }
+
+    private void addSpan(int left, int top, int right, int bottom) {
+        if (mSpans.length < 4 * (mSpanCount + 1)) {
+            mSpans = Arrays.copyOf(mSpans, 2 * mSpans.length);
+        }
+        int index = 4 * mSpanCount++;
+        mSpans[index] = left;
+        mSpans[index + 1] = top;
+        mSpans[index + 2] = right;
+        mSpans[index + 3] = bottom;
+        mUnionPixels += (long) (right - left) * (bottom - top);
+    }
+
+    /**
+     * Hand the spans of the last plan() over to a sink.
+     *
+     * @param sink receiver of the spans
+     */
+    public void addSpansTo(@NonNull RegionSink sink) {
+        for (int index = 0; index < mSpanCount; index++) {
+            int left = mSpans[4 * index];
+            int top = mSpans[4 * index + 1];
+            sink.add(left, top, mSpans[4 * index + 2] - left, mSpans[4 * index + 3] - top);
+        }
+    }
+
+    /**
+     * Forget every rectangle and span.
+     */
+    public void clear() {
+        mRectangleCount = 0;
+        mRequestedPixels = 0;
+        mSpanCount = 0;
+        mUnionPixels = 0;
+    }
+}
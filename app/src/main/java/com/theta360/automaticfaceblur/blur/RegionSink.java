@@ -0,0 +1,32 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+/**
+ * Receiver of rectangles to blur.
+ */
+public interface RegionSink {
+    /**
+     * Add a rectangle to blur. x wraps around the width of the image, and rows outside of the
+     * image are ignored.
+     *
+     * @param x left edge of the rectangle, any value
+     * @param y top edge of the rectangle
+     * @param width width of the rectangle, at most the width of the image is used
+     * @param height height of the rectangle
+     */
+    void add(int x, int y, int width, int height);
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+/**
+ * Summed-area table of the red, green and blue channels of packed ARGB pixels.
+ *
+ * After building the table once, the average color of any rectangle inside it is obtained in
+ * constant time. The tables are kept between builds and grow only when a larger area is needed.
+ */
+public class SummedAreaTable {
+    //Largest area whose channel sums still fit in an int.
+    public static final int MAX_PIXELS = Integer.MAX_VALUE / 255;
+    private static final int OPAQUE = 0xFF000000;
+    private int[] mRed = new int[0];
+    private int[] mGreen = new int[0];
+    private int[] mBlue = new int[0];
+    private int mWidth;
+    private int mHeight;
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Build the table for a region of packed ARGB pixels.
+     *
+     * @param pixels packed ARGB pixels
+     * @param offset index of the top left pixel of the region
+     * @param stride number of entries between two rows
+     * @param width width of the region
+     * @param height height of the region
+     */
+    public void build(int[] pixels, int offset, int stride, int width, int height) {
+        if ((long) width * height > MAX_PIXELS) {
+            throw new IllegalArgumentException("region too large: " + width + "x" + height);
+        }
+        int tableWidth = width + 1;
+        int size = tableWidth * (height + 1);
+        if (mRed.length < size) {
+            mRed = new int[size];
+            mGreen = new int[size];
+            mBlue = new int[size];
+        }
+        mWidth = width;
+        mHeight = height;
+
+        int[] red = mRed;
+        int[] green = mGreen;
+        int[] blue = mBlue;
+        for (int x = 0; x < tableWidth; x++) {
+            red[x] = 0;
+            green[x] = 0;
+            blue[x] = 0;
+        }
+        for (int y = 0; y < height; y++) {
+            int index = offset + y * stride;
+            int above = y * tableWidth;
+            int current = above + tableWidth;
+            red[current] = 0;
+            green[current] = 0;
+            blue[current] = 0;
+            int rowRed = 0;
+            int rowGreen = 0;
+            int rowBlue = 0;
+            for (int x = 1; x <= width; x++) {
+                int color = pixels[index++];
+                rowRed += (color >> 16) & 0xFF;
+                rowGreen += (color >> 8) & 0xFF;
+                rowBlue += color & 0xFF;
+                red[current + x] = red[above + x] + rowRed;
+                green[current + x] = green[above + x] + rowGreen;
+                blue[current + x] = blue[above + x] + rowBlue;
+            }
+        }
+    }
+
+    /**
+     * Average color of a rectangle of the built region.
+     *
+     * @param left left edge, inclusive
+     * @param top top edge, inclusive
+     * @param right right edge, exclusive
+     * @param bottom bottom edge, exclusive
+     * @return opaque packed ARGB average
+     */
+    public int average(int left, int top, int right, int bottom) {
+        int tableWidth = mWidth + 1;
+        int topLeft = top * tableWidth + left;
+        int topRight = top * tableWidth + right;
+        int bottomLeft = bottom * tableWidth + left;
+        int bottomRight = bottom * tableWidth + right;
+        int area = (right - left) * (bottom - top);
+        int r = (mRed[bottomRight] - mRed[bottomLeft] - mRed[topRight] + mRed[topLeft]) / area;
+        int g = (mGreen[bottomRight] - mGreen[bottomLeft] - mGreen[topRight] + mGreen[topLeft])
+                / area;
+        int b = (mBlue[bottomRight] - mBlue[bottomLeft] - mBlue[topRight] + mBlue[topLeft]) / area;
+        return OPAQUE | r << 16 | g << 8 | b;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+import android.support.annotation.NonNull;
+
+/**
+ * PixelBuffer showing a range of columns of an equirectangular image, which may run across the
+ * seam, without copying them. Columns past the right edge of the image continue at its left
+ * edge.
+ */
+public class WrappedPixelBuffer implements PixelBuffer {
+    private final PixelBuffer mSource;
+    private final int mLeft;
+    private final int mWidth;
+
+    /**
+     * Constructor of WrappedPixelBuffer.
+     *
+     * @param source equirectangular image
+     * @param left column of the image shown as the first column, wrapped into the image
+     * @param width number of columns shown, at most the width of the image
+     */
+    public WrappedPixelBuffer(@NonNull PixelBuffer source, int left, int width) {
+        if (width <= 0 || width > source.getWidth()) {
+            throw new IllegalArgumentException(
+                    "invalid view width " + width + " of " + source.getWidth());
+        }
+        this.mSource = source;
+        this.mLeft = Math.floorMod(left, source.getWidth());
+        this.mWidth = width;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mSource.getHeight();
+    }
+
+    @Override
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width,
+            int height) {
+        int sourceX = (mLeft + x) % mSource.getWidth();
+        int first = Math.min(width, mSource.getWidth() - sourceX);
+        mSource.getPixels(pixels, offset, stride, sourceX, y, first, height);
+        if (first < width) {
+            mSource.getPixels(pixels, offset + first, stride, 0, y, width - first, height);
+        }
+    }
+
+    @Override
+    public void setPixels(int[] pixels, int offset, int stride, int x, int y, int width,
+            int height) {
+        int sourceX = (mLeft + x) % mSource.getWidth();
+        int first = Math.min(width, mSource.getWidth() - sourceX);
+        mSource.setPixels(pixels, offset, stride, sourceX, y, first, height);
+        if (first < width) {
+            mSource.setPixels(pixels, offset + first, stride, 0, y, width - first, height);
+        }
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Package storing blur kernels which work on packed ARGB pixel arrays
+ */
+package com.theta360.automaticfaceblur.blur;
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.detect;
+
+import android.graphics.Bitmap;
+import android.graphics.PointF;
+import android.media.FaceDetector;
+import android.support.annotation.NonNull;
+import com.theta360.automaticfaceblur.Face;
+import com.theta360.automaticfaceblur.blur.BitmapPixelBuffer;
+import com.theta360.automaticfaceblur.blur.PixelBuffer;
+import java.util.List;
+
+/**
+ * FaceDetectorEngine backed by the FaceDetector API of Android.
+ *
+ * FaceDetector needs an RGB_565 bitmap, which is used as is when the image wraps one and copied
+ * otherwise.
+ */
+public class AndroidFaceDetectorEngine implements FaceDetectorEngine {
+    private final int mMaxFaces;
+
+    /**
+     * Constructor of AndroidFaceDetectorEngine.
+     *
+     * @param maxFaces maximum of faces found in an image
+     */
+    public AndroidFaceDetectorEngine(int maxFaces) {
+        if (maxFaces <= 0) {
+            throw new IllegalArgumentException("invalid maximum of faces: " + maxFaces);
+        }
+        this.mMaxFaces = maxFaces;
+    }
+
+    @Override
+    public void findFaces(@NonNull PixelBuffer image, @NonNull List<Face> faces) {
+        Bitmap bitmap = null;
+        if (image instanceof BitmapPixelBuffer) {
+            bitmap = ((BitmapPixelBuffer) image).getBitmap();
+        }
+        boolean copied = bitmap == null || bitmap.getConfig() != Bitmap.Config.RGB_565;
+        if (copied) {
+            int[] pixels = new int[image.getWidth() * image.getHeight()];
+            image.getPixels(pixels, 0, image.getWidth(), 0, 0, image.getWidth(),
+                    image.getHeight());
+            //To make Android API FaceDetector effective, Bitmap.Config.RGB_565 is used.
+            bitmap = Bitmap.createBitmap(pixels, image.getWidth(), image.getHeight(),
+                    Bitmap.Config.RGB_565);
+        }
+
+        FaceDetector.Face[] found = new FaceDetector.Face[mMaxFaces];
+        FaceDetector faceDetector = new FaceDetector(bitmap.getWidth(), bitmap.getHeight(),
+                mMaxFaces);
+        int faceIsFound = faceDetector.findFaces(bitmap, found);
+        PointF midPoint = new PointF();
+        for (int index = 0; index < faceIsFound; index++) {
+            found[index].getMidPoint(midPoint);
+            float halfOfEyesDistance = found[index].eyesDistance() / 2;
+            faces.add(new Face(midPoint.x - halfOfEyesDistance, midPoint.y,
+                    midPoint.x + halfOfEyesDistance, midPoint.y, halfOfEyesDistance * 2));
+        }
+        if (copied) {
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.detect;
+
+import android.support.annotation.NonNull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * Boosted cascade of Haar or LBP features, read from the XML files written by
+ * opencv_traincascade.
+ *
+ * The cascade is held in flat arrays which CascadeFaceDetectorEngine evaluates. Features with
+ * tilted rectangles and cascades in the older format of OpenCV 1 are not handled.
+ */
+public final class Cascade {
+    final int mWindowWidth;
+    final int mWindowHeight;
+    final boolean mLbp;
+    //Stages as threshold and range of trees.
+    final float[] mStageThresholds;
+    final int[] mStageFirstTrees;
+    //Trees as first node and first leaf.
+    final int[] mTreeFirstNodes;
+    final int[] mTreeFirstLeaves;
+    //Nodes as children, feature and threshold or category subset. Children <= 0 are leaves.
+    final int[] mNodeLefts;
+    final int[] mNodeRights;
+    final int[] mNodeFeatures;
+    final float[] mNodeThresholds;
+    final int[] mNodeSubsets;
+    final float[] mLeaves;
+    //Haar features as up to 3 rectangles of x, y, width, height and weight.
+    final int[] mFeatureRectCounts;
+    final int[] mFeatureRects;
+    final float[] mFeatureWeights;
+
+    private Cascade(Element cascade) throws IOException {
+        if (!"BOOST".equals(text(cascade, "stageType"))) {
+            throw new IOException("only boosted cascades are handled");
+        }
+        String featureType = text(cascade, "featureType");
+        if (!"HAAR".equals(featureType) && !"LBP".equals(featureType)) {
+            throw new IOException("unknown feature type " + featureType);
+        }
+        mLbp = "LBP".equals(featureType);
+        mWindowWidth = Integer.parseInt(text(cascade, "width"));
+        mWindowHeight = Integer.parseInt(text(cascade, "height"));
+        int nodeSize = mLbp ? 11 : 4;
+
+        List<Element> stages = items(child(cascade, "stages"));
+        mStageThresholds = new float[stages.size()];
+        mStageFirstTrees = new int[stages.size() + 1];
+        List<double[]> trees = new ArrayList<>();
+        List<double[]> leaves = new ArrayList<>();
+        for (int stage = 0; stage < stages.size(); stage++) {
+            mStageThresholds[stage] =
+                    Float.parseFloat(text(stages.get(stage), "stageThreshold"));
+            for (Element tree : items(child(stages.get(stage), "weakClassifiers"))) {
+                double[] nodes = numbers(text(tree, "internalNodes"));
+                if (nodes.length == 0 || nodes.length % nodeSize != 0) {
+                    throw new IOException("invalid nodes in stage " + stage);
+                }
+                trees.add(nodes);
+                leaves.add(numbers(text(tree, "leafValues")));
+            }
+            mStageFirstTrees[stage + 1] = trees.size();
+        }
+
+        mTreeFirstNodes = new int[trees.size() + 1];
+        mTreeFirstLeaves = new int[trees.size() + 1];
+        for (int tree = 0; tree < trees.size(); tree++) {
+            mTreeFirstNodes[tree + 1] = mTreeFirstNodes[tree] + trees.get(tree).length / nodeSize;
+            mTreeFirstLeaves[tree + 1] = mTreeFirstLeaves[tree] + leaves.get(tree).length;
+        }
+        int nodeCount = mTreeFirstNodes[trees.size()];
+        mNodeLefts = new int[nodeCount];
+        mNodeRights = new int[nodeCount];
+        mNodeFeatures = new int[nodeCount];
+        mNodeThresholds = new float[nodeCount];
+        mNodeSubsets = new int[mLbp ? 8 * nodeCount : 0];
+        mLeaves = new float[mTreeFirstLeaves[trees.size()]];
+        for (int tree = 0; tree < trees.size(); tree++) {
+            double[] nodes = trees.get(tree);
+            for (int index = 0; index < nodes.length / nodeSize; index++) {
+                int node = mTreeFirstNodes[tree] + index;
+                int position = index * nodeSize;
+                mNodeLefts[node] = (int) nodes[position];
+                mNodeRights[node] = (int) nodes[position + 1];
+                mNodeFeatures[node] = (int) nodes[position + 2];
+                if (mLbp) {
+                    for (int word = 0; word < 8; word++) {
+                        mNodeSubsets[8 * node + word] = (int) nodes[position + 3 + word];
+                    }
+                } else {
+                    mNodeThresholds[node] = (float) nodes[position + 3];
+                }
+            }
+            double[] treeLeaves = leaves.get(tree);
+            for (int leaf = 0; leaf < treeLeaves.length; leaf++) {
+                mLeaves[mTreeFirstLeaves[tree] + leaf] = (float) treeLeaves[leaf];
+            }
+        }
+
+        List<Element> features = items(child(cascade, "features"));
+        mFeatureRectCounts = new int[features.size()];
+        mFeatureRects = new int[features.size() * 3 * 4];
+        mFeatureWeights = new float[features.size() * 3];
+        for (int feature = 0; feature < features.size(); feature++) {
+            Element element = features.get(feature);
+            if ("1".equals(optionalText(element, "tilted"))) {
+                throw new IOException("tilted features are not handled");
+            }
+            List<double[]> rects = new ArrayList<>();
+            if (mLbp) {
+                rects.add(numbers(text(element, "rect")));
+            } else {
+                for (Element rect : items(child(element, "rects"))) {
+                    rects.add(numbers(rect.getTextContent()));
+                }
+            }
+            if (rects.isEmpty() || rects.size() > 3) {
+                throw new IOException("invalid feature " + feature);
+            }
+            mFeatureRectCounts[feature] = rects.size();
+            for (int rect = 0; rect < rects.size(); rect++) {
+                double[] values = rects.get(rect);
+                if (values.length < (mLbp ? 4 : 5)) {
+                    throw new IOException("invalid rectangle in feature " + feature);
+                }
+                for (int value = 0; value < 4; value++) {
+                    mFeatureRects[(feature * 3 + rect) * 4 + value] = (int) values[value];
+                }
+                mFeatureWeights[feature * 3 + rect] = mLbp ? 0 : (float) values[4];
+            }
+        }
+        for (int feature : mNodeFeatures) {
+            if (feature < 0 || feature >= features.size()) {
+                throw new IOException("node refers to missing feature " + feature);
+            }
+        }
+    }
+
+    /**
+     * Read a cascade from its XML file.
+     *
+     * @param input XML file written by opencv_traincascade, which stays open
+     * @return cascade
+     */
+    @NonNull
+    public static Cascade read(@NonNull InputStream input) throws IOException {
+        Document document;
+        try {
+            document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(input);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("cannot parse cascade: " + e.getMessage());
+        }
+        //The cascade is the first element of opencv_storage, whatever its name.
+        for (Node node = document.getDocumentElement().getFirstChild(); node != null;
+                node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                if (child((Element) node, "stageType") == null) {
+                    throw new IOException("only cascades of opencv_traincascade are handled");
+                }
+                return new Cascade((Element) node);
+            }
+        }
+        throw new IOException("no cascade in the file");
+    }
+
+    public int getWindowWidth() {
+        return mWindowWidth;
+    }
+
+    public int getWindowHeight() {
+        return mWindowHeight;
+    }
+
+    public int getStageCount() {
+        return mStageThresholds.length;
+    }
+
+    private static Element child(Element parent, String name) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && name.equals(node.getNodeName())) {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+
+    private static String optionalText(Element parent, String name) {
+        Element element = child(parent, name);
+        return element == null ? null : element.getTextContent().trim();
+    }
+
+    private static String text(Element parent, String name) throws IOException {
+        String text = optionalText(parent, name);
+        if (text == null) {
+            throw new IOException("missing " + name + " in " + parent.getNodeName());
+        }
+        return text;
+    }
+
+    private static List<Element> items(Element parent) throws IOException {
+        if (parent == null) {
+            throw new IOException("missing list in the cascade");
+        }
+        List<Element> items = new ArrayList<>();
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                items.add((Element) node);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Parse the numbers of an element as doubles, which hold the 32 bit category subsets of LBP
+     * nodes exactly.
+     */
+    private static double[] numbers(String text) throws IOException {
+        String trimmed = text.trim();
+        if (trimmed.isEmpty()) {
+            return new double[0];
+        }
+        String[] tokens = trimmed.split("\\s+");
+        double[] numbers = new double[tokens.length];
+        try {
+            for (int index = 0; index < tokens.length; index++) {
+                numbers[index] = Double.parseDouble(tokens[index]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid number in the cascade: " + e.getMessage());
+        }
+        return numbers;
+    }
+}
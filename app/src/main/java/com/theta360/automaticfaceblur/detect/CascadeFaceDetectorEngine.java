@@ -0,0 +1,377 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.detect;
+
+import android.support.annotation.NonNull;
+import com.theta360.automaticfaceblur.Face;
+import com.theta360.automaticfaceblur.blur.PixelBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FaceDetectorEngine evaluating a Haar or LBP cascade in pure Java, so detection runs and can
+ * be measured on any JVM.
+ *
+ * The detection follows OpenCV: the luma of the image is reduced step by step by the scale
+ * factor, the window of the cascade slides over every level on the integral image of the level,
+ * Haar features are normalized by the standard deviation of the window, and the windows which
+ * pass every stage are grouped with their neighbors. A face is reported with its eyes on a line
+ * across the upper part of the window.
+ */
+public class CascadeFaceDetectorEngine implements FaceDetectorEngine {
+    //Similarity of the windows grouped into one face, as in OpenCV.
+    private static final float GROUP_EPS = 0.2f;
+    //Height of the eyes and distance between them in parts of a face window.
+    private static final float EYE_LINE = 0.38f;
+    private static final float EYE_DISTANCE = 0.4f;
+    //Offsets of the 8 neighbor blocks of an LBP feature, from the most significant bit.
+    private static final int[] LBP_BLOCKS = {0, 1, 2, 5, 8, 7, 6, 3};
+    private final Cascade mCascade;
+    private final float mScaleFactor;
+    private final int mMinNeighbors;
+    private final int mMinSize;
+    private final int mNormalizedArea;
+    //Buffers of each thread searching an image, so several images may be searched at once.
+    private final ThreadLocal<Scratch> mScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * Constructor of CascadeFaceDetectorEngine.
+     *
+     * @param cascade cascade to evaluate
+     * @param scaleFactor ratio between two levels, above 1
+     * @param minNeighbors windows a face needs beyond the first one to be reported
+     * @param minSize smallest face height searched in pixels
+     */
+    public CascadeFaceDetectorEngine(@NonNull Cascade cascade, float scaleFactor,
+            int minNeighbors, int minSize) {
+        if (!(scaleFactor > 1) || minNeighbors < 0) {
+            throw new IllegalArgumentException(
+                    "invalid scale factor " + scaleFactor + " or neighbors " + minNeighbors);
+        }
+        this.mCascade = cascade;
+        this.mScaleFactor = scaleFactor;
+        this.mMinNeighbors = minNeighbors;
+        this.mMinSize = minSize;
+        this.mNormalizedArea = (cascade.mWindowWidth - 2) * (cascade.mWindowHeight - 2);
+    }
+
+    @Override
+    public void findFaces(@NonNull PixelBuffer image, @NonNull List<Face> faces) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Scratch scratch = mScratch.get();
+        readLuma(image, scratch);
+        List<float[]> windows = new ArrayList<>();
+        int windowWidth = mCascade.mWindowWidth;
+        int windowHeight = mCascade.mWindowHeight;
+        for (double factor = 1; ; factor *= mScaleFactor) {
+            int levelWidth = (int) Math.round(width / factor);
+            int levelHeight = (int) Math.round(height / factor);
+            if (levelWidth < windowWidth || levelHeight < windowHeight) {
+                break;
+            }
+            if (windowHeight * factor < mMinSize) {
+                continue;
+            }
+            scaleLuma(scratch, width, height, levelWidth, levelHeight);
+            integrate(scratch, levelWidth, levelHeight);
+            int step = factor > 2 ? 1 : 2;
+            int stride = levelWidth + 1;
+            for (int y = 0; y + windowHeight <= levelHeight; y += step) {
+                for (int x = 0; x + windowWidth <= levelWidth; x += step) {
+                    if (evaluate(scratch, y * stride + x, stride)) {
+                        windows.add(new float[]{(float) (x * factor), (float) (y * factor),
+                                (float) (windowWidth * factor), (float) (windowHeight * factor)});
+                    }
+                }
+            }
+        }
+        for (float[] window : group(windows)) {
+            float eyesDistance = window[2] * EYE_DISTANCE;
+            float centerX = window[0] + window[2] / 2;
+            float eyeY = window[1] + window[3] * EYE_LINE;
+            faces.add(new Face(centerX - eyesDistance / 2, eyeY, centerX + eyesDistance / 2, eyeY,
+                    eyesDistance));
+        }
+    }
+
+    private static void readLuma(PixelBuffer image, Scratch scratch) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        //Images of the same area may need larger sums, so each array grows on its own.
+        if (scratch.mLuma.length < width * height) {
+            scratch.mLuma = new int[width * height];
+            scratch.mLevel = new int[width * height];
+        }
+        if (scratch.mSum.length < (width + 1) * (height + 1)) {
+            scratch.mSum = new int[(width + 1) * (height + 1)];
+            scratch.mSquareSum = new int[(width + 1) * (height + 1)];
+        }
+        int[] luma = scratch.mLuma;
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                int color = row[x];
+                luma[y * width + x] = (77 * (color >> 16 & 0xFF) + 150 * (color >> 8 & 0xFF)
+                        + 29 * (color & 0xFF) + 128) >> 8;
+            }
+        }
+    }
+
+    /**
+     * Reduce the luma of the image into the level with bilinear sampling.
+     */
+    private static void scaleLuma(Scratch scratch, int width, int height, int levelWidth,
+            int levelHeight) {
+        int[] luma = scratch.mLuma;
+        float scaleX = (float) width / levelWidth;
+        float scaleY = (float) height / levelHeight;
+        for (int y = 0; y < levelHeight; y++) {
+            float sourceY = Math.max((y + 0.5f) * scaleY - 0.5f, 0);
+            int top = Math.min((int) sourceY, height - 1);
+            int bottom = Math.min(top + 1, height - 1);
+            float weightY = sourceY - top;
+            for (int x = 0; x < levelWidth; x++) {
+                float sourceX = Math.max((x + 0.5f) * scaleX - 0.5f, 0);
+                int left = Math.min((int) sourceX, width - 1);
+                int right = Math.min(left + 1, width - 1);
+                float weightX = sourceX - left;
+                float upper = luma[top * width + left] * (1 - weightX)
+                        + luma[top * width + right] * weightX;
+                float lower = luma[bottom * width + left] * (1 - weightX)
+                        + luma[bottom * width + right] * weightX;
+                scratch.mLevel[y * levelWidth + x] =
+                        (int) (upper * (1 - weightY) + lower * weightY + 0.5f);
+            }
+        }
+    }
+
+    /**
+     * Build the integral images of the level. The sums wrap around on large images, which
+     * keeps the differences of window sized rectangles exact.
+     */
+    private static void integrate(Scratch scratch, int levelWidth, int levelHeight) {
+        int[] sums = scratch.mSum;
+        int[] squareSums = scratch.mSquareSum;
+        int stride = levelWidth + 1;
+        for (int x = 0; x < stride; x++) {
+            sums[x] = 0;
+            squareSums[x] = 0;
+        }
+        for (int y = 0; y < levelHeight; y++) {
+            int rowSum = 0;
+            int rowSquareSum = 0;
+            int position = (y + 1) * stride;
+            sums[position] = 0;
+            squareSums[position] = 0;
+            for (int x = 0; x < levelWidth; x++) {
+                int value = scratch.mLevel[y * levelWidth + x];
+                rowSum += value;
+                rowSquareSum += value * value;
+                sums[position + x + 1] = sums[position + x + 1 - stride] + rowSum;
+                squareSums[position + x + 1] = squareSums[position + x + 1 - stride]
+                        + rowSquareSum;
+            }
+        }
+    }
+
+    private int rectSum(int[] sums, int origin, int stride, int x, int y, int width, int height) {
+        int topLeft = origin + y * stride + x;
+        int bottomLeft = topLeft + height * stride;
+        return sums[bottomLeft + width] - sums[bottomLeft] - sums[topLeft + width]
+                + sums[topLeft];
+    }
+
+    /**
+     * Run the stages of the cascade on the window whose top left corner is at origin.
+     *
+     * @return true if the window passes every stage
+     */
+    private boolean evaluate(Scratch scratch, int origin, int stride) {
+        Cascade cascade = mCascade;
+        float normalization = 1;
+        if (!cascade.mLbp) {
+            int width = cascade.mWindowWidth - 2;
+            int height = cascade.mWindowHeight - 2;
+            long sum = rectSum(scratch.mSum, origin, stride, 1, 1, width, height);
+            long squareSum = rectSum(scratch.mSquareSum, origin, stride, 1, 1, width, height);
+            long variance = mNormalizedArea * squareSum - sum * sum;
+            normalization = variance > 0 ? (float) (1 / Math.sqrt(variance)) : 1;
+        }
+        for (int stage = 0; stage < cascade.mStageThresholds.length; stage++) {
+            float score = 0;
+            for (int tree = cascade.mStageFirstTrees[stage];
+                    tree < cascade.mStageFirstTrees[stage + 1]; tree++) {
+                int firstNode = cascade.mTreeFirstNodes[tree];
+                int node = 0;
+                do {
+                    int index = firstNode + node;
+                    boolean left = cascade.mLbp
+                            ? isInSubset(cascade, index, lbpCode(scratch,
+                                    cascade.mNodeFeatures[index], origin, stride))
+                            : haarValue(scratch.mSum, cascade.mNodeFeatures[index], origin,
+                                    stride)
+                                    * normalization < cascade.mNodeThresholds[index];
+                    node = left ? cascade.mNodeLefts[index] : cascade.mNodeRights[index];
+                } while (node > 0);
+                score += cascade.mLeaves[cascade.mTreeFirstLeaves[tree] - node];
+            }
+            if (score < cascade.mStageThresholds[stage]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private float haarValue(int[] sums, int feature, int origin, int stride) {
+        float value = 0;
+        for (int rect = 0; rect < mCascade.mFeatureRectCounts[feature]; rect++) {
+            int base = (feature * 3 + rect) * 4;
+            int[] rects = mCascade.mFeatureRects;
+            value += mCascade.mFeatureWeights[feature * 3 + rect] * rectSum(sums, origin, stride,
+                    rects[base], rects[base + 1], rects[base + 2], rects[base + 3]);
+        }
+        return value;
+    }
+
+    private int lbpCode(Scratch scratch, int feature, int origin, int stride) {
+        int[] rects = mCascade.mFeatureRects;
+        int base = feature * 3 * 4;
+        int width = rects[base + 2];
+        int height = rects[base + 3];
+        int[] blockSums = scratch.mBlockSums;
+        for (int block = 0; block < 9; block++) {
+            blockSums[block] = rectSum(scratch.mSum, origin, stride,
+                    rects[base] + block % 3 * width, rects[base + 1] + block / 3 * height, width,
+                    height);
+        }
+        int center = blockSums[4];
+        int code = 0;
+        for (int block : LBP_BLOCKS) {
+            code = code << 1 | (blockSums[block] >= center ? 1 : 0);
+        }
+        return code;
+    }
+
+    private static boolean isInSubset(Cascade cascade, int node, int code) {
+        return (cascade.mNodeSubsets[8 * node + (code >> 5)] & 1 << (code & 31)) != 0;
+    }
+
+    /**
+     * Group similar windows like groupRectangles() of OpenCV: average the windows of each group
+     * with more than minNeighbors members, then drop groups inside a stronger one.
+     */
+    private List<float[]> group(List<float[]> windows) {
+        int count = windows.size();
+        int[] labels = new int[count];
+        for (int index = 0; index < count; index++) {
+            labels[index] = index;
+        }
+        for (int first = 0; first < count; first++) {
+            for (int second = first + 1; second < count; second++) {
+                if (isSimilar(windows.get(first), windows.get(second))) {
+                    int root = find(labels, first);
+                    int other = find(labels, second);
+                    labels[Math.max(root, other)] = Math.min(root, other);
+                }
+            }
+        }
+
+        List<float[]> groups = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        int[] groupOfRoot = new int[count];
+        for (int index = 0; index < count; index++) {
+            int root = find(labels, index);
+            if (root == index) {
+                groupOfRoot[index] = groups.size();
+                groups.add(new float[4]);
+                sizes.add(0);
+            }
+            float[] sum = groups.get(groupOfRoot[root]);
+            float[] window = windows.get(index);
+            for (int value = 0; value < 4; value++) {
+                sum[value] += window[value];
+            }
+            sizes.set(groupOfRoot[root], sizes.get(groupOfRoot[root]) + 1);
+        }
+        for (int index = 0; index < groups.size(); index++) {
+            for (int value = 0; value < 4; value++) {
+                groups.get(index)[value] /= sizes.get(index);
+            }
+        }
+
+        List<float[]> faces = new ArrayList<>();
+        for (int index = 0; index < groups.size(); index++) {
+            int size = sizes.get(index);
+            if (size <= mMinNeighbors) {
+                continue;
+            }
+            float[] window = groups.get(index);
+            boolean inside = false;
+            for (int other = 0; other < groups.size() && !inside; other++) {
+                int otherSize = sizes.get(other);
+                if (other == index || otherSize <= mMinNeighbors) {
+                    continue;
+                }
+                float[] outer = groups.get(other);
+                float dx = outer[2] * GROUP_EPS;
+                float dy = outer[3] * GROUP_EPS;
+                inside = window[0] >= outer[0] - dx && window[1] >= outer[1] - dy
+                        && window[0] + window[2] <= outer[0] + outer[2] + dx
+                        && window[1] + window[3] <= outer[1] + outer[3] + dy
+                        && (otherSize > Math.max(3, size) || size < 3);
+            }
+            if (!inside) {
+                faces.add(window);
+            }
+        }
+        return faces;
+    }
+
+    private static int find(int[] labels, int index) {
+        while (labels[index] != index) {
+            labels[index] = labels[labels[index]];
+            index = labels[index];
+        }
+        return index;
+    }
+
+    private static boolean isSimilar(float[] first, float[] second) {
+        float delta = GROUP_EPS * (Math.min(first[2], second[2]) + Math.min(first[3], second[3]))
+                / 2;
+        return Math.abs(first[0] - second[0]) <= delta && Math.abs(first[1] - second[1]) <= delta
+                && Math.abs(first[0] + first[2] - second[0] - second[2]) <= delta
+                && Math.abs(first[1] + first[3] - second[1] - second[3]) <= delta;
+    }
+
+    /**
+     * Buffers of one thread: luma of the image, then of each level, and the integral images of
+     * the level.
+     */
+    private static class Scratch {
+        private int[] mLuma = new int[0];
+        private int[] mLevel = new int[0];
+        private int[] mSum = new int[0];
+        private int[] mSquareSum = new int[0];
+        private final int[] mBlockSums = new int[9];
+    }
+}
@@ -0,0 +1,411 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.detect;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.theta360.automaticfaceblur.Face;
+import com.theta360.automaticfaceblur.blur.BitmapPixelBuffer;
+import com.theta360.automaticfaceblur.blur.Cancellable;
+import com.theta360.automaticfaceblur.pool.BitmapPool;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Face detection on the six faces of a cube around the camera.
+ *
+ * Detectors are made for perspective images, while the rows of the equirectangular image are
+ * stretched more and more away from the horizon and its faces get bent. Each face of the cube is
+ * a perspective view, sampled from the equirectangular image through a remap table, so faces are
+ * undistorted at every latitude and across the seam, which lies inside the back face. The views
+ * are a little wider than a quarter turn so that a face on an edge of the cube is whole in one of
+ * them, and faces found twice on the overlaps are kept once.
+ *
+ * The table is built once per image size and kept for the next shots. It holds one quadrant of a
+ * side face and one of the top face, the other quadrants and faces being mirrors and turns of
+ * them. Faces of the cube are searched in parallel, so the engine must accept concurrent calls.
+ */
+public class CubemapFaceDetector {
+    //Field of view of a face of the cube in degrees, beyond a quarter turn for the overlaps.
+    private static final double FIELD_OF_VIEW = 100;
+    //Faces of the cube: front, right, back and left around the horizon, then top and bottom.
+    private static final int FACE_COUNT = 6;
+    private static final int SIDE_COUNT = 4;
+    private static final int TOP = 4;
+    //Smallest cosine of a latitude used for the stretch of a row, as in BlurGeometry.
+    private static final double MIN_COSINE = 1 / 64d;
+    //Remap table of the last image size, reused by the next shots.
+    private static RemapTable sRemapTable;
+    private final FaceDetectorEngine mEngine;
+    private final int mParallelism;
+    private final BitmapPool mBitmapPool;
+    private long mRemapNanos;
+
+    /**
+     * Constructor of CubemapFaceDetector.
+     *
+     * @param engine detector run on each face of the cube
+     * @param parallelism faces of the cube searched at once, from 1 to 6
+     * @param bitmapPool pool providing the bitmaps of the faces, or null to allocate them
+     */
+    public CubemapFaceDetector(@NonNull FaceDetectorEngine engine, int parallelism,
+            @Nullable BitmapPool bitmapPool) {
+        if (parallelism < 1 || parallelism > FACE_COUNT) {
+            throw new IllegalArgumentException("invalid parallelism: " + parallelism);
+        }
+        this.mEngine = engine;
+        this.mParallelism = parallelism;
+        this.mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Size of the faces of the cube for an equirectangular image, which keeps the resolution of
+     * the horizon at their centers.
+     *
+     * @param width width of the equirectangular image
+     * @return even width and height of a face
+     */
+    public static int getFaceSize(int width) {
+        return (int) (width * Math.tan(Math.toRadians(FIELD_OF_VIEW / 2)) / Math.PI) & ~1;
+    }
+
+    /**
+     * Estimate the memory used by a search: the copy of the image, the remap table and the faces
+     * of the cube being searched, each as a bitmap and its pixels.
+     *
+     * @param width width of the equirectangular image
+     * @param height height of the equirectangular image
+     * @param parallelism faces of the cube searched at once
+     * @return estimated bytes
+     */
+    public static long estimateBytes(int width, int height, int parallelism) {
+        long size = getFaceSize(width);
+        return 2L * width * height + 2 * size * size + parallelism * 4 * size * size;
+    }
+
+    /**
+     * @return time spent building the remap table and sampling the faces of the cube, in
+     *         milliseconds
+     */
+    public synchronized long getRemapMillis() {
+        return mRemapNanos / 1000000;
+    }
+
+    /**
+     * Find the faces of an equirectangular image.
+     *
+     * @param image RGB_565 equirectangular image with an even width
+     * @param cancellable cancellation state checked before each face of the cube
+     * @param pool pool running the searches of the faces of the cube
+     * @param faces list which receives the faces in coordinates of the image, with the eyes on
+     *              the row of the center of the face
+     */
+    public void findFaces(@NonNull Bitmap image, @NonNull Cancellable cancellable,
+            @NonNull ForkJoinPool pool, @NonNull List<Face> faces) {
+        if (image.getConfig() != Bitmap.Config.RGB_565) {
+            throw new IllegalArgumentException("image is not RGB_565: " + image.getConfig());
+        }
+        long start = System.nanoTime();
+        RemapTable table = getRemapTable(image.getWidth(), image.getHeight());
+        short[] source = new short[image.getWidth() * image.getHeight()];
+        image.copyPixelsToBuffer(ShortBuffer.wrap(source));
+        addRemapNanos(System.nanoTime() - start);
+
+        List<List<Face>> cubeFaces = new ArrayList<>();
+        for (int face = 0; face < FACE_COUNT; face++) {
+            cubeFaces.add(new ArrayList<>());
+        }
+        int facesPerLeaf = (FACE_COUNT + mParallelism - 1) / mParallelism;
+        pool.invoke(new CubeFacesAction(table, source, cancellable, cubeFaces, 0, FACE_COUNT,
+                facesPerLeaf));
+
+        int first = faces.size();
+        for (List<Face> found : cubeFaces) {
+            for (Face face : found) {
+                if (!isFound(table, faces, first, face)) {
+                    faces.add(face);
+                }
+            }
+        }
+    }
+
+    private synchronized void addRemapNanos(long nanos) {
+        mRemapNanos += nanos;
+    }
+
+    /**
+     * @return remap table of an image size, built when the size differs from the last one
+     */
+    private static synchronized RemapTable getRemapTable(int width, int height) {
+        if (sRemapTable == null || sRemapTable.mWidth != width
+                || sRemapTable.mHeight != height) {
+            //Let the table of the old size go before the new one is built.
+            sRemapTable = null;
+            sRemapTable = new RemapTable(width, height);
+        }
+        return sRemapTable;
+    }
+
+    /**
+     * Sample one face of the cube from the equirectangular image, mirroring and turning the
+     * quadrant of the table.
+     */
+    private static void remap(RemapTable table, short[] source, int face, short[] pixels) {
+        int width = table.mWidth;
+        int size = table.mSize;
+        int half = size / 2;
+        int centerRow = table.mHeight / 2;
+        int centerColumn = width / 2 + (face < SIDE_COUNT ? face * width / SIDE_COUNT : 0);
+        int[] quadrant = face < SIDE_COUNT ? table.mSide : table.mPole;
+        for (int y = 0; y < size; y++) {
+            boolean lower = y >= half;
+            int quadrantRow = (lower ? y - half : half - 1 - y) * half;
+            for (int x = 0; x < size; x++) {
+                boolean right = x >= half;
+                int entry = quadrant[quadrantRow + (right ? x - half : half - 1 - x)];
+                int columnOffset = entry >>> 16;
+                int rowOffset = entry & 0xFFFF;
+                int column;
+                int row;
+                if (face < SIDE_COUNT) {
+                    column = right ? centerColumn + columnOffset : centerColumn - 1 - columnOffset;
+                    row = lower ? centerRow + rowOffset : centerRow - 1 - rowOffset;
+                } else {
+                    //The lower half of the top face and the upper half of the bottom face look
+                    //to the front.
+                    boolean front = lower == (face == TOP);
+                    if (front) {
+                        column = right ? centerColumn + columnOffset
+                                : centerColumn - 1 - columnOffset;
+                    } else {
+                        column = right ? width - 1 - columnOffset : columnOffset;
+                    }
+                    row = face == TOP ? centerRow - 1 - rowOffset : centerRow + rowOffset;
+                }
+                if (column >= width) {
+                    column -= width;
+                } else if (column < 0) {
+                    column += width;
+                }
+                pixels[y * size + x] = source[row * width + column];
+            }
+        }
+    }
+
+    /**
+     * Map a face found on a face of the cube to the equirectangular image.
+     */
+    private static Face toEquirectangular(RemapTable table, int face, Face cubeFace) {
+        double[] leftEye = toDirection(table, face, cubeFace.getLeftEyeX(),
+                cubeFace.getLeftEyeY());
+        double[] rightEye = toDirection(table, face, cubeFace.getRightEyeX(),
+                cubeFace.getRightEyeY());
+        double[] center = new double[3];
+        for (int axis = 0; axis < 3; axis++) {
+            center[axis] = leftEye[axis] + rightEye[axis];
+        }
+        double longitude = Math.atan2(center[0], center[2]);
+        double latitude = Math.atan2(center[1], Math.hypot(center[0], center[2]));
+        float centerX = (float) (table.mWidth * (0.5 + longitude / (2 * Math.PI)));
+        float centerY = (float) (table.mHeight * (0.5 - latitude / Math.PI));
+        //The eye distance is measured along the center row, which is stretched by its latitude.
+        float eyesDistance = (float) (angle(leftEye, rightEye) * table.mWidth / (2 * Math.PI)
+                / Math.max(Math.cos(latitude), MIN_COSINE));
+        return new Face(centerX - eyesDistance / 2, centerY, centerX + eyesDistance / 2,
+                centerY, eyesDistance);
+    }
+
+    /**
+     * Direction of a point of a face of the cube, with x to the right of the front, y up and z
+     * to the front.
+     */
+    private static double[] toDirection(RemapTable table, int face, float x, float y) {
+        double a = table.mTangent * (2 * x / table.mSize - 1);
+        double b = table.mTangent * (2 * y / table.mSize - 1);
+        switch (face) {
+            case 0:
+                return new double[]{a, -b, 1};
+            case 1:
+                return new double[]{1, -b, -a};
+            case 2:
+                return new double[]{-a, -b, -1};
+            case 3:
+                return new double[]{-1, -b, a};
+            case TOP:
+                return new double[]{a, 1, b};
+            default:
+                return new double[]{a, -1, -b};
+        }
+    }
+
+    private static double angle(double[] first, double[] second) {
+        double dot = 0;
+        double firstNorm = 0;
+        double secondNorm = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            dot += first[axis] * second[axis];
+            firstNorm += first[axis] * first[axis];
+            secondNorm += second[axis] * second[axis];
+        }
+        return Math.acos(Math.max(-1, Math.min(1, dot / Math.sqrt(firstNorm * secondNorm))));
+    }
+
+    /**
+     * @return true if a face found from index from lies within the eye distance of the face,
+     *         measured on the sphere
+     */
+    private static boolean isFound(RemapTable table, List<Face> faces, int from, Face face) {
+        double[] center = toSphere(table, face);
+        double eyesAngle = toEyesAngle(table, face);
+        for (int index = from; index < faces.size(); index++) {
+            Face other = faces.get(index);
+            double distance = Math.max(eyesAngle, toEyesAngle(table, other));
+            if (angle(center, toSphere(table, other)) < distance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static double[] toSphere(RemapTable table, Face face) {
+        double longitude = 2 * Math.PI * ((face.getLeftEyeX() + face.getRightEyeX()) / 2
+                / table.mWidth - 0.5);
+        double latitude = Math.PI * (0.5 - face.getLeftEyeY() / table.mHeight);
+        return new double[]{Math.sin(longitude) * Math.cos(latitude), Math.sin(latitude),
+                Math.cos(longitude) * Math.cos(latitude)};
+    }
+
+    private static double toEyesAngle(RemapTable table, Face face) {
+        double latitude = Math.PI * (0.5 - face.getLeftEyeY() / table.mHeight);
+        return face.getEyeDistance() * 2 * Math.PI / table.mWidth
+                * Math.max(Math.cos(latitude), MIN_COSINE);
+    }
+
+    private Bitmap createFace(int size) {
+        if (mBitmapPool != null) {
+            return mBitmapPool.get(size, size, Bitmap.Config.RGB_565);
+        }
+        return Bitmap.createBitmap(size, size, Bitmap.Config.RGB_565);
+    }
+
+    private void releaseFace(Bitmap face) {
+        if (mBitmapPool != null) {
+            mBitmapPool.put(face);
+        } else {
+            face.recycle();
+        }
+    }
+
+    /**
+     * Quadrants of a side face and of the top face of the cube, as column and row offsets of
+     * the equirectangular pixels from the center of the face, packed in the high and low halves
+     * of an int.
+     */
+    private static class RemapTable {
+        private final int mWidth;
+        private final int mHeight;
+        private final int mSize;
+        private final double mTangent;
+        private final int[] mSide;
+        private final int[] mPole;
+
+        private RemapTable(int width, int height) {
+            this.mWidth = width;
+            this.mHeight = height;
+            this.mSize = getFaceSize(width);
+            this.mTangent = Math.tan(Math.toRadians(FIELD_OF_VIEW / 2));
+            int half = mSize / 2;
+            this.mSide = new int[half * half];
+            this.mPole = new int[half * half];
+            double columnsPerRadian = width / (2 * Math.PI);
+            double rowsPerRadian = height / Math.PI;
+            int maxRow = height / 2 - 1;
+            for (int y = 0; y < half; y++) {
+                double b = mTangent * (2 * y + 1) / mSize;
+                for (int x = 0; x < half; x++) {
+                    double a = mTangent * (2 * x + 1) / mSize;
+                    //Side face looking at z: the point (a, -b, 1).
+                    int column = (int) (Math.atan(a) * columnsPerRadian);
+                    int row = (int) (Math.atan2(b, Math.hypot(a, 1)) * rowsPerRadian);
+                    mSide[y * half + x] = column << 16 | Math.min(row, maxRow);
+                    //Top face looking up with the front below: the point (a, 1, b).
+                    column = (int) (Math.atan2(a, b) * columnsPerRadian);
+                    row = (int) (Math.atan2(1, Math.hypot(a, b)) * rowsPerRadian);
+                    mPole[y * half + x] = column << 16 | Math.min(row, maxRow);
+                }
+            }
+        }
+    }
+
+    /**
+     * Search of a range of faces of the cube, split until each leaf holds few enough faces.
+     */
+    private class CubeFacesAction extends RecursiveAction {
+        private final RemapTable mTable;
+        private final short[] mSource;
+        private final Cancellable mCancellable;
+        private final List<List<Face>> mCubeFaces;
+        private final int mFrom;
+        private final int mTo;
+        private final int mLeaf;
+
+        private CubeFacesAction(RemapTable table, short[] source, Cancellable cancellable,
+                List<List<Face>> cubeFaces, int from, int to, int leaf) {
+            this.mTable = table;
+            this.mSource = source;
+            this.mCancellable = cancellable;
+            this.mCubeFaces = cubeFaces;
+            this.mFrom = from;
+            this.mTo = to;
+            this.mLeaf = leaf;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > mLeaf) {
+                int middle = mFrom + mLeaf;
+                invokeAll(new CubeFacesAction(mTable, mSource, mCancellable, mCubeFaces, mFrom,
+                                middle, mLeaf),
+                        new CubeFacesAction(mTable, mSource, mCancellable, mCubeFaces, middle,
+                                mTo, mLeaf));
+                return;
+            }
+            int size = mTable.mSize;
+            short[] pixels = new short[size * size];
+            Bitmap bitmap = createFace(size);
+            try {
+                List<Face> found = new ArrayList<>();
+                for (int face = mFrom; face < mTo && !mCancellable.isCancelled(); face++) {
+                    long start = System.nanoTime();
+                    remap(mTable, mSource, face, pixels);
+                    bitmap.copyPixelsFromBuffer(ShortBuffer.wrap(pixels));
+                    addRemapNanos(System.nanoTime() - start);
+                    found.clear();
+                    mEngine.findFaces(new BitmapPixelBuffer(bitmap), found);
+                    for (Face cubeFace : found) {
+                        mCubeFaces.get(face).add(toEquirectangular(mTable, face, cubeFace));
+                    }
+                }
+            } finally {
+                releaseFace(bitmap);
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.detect;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.theta360.automaticfaceblur.Face;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Faces detected in JPEG files, kept on storage so that blurring a shot again skips the decode
+ * of the detection image and the detection.
+ *
+ * Entries are keyed by a hash of the entropy-coded data of the file, which changes with the
+ * pixels but not with the metadata, and by the parameters of the detection. Each entry is a small
+ * binary file holding the detector version, the parameters, the size of the detection image and
+ * the faces in its coordinates. Reading an entry marks it as used, and the least recently used
+ * entries are deleted once there are too many.
+ */
+public class DetectionCache {
+    //"DET1"
+    private static final int MAGIC = 0x44455431;
+    private static final String EXTENSION = ".faces";
+    private static final int SOI = 0xFFD8;
+    private static final int SOS = 0xFFDA;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    //Two eyes and the distance between them, as floats.
+    private static final int FACE_BYTES = 5 * 4;
+    private final File mDirectory;
+    private final int mMaxEntries;
+    private final int mVersion;
+
+    /**
+     * Constructor of DetectionCache.
+     *
+     * @param directory directory of the entries, created on the first write
+     * @param maxEntries number of entries kept
+     * @param version version of the detector, raised whenever its results change so that older
+     *                entries are not used
+     */
+    public DetectionCache(@NonNull File directory, int maxEntries, int version) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("invalid number of entries: " + maxEntries);
+        }
+        this.mDirectory = directory;
+        this.mMaxEntries = maxEntries;
+        this.mVersion = version;
+    }
+
+    /**
+     * Hash the entropy-coded data of a JPEG file, from its first scan to its end.
+     *
+     * @param file JPEG file
+     * @return CRC-32 of the data in the high half and its length in the low half
+     */
+    public static long hashScan(@NonNull File file) throws IOException {
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+            if (input.readUnsignedShort() != SOI) {
+                throw new IOException("not a JPEG file: " + file);
+            }
+            int marker = input.readUnsignedShort();
+            while (marker != SOS) {
+                if ((marker & 0xFF00) != 0xFF00) {
+                    throw new IOException("broken JPEG marker in " + file);
+                }
+                skipFully(input, input.readUnsignedShort() - 2);
+                marker = input.readUnsignedShort();
+            }
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long length = 0;
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+                length += read;
+            }
+            return crc.getValue() << 32 | (length & 0xFFFFFFFFL);
+        }
+    }
+
+    private static void skipFully(InputStream input, long count) throws IOException {
+        while (count > 0) {
+            long skipped = input.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Look up the faces of a file.
+     *
+     * @param key hash of the file from hashScan()
+     * @param parameters parameters of the detection
+     * @return detection stored for the file and parameters by this version, or null
+     */
+    @Nullable
+    public synchronized Detection get(long key, @NonNull String parameters) {
+        File file = getFile(key, parameters);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != mVersion
+                    || !input.readUTF().equals(parameters)) {
+                return null;
+            }
+            int width = input.readInt();
+            int height = input.readInt();
+            int count = input.readInt();
+            //A broken entry must not size the list or the detection image.
+            if (width <= 0 || height <= 0 || count < 0 || count > file.length() / FACE_BYTES) {
+                throw new IOException("broken entry " + file);
+            }
+            List<Face> faces = new ArrayList<>(count);
+            for (int index = 0; index < count; index++) {
+                faces.add(new Face(input.readFloat(), input.readFloat(), input.readFloat(),
+                        input.readFloat(), input.readFloat()));
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return new Detection(width, height, faces);
+        } catch (IOException e) {
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Store the faces of a file, then delete the least recently used entries beyond the limit.
+     *
+     * @param key hash of the file from hashScan()
+     * @param parameters parameters of the detection
+     * @param width width of the detection image
+     * @param height height of the detection image
+     * @param faces faces in coordinates of the detection image
+     */
+    public synchronized void put(long key, @NonNull String parameters, int width, int height,
+            @NonNull List<Face> faces) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("cannot create " + mDirectory);
+        }
+        File file = getFile(key, parameters);
+        //Write a temporary file first, so a broken write never leaves a readable entry.
+        File temporary = new File(mDirectory, file.getName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(mVersion);
+            output.writeUTF(parameters);
+            output.writeInt(width);
+            output.writeInt(height);
+            output.writeInt(faces.size());
+            for (Face face : faces) {
+                output.writeFloat(face.getLeftEyeX());
+                output.writeFloat(face.getLeftEyeY());
+                output.writeFloat(face.getRightEyeX());
+                output.writeFloat(face.getRightEyeY());
+                output.writeFloat(face.getEyeDistance());
+            }
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("cannot write " + file);
+        }
+        evict();
+    }
+
+    /**
+     * Delete the least recently used entries beyond the limit.
+     */
+    private void evict() {
+        File[] entries = mDirectory.listFiles((directory, name) -> name.endsWith(EXTENSION));
+        if (entries == null || entries.length <= mMaxEntries) {
+            return;
+        }
+        List<File> files = Arrays.asList(entries);
+        Collections.sort(files, (first, second) -> Long.compare(first.lastModified(),
+                second.lastModified()));
+        for (int index = 0; index < files.size() - mMaxEntries; index++) {
+            files.get(index).delete();
+        }
+    }
+
+    /**
+     * File of an entry, named after the key and a hash of the parameters, so that several
+     * detections of a file are kept side by side.
+     */
+    private File getFile(long key, String parameters) {
+        return new File(mDirectory, String.format(Locale.US, "%016x-%08x%s", key,
+                parameters.hashCode(), EXTENSION));
+    }
+
+    /**
+     * Faces stored for a file, in coordinates of the detection image they were found on.
+     */
+    public static class Detection {
+        private final int mWidth;
+        private final int mHeight;
+        private final List<Face> mFaces;
+
+        private Detection(int width, int height, List<Face> faces) {
+            this.mWidth = width;
+            this.mHeight = height;
+            this.mFaces = faces;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @NonNull
+        public List<Face> getFaces() {
+            return mFaces;
+        }
+    }
+}
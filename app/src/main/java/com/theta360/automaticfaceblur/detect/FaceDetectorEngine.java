@@ -0,0 +1,36 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.detect;
+
+import android.support.annotation.NonNull;
+import com.theta360.automaticfaceblur.Face;
+import com.theta360.automaticfaceblur.blur.PixelBuffer;
+import java.util.List;
+
+/**
+ * Face detector behind the detection of the task, so detectors can be swapped and measured on
+ * the same images. Implementations accept calls from several threads at once, so several images
+ * may be searched in parallel.
+ */
+public interface FaceDetectorEngine {
+    /**
+     * Find the faces of an image.
+     *
+     * @param image image with an even width
+     * @param faces list which receives the faces in coordinates of the image
+     */
+    void findFaces(@NonNull PixelBuffer image, @NonNull List<Face> faces);
+}
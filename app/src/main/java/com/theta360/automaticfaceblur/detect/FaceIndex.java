@@ -0,0 +1,217 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.detect;
+
+import android.support.annotation.NonNull;
+import com.theta360.automaticfaceblur.Face;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Faces of an equirectangular image from several detection passes, with the faces found twice
+ * merged into one.
+ *
+ * Faces are hashed by their center into square cells of the image, so a new face is only
+ * compared with the faces of the cells around it, the columns wrapping around the seam. A face
+ * whose center lies within the eye distance of a face already added is the same face, and both
+ * are replaced by one face centered between them and large enough that its region holds both
+ * regions.
+ */
+public class FaceIndex {
+    private final int mWidth;
+    private final int mCellSize;
+    private final int mColumns;
+    private final int mRows;
+    private final Map<Integer, List<Entry>> mCells = new HashMap<>();
+    private float mMaxEyesDistance;
+    private int mCount;
+    private int mMergeCount;
+
+    /**
+     * Constructor of FaceIndex.
+     *
+     * @param width width of the equirectangular image
+     * @param height height of the equirectangular image
+     * @param cellSize size of a cell in pixels
+     */
+    public FaceIndex(int width, int height, int cellSize) {
+        if (width <= 0 || height <= 0 || cellSize <= 0) {
+            throw new IllegalArgumentException(
+                    "invalid index: " + width + "x" + height + " cell " + cellSize);
+        }
+        this.mWidth = width;
+        this.mCellSize = cellSize;
+        this.mColumns = (width + cellSize - 1) / cellSize;
+        this.mRows = (height + cellSize - 1) / cellSize;
+    }
+
+    /**
+     * @return number of faces held
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return number of faces merged into another one since the index was created
+     */
+    public int getMergeCount() {
+        return mMergeCount;
+    }
+
+    /**
+     * Add a face, merging it with the faces it duplicates.
+     *
+     * @param face face in coordinates of the image, whose eyes may lie on both sides of the seam
+     */
+    public void add(@NonNull Face face) {
+        Entry entry = new Entry(getCenterX(face, mWidth),
+                (face.getLeftEyeY() + face.getRightEyeY()) / 2, face.getEyeDistance());
+        Entry same;
+        while ((same = findSame(entry)) != null) {
+            remove(same);
+            entry = merge(entry, same);
+            mMergeCount++;
+        }
+        cellOf(entry.mCenterX, entry.mCenterY).add(entry);
+        mMaxEyesDistance = Math.max(mMaxEyesDistance, entry.mEyesDistance);
+        mCount++;
+    }
+
+    /**
+     * Center of a face whose eyes were wrapped into the image one by one, so that the eyes of a
+     * face on the seam lie at both ends of the image.
+     *
+     * @param face face in coordinates of the image
+     * @param width width of the equirectangular image
+     * @return x coordinate of the face center, inside the image
+     */
+    public static float getCenterX(@NonNull Face face, int width) {
+        float eyesX = face.getRightEyeX() - face.getLeftEyeX();
+        if (eyesX < -width / 2f) {
+            eyesX += width;
+        }
+        return wrap(face.getLeftEyeX() + eyesX / 2, width);
+    }
+
+    /**
+     * Add the faces held to a list.
+     *
+     * @param faces list which receives the faces with their eyes on the row of their center and
+     *              their center inside the image
+     */
+    public void getFaces(@NonNull List<Face> faces) {
+        for (List<Entry> cell : mCells.values()) {
+            for (Entry entry : cell) {
+                float halfDistance = entry.mEyesDistance / 2;
+                faces.add(new Face(entry.mCenterX - halfDistance, entry.mCenterY,
+                        entry.mCenterX + halfDistance, entry.mCenterY, entry.mEyesDistance));
+            }
+        }
+    }
+
+    /**
+     * @return a face held which is the same as the entry, or null
+     */
+    private Entry findSame(Entry entry) {
+        float reach = Math.max(entry.mEyesDistance, mMaxEyesDistance);
+        int firstRow = Math.max(toCell(entry.mCenterY - reach), 0);
+        int lastRow = Math.min(toCell(entry.mCenterY + reach), mRows - 1);
+        int firstColumn = toCell(entry.mCenterX - reach);
+        int lastColumn = Math.min(toCell(entry.mCenterX + reach), firstColumn + mColumns - 1);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                List<Entry> cell = mCells.get(row * mColumns + Math.floorMod(column, mColumns));
+                if (cell == null) {
+                    continue;
+                }
+                for (Entry other : cell) {
+                    float distance = Math.max(entry.mEyesDistance, other.mEyesDistance);
+                    if (distanceX(entry, other) < distance
+                            && Math.abs(entry.mCenterY - other.mCenterY) < distance) {
+                        return other;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Face centered between two faces, whose eye distance grows by the distance between the
+     * centers so that its region holds both regions.
+     */
+    private Entry merge(Entry first, Entry second) {
+        float dx = second.mCenterX - first.mCenterX;
+        if (dx > mWidth / 2f) {
+            dx -= mWidth;
+        } else if (dx < -mWidth / 2f) {
+            dx += mWidth;
+        }
+        float dy = second.mCenterY - first.mCenterY;
+        float offset = Math.max(Math.abs(dx), Math.abs(dy)) / 2;
+        return new Entry(wrap(first.mCenterX + dx / 2, mWidth), first.mCenterY + dy / 2,
+                Math.max(first.mEyesDistance, second.mEyesDistance) + offset);
+    }
+
+    private void remove(Entry entry) {
+        List<Entry> cell = cellOf(entry.mCenterX, entry.mCenterY);
+        cell.remove(entry);
+        mCount--;
+    }
+
+    private List<Entry> cellOf(float x, float y) {
+        int row = Math.min(Math.max(toCell(y), 0), mRows - 1);
+        int key = row * mColumns + Math.floorMod(toCell(x), mColumns);
+        List<Entry> cell = mCells.get(key);
+        if (cell == null) {
+            cell = new ArrayList<>();
+            mCells.put(key, cell);
+        }
+        return cell;
+    }
+
+    private int toCell(float coordinate) {
+        return (int) Math.floor(coordinate / mCellSize);
+    }
+
+    private float distanceX(Entry first, Entry second) {
+        float dx = Math.abs(first.mCenterX - second.mCenterX);
+        return Math.min(dx, mWidth - dx);
+    }
+
+    private static float wrap(float x, int width) {
+        float wrapped = x % width;
+        return wrapped < 0 ? wrapped + width : wrapped;
+    }
+
+    /**
+     * Face held by the index, as its center and eye distance.
+     */
+    private static class Entry {
+        private final float mCenterX;
+        private final float mCenterY;
+        private final float mEyesDistance;
+
+        private Entry(float centerX, float centerY, float eyesDistance) {
+            this.mCenterX = centerX;
+            this.mCenterY = centerY;
+            this.mEyesDistance = eyesDistance;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.detect;
+
+import android.support.annotation.NonNull;
+import com.theta360.automaticfaceblur.Face;
+import com.theta360.automaticfaceblur.blur.PixelBuffer;
+import java.util.List;
+
+/**
+ * FaceDetectorEngine which measures another one, so engines are compared by the same numbers
+ * on the device and off it. Calls made at the same time add up their times.
+ */
+public class MeasuredFaceDetectorEngine implements FaceDetectorEngine {
+    private final FaceDetectorEngine mEngine;
+    private int mCallCount;
+    private long mPixelCount;
+    private int mFaceCount;
+    private long mNanos;
+
+    public MeasuredFaceDetectorEngine(@NonNull FaceDetectorEngine engine) {
+        this.mEngine = engine;
+    }
+
+    @Override
+    public void findFaces(@NonNull PixelBuffer image, @NonNull List<Face> faces) {
+        int first = faces.size();
+        long start = System.nanoTime();
+        mEngine.findFaces(image, faces);
+        long nanos = System.nanoTime() - start;
+        synchronized (this) {
+            mNanos += nanos;
+            mCallCount++;
+            mPixelCount += (long) image.getWidth() * image.getHeight();
+            mFaceCount += faces.size() - first;
+        }
+    }
+
+    /**
+     * @return detector measured
+     */
+    @NonNull
+    public FaceDetectorEngine getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * @return number of images searched
+     */
+    public synchronized int getCallCount() {
+        return mCallCount;
+    }
+
+    /**
+     * @return number of pixels of the images searched
+     */
+    public synchronized long getPixelCount() {
+        return mPixelCount;
+    }
+
+    /**
+     * @return number of faces found
+     */
+    public synchronized int getFaceCount() {
+        return mFaceCount;
+    }
+
+    /**
+     * @return time spent in the engine in milliseconds
+     */
+    public synchronized long getMillis() {
+        return mNanos / 1000000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mEngine.getClass().getSimpleName() + ": " + mCallCount + " images, "
+                + mPixelCount + " px, " + mFaceCount + " faces, " + getMillis() + " ms";
+    }
+}
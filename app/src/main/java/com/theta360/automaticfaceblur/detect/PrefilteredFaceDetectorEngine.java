@@ -0,0 +1,340 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.detect;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import com.theta360.automaticfaceblur.Face;
+import com.theta360.automaticfaceblur.blur.BitmapPixelBuffer;
+import com.theta360.automaticfaceblur.blur.IntArrayPixelBuffer;
+import com.theta360.automaticfaceblur.blur.PixelBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FaceDetectorEngine which searches only the parts of an image that may hold a face.
+ *
+ * Most of a 360 image is sky, floor or walls. Before the detector runs, a map of cells is
+ * computed from a subsampled image with integer arithmetic. A cell is a candidate when enough
+ * of its samples have the chroma of skin and its luma varies like eyes, brows and mouth do.
+ * Candidate cells are grouped into rectangles grown by a margin, and only the rectangles are
+ * given to the detector. Faces in the overlap of two rectangles may be reported twice, which
+ * the FaceIndex of the task merges.
+ *
+ * The skin test depends on color, so the whole image is searched when too few samples are
+ * colored, as in night or monochrome shots. It is also searched whole when the rectangles cover
+ * so much of it that cropping saves little.
+ */
+public class PrefilteredFaceDetectorEngine implements FaceDetectorEngine {
+    //Step between the pixels sampled for the map, in both directions.
+    private static final int SAMPLE_STEP = 4;
+    //Chroma of skin in YCbCr, after Chai and Ngan.
+    private static final int MIN_SKIN_CB = 77;
+    private static final int MAX_SKIN_CB = 127;
+    private static final int MIN_SKIN_CR = 133;
+    private static final int MAX_SKIN_CR = 173;
+    //Luma below which the chroma of a sample is noise.
+    private static final int MIN_SKIN_LUMA = 40;
+    //Samples of a cell which must be skin, in 1/16 of its samples. Low, so a small face split
+    //between four cells still marks them.
+    private static final int MIN_SKIN_SIXTEENTHS = 1;
+    //Luma variance of a candidate cell. The eyes of a face vary far more than a plain surface
+    //or the grain of wood.
+    private static final int MIN_VARIANCE = 100;
+    //Distance of the chroma from gray above which a sample is colored.
+    private static final int MIN_CHROMA = 8;
+    //Samples of the image which must be colored for the skin test to be trusted, in 1/256.
+    //Sky, foliage and walls color far more than this by day, while dim skin may fail the test.
+    private static final int MIN_COLORED_256THS = 16;
+    private final FaceDetectorEngine mEngine;
+    private final int mCellSize;
+    private final int mMargin;
+    private final float mMaxCoverage;
+    private int mImageCount;
+    private int mFallbackCount;
+    private long mImagePixels;
+    private long mSearchedPixels;
+
+    /**
+     * Constructor of PrefilteredFaceDetectorEngine.
+     *
+     * @param engine detector run on the candidate rectangles
+     * @param cellSize side of a cell of the map in pixels, a multiple of 4
+     * @param margin cells added around every candidate cell, so the detector sees the whole face
+     * @param maxCoverage part of the image covered by the rectangles above which the image is
+     *                    searched whole
+     */
+    public PrefilteredFaceDetectorEngine(@NonNull FaceDetectorEngine engine, int cellSize,
+            int margin, float maxCoverage) {
+        if (cellSize <= 0 || cellSize % SAMPLE_STEP != 0 || margin < 0 || maxCoverage <= 0
+                || maxCoverage > 1) {
+            throw new IllegalArgumentException("invalid prefilter: cell " + cellSize + ", margin "
+                    + margin + ", coverage " + maxCoverage);
+        }
+        this.mEngine = engine;
+        this.mCellSize = cellSize;
+        this.mMargin = margin;
+        this.mMaxCoverage = maxCoverage;
+    }
+
+    @Override
+    public void findFaces(@NonNull PixelBuffer image, @NonNull List<Face> faces) {
+        List<int[]> rectangles = findCandidates(image);
+        long imagePixels = (long) image.getWidth() * image.getHeight();
+        long searchedPixels = 0;
+        if (rectangles == null) {
+            searchedPixels = imagePixels;
+            mEngine.findFaces(image, faces);
+        } else {
+            List<Face> cropFaces = new ArrayList<>();
+            for (int[] rectangle : rectangles) {
+                int x = rectangle[0];
+                int y = rectangle[1];
+                int width = rectangle[2] - x;
+                int height = rectangle[3] - y;
+                searchedPixels += (long) width * height;
+                cropFaces.clear();
+                findFaces(image, x, y, width, height, cropFaces);
+                for (Face face : cropFaces) {
+                    faces.add(new Face(face.getLeftEyeX() + x, face.getLeftEyeY() + y,
+                            face.getRightEyeX() + x, face.getRightEyeY() + y,
+                            face.getEyeDistance()));
+                }
+            }
+        }
+        synchronized (this) {
+            mImageCount++;
+            if (rectangles == null) {
+                mFallbackCount++;
+            }
+            mImagePixels += imagePixels;
+            mSearchedPixels += searchedPixels;
+        }
+    }
+
+    /**
+     * Run the detector on a rectangle of an image, cut from the bitmap when there is one.
+     */
+    private void findFaces(PixelBuffer image, int x, int y, int width, int height,
+            List<Face> faces) {
+        if (image instanceof BitmapPixelBuffer) {
+            Bitmap crop = Bitmap.createBitmap(((BitmapPixelBuffer) image).getBitmap(), x, y,
+                    width, height);
+            mEngine.findFaces(new BitmapPixelBuffer(crop), faces);
+            crop.recycle();
+        } else {
+            int[] pixels = new int[width * height];
+            image.getPixels(pixels, 0, width, x, y, width, height);
+            mEngine.findFaces(new IntArrayPixelBuffer(pixels, width, height), faces);
+        }
+    }
+
+    /**
+     * Find the rectangles of an image which may hold a face.
+     *
+     * @param image image with an even width
+     * @return rectangles as left, top, right and bottom, or null when the image must be searched
+     *         whole
+     */
+    private List<int[]> findCandidates(@NonNull PixelBuffer image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int columns = (width + mCellSize - 1) / mCellSize;
+        int rows = (height + mCellSize - 1) / mCellSize;
+        int[] samples = new int[columns * rows];
+        int[] skin = new int[columns * rows];
+        int[] lumaSum = new int[columns * rows];
+        int[] lumaSquareSum = new int[columns * rows];
+        int[] row = new int[width];
+        long sampleCount = 0;
+        long coloredCount = 0;
+        for (int y = SAMPLE_STEP / 2; y < height; y += SAMPLE_STEP) {
+            image.getPixels(row, 0, width, 0, y, width, 1);
+            int cellRow = y / mCellSize * columns;
+            for (int x = SAMPLE_STEP / 2; x < width; x += SAMPLE_STEP) {
+                int pixel = row[x];
+                int red = pixel >> 16 & 0xFF;
+                int green = pixel >> 8 & 0xFF;
+                int blue = pixel & 0xFF;
+                int luma = (77 * red + 150 * green + 29 * blue) >> 8;
+                int cb = ((-43 * red - 85 * green + 128 * blue) >> 8) + 128;
+                int cr = ((128 * red - 107 * green - 21 * blue) >> 8) + 128;
+                int cell = cellRow + x / mCellSize;
+                samples[cell]++;
+                lumaSum[cell] += luma;
+                lumaSquareSum[cell] += luma * luma;
+                if (luma >= MIN_SKIN_LUMA && cb >= MIN_SKIN_CB && cb <= MAX_SKIN_CB
+                        && cr >= MIN_SKIN_CR && cr <= MAX_SKIN_CR) {
+                    skin[cell]++;
+                }
+                if (Math.abs(cb - 128) + Math.abs(cr - 128) > MIN_CHROMA) {
+                    coloredCount++;
+                }
+                sampleCount++;
+            }
+        }
+        if (coloredCount * 256 < sampleCount * MIN_COLORED_256THS) {
+            return null;
+        }
+
+        int[] seeds = new int[columns * rows];
+        int seedCount = 0;
+        for (int cell = 0; cell < seeds.length; cell++) {
+            long n = samples[cell];
+            long variance = n * lumaSquareSum[cell] - (long) lumaSum[cell] * lumaSum[cell];
+            if (n > 0 && skin[cell] * 16 >= n * MIN_SKIN_SIXTEENTHS
+                    && variance >= MIN_VARIANCE * n * n) {
+                seeds[seedCount++] = cell;
+            }
+        }
+        List<int[]> rectangles = new ArrayList<>();
+        groupSeeds(seeds, 0, seedCount, columns, rectangles);
+        mergeRectangles(rectangles);
+
+        //Turn the cells into pixels, then stop when cropping saves too little.
+        long coveredPixels = 0;
+        for (int[] rectangle : rectangles) {
+            //The cells and the image have even widths, so the rectangles have too.
+            rectangle[0] = Math.max(0, rectangle[0] * mCellSize);
+            rectangle[1] = Math.max(0, rectangle[1] * mCellSize);
+            rectangle[2] = Math.min(width, rectangle[2] * mCellSize);
+            rectangle[3] = Math.min(height, rectangle[3] * mCellSize);
+            coveredPixels += (long) (rectangle[2] - rectangle[0])
+                    * (rectangle[3] - rectangle[1]);
+        }
+        if (coveredPixels > mMaxCoverage * width * height) {
+            return null;
+        }
+        return rectangles;
+    }
+
+    /**
+     * Cover the seed cells [from, to) with rectangles grown by the margin. Seeds spread over a
+     * box they fill poorly, like the edge of a wall and a face below it, are split in halves
+     * across the longer side of the box until each part fills its box.
+     *
+     * @param seeds seed cells, reordered by the split
+     * @param columns number of columns of cells
+     * @param rectangles list which receives rectangles as left, top, right and bottom in cells
+     */
+    private void groupSeeds(int[] seeds, int from, int to, int columns, List<int[]> rectangles) {
+        if (from == to) {
+            return;
+        }
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = 0;
+        int bottom = 0;
+        for (int index = from; index < to; index++) {
+            int x = seeds[index] % columns;
+            int y = seeds[index] / columns;
+            left = Math.min(left, x);
+            top = Math.min(top, y);
+            right = Math.max(right, x + 1);
+            bottom = Math.max(bottom, y + 1);
+        }
+        int boxWidth = right - left;
+        int boxHeight = bottom - top;
+        //A part no larger than the margin around a cell is not worth splitting.
+        if (2 * (to - from) >= boxWidth * boxHeight
+                || Math.max(boxWidth, boxHeight) <= 2 * mMargin + 1) {
+            rectangles.add(new int[] {left - mMargin, top - mMargin, right + mMargin,
+                    bottom + mMargin});
+            return;
+        }
+        boolean vertical = boxWidth >= boxHeight;
+        int middle = vertical ? left + boxWidth / 2 : top + boxHeight / 2;
+        int split = from;
+        for (int index = from; index < to; index++) {
+            int cell = seeds[index];
+            if ((vertical ? cell % columns : cell / columns) < middle) {
+                seeds[index] = seeds[split];
+                seeds[split++] = cell;
+            }
+        }
+        groupSeeds(seeds, from, split, columns, rectangles);
+        groupSeeds(seeds, split, to, columns, rectangles);
+    }
+
+    /**
+     * Merge rectangles whose bounding box is not larger than the two rectangles, which also
+     * joins the parts of a face cut by a split. Rectangles left overlapping are searched on
+     * their own, so a face in the overlap may be reported twice.
+     */
+    private static void mergeRectangles(List<int[]> rectangles) {
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            for (int first = 0; first < rectangles.size() && !merged; first++) {
+                int[] a = rectangles.get(first);
+                for (int second = first + 1; second < rectangles.size(); second++) {
+                    int[] b = rectangles.get(second);
+                    int left = Math.min(a[0], b[0]);
+                    int top = Math.min(a[1], b[1]);
+                    int right = Math.max(a[2], b[2]);
+                    int bottom = Math.max(a[3], b[3]);
+                    if ((right - left) * (bottom - top) <= getArea(a) + getArea(b)) {
+                        a[0] = left;
+                        a[1] = top;
+                        a[2] = right;
+                        a[3] = bottom;
+                        rectangles.remove(second);
+                        merged = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static int getArea(int[] rectangle) {
+        return (rectangle[2] - rectangle[0]) * (rectangle[3] - rectangle[1]);
+    }
+
+    /**
+     * @return number of images searched
+     */
+    public synchronized int getImageCount() {
+        return mImageCount;
+    }
+
+    /**
+     * @return number of images searched whole
+     */
+    public synchronized int getFallbackCount() {
+        return mFallbackCount;
+    }
+
+    /**
+     * @return number of pixels of the images
+     */
+    public synchronized long getImagePixels() {
+        return mImagePixels;
+    }
+
+    /**
+     * @return number of pixels given to the detector
+     */
+    public synchronized long getSearchedPixels() {
+        return mSearchedPixels;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "prefilter: " + mImageCount + " images, " + mFallbackCount + " searched whole, "
+                + mSearchedPixels + " of " + mImagePixels + " px searched";
+    }
+}
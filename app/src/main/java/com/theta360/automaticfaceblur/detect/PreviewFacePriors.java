@@ -0,0 +1,205 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.detect;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.theta360.automaticfaceblur.Face;
+import com.theta360.automaticfaceblur.blur.BitmapPixelBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import timber.log.Timber;
+
+/**
+ * Faces found on the frames of the live preview, which show the scene of the next shot.
+ *
+ * Frames are offered as they stream in and searched at a low rate on a background thread,
+ * reduced to a small equirectangular image. Frames arriving while a frame is searched, or too
+ * soon after the last one, are dropped. The faces of the last frame are kept in parts of the
+ * image size, so they apply to the shot whatever its resolution, and expire after a short time.
+ */
+public class PreviewFacePriors {
+    private final FaceDetectorEngine mEngine;
+    private final int mWidth;
+    private final long mIntervalMillis;
+    private final long mLifetimeMillis;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private boolean mBusy;
+    private long mLastOfferMillis = Long.MIN_VALUE;
+    //Faces of the last frame searched as left eye x, y, right eye x, y and eye distance, in
+    //parts of the frame width and height.
+    private float[] mPriors;
+    private long mPriorMillis;
+
+    /**
+     * Constructor of PreviewFacePriors.
+     *
+     * @param engine detector run on the frames
+     * @param width width the frames are reduced to at most before they are searched
+     * @param intervalMillis time between the starts of two searches
+     * @param lifetimeMillis time after which the faces of a frame no longer apply
+     */
+    public PreviewFacePriors(@NonNull FaceDetectorEngine engine, int width, long intervalMillis,
+            long lifetimeMillis) {
+        if (width <= 0 || intervalMillis < 0 || lifetimeMillis <= 0) {
+            throw new IllegalArgumentException("invalid priors: width " + width + ", interval "
+                    + intervalMillis + ", lifetime " + lifetimeMillis);
+        }
+        this.mEngine = engine;
+        this.mWidth = width;
+        this.mIntervalMillis = intervalMillis;
+        this.mLifetimeMillis = lifetimeMillis;
+    }
+
+    /**
+     * Offer a frame of the preview, which is searched unless a search is running or the last
+     * one started less than the interval ago.
+     *
+     * @param jpeg JPEG frame of the equirectangular preview
+     */
+    public void offer(@NonNull byte[] jpeg) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            if (mBusy || mExecutor.isShutdown() || now - mLastOfferMillis < mIntervalMillis) {
+                return;
+            }
+            mBusy = true;
+            mLastOfferMillis = now;
+        }
+        try {
+            mExecutor.execute(() -> {
+                try {
+                    search(jpeg, now);
+                } finally {
+                    synchronized (this) {
+                        mBusy = false;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //Shut down meanwhile.
+            synchronized (this) {
+                mBusy = false;
+            }
+        }
+    }
+
+    private void search(byte[] jpeg, long frameMillis) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (options.outWidth / (2 * options.inSampleSize) >= mWidth) {
+            options.inSampleSize *= 2;
+        }
+        //To make Android API FaceDetector effective, Bitmap.Config.RGB_565 is used.
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap frame = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (frame == null) {
+            return;
+        }
+        if (frame.getWidth() % 2 != 0) {
+            Bitmap even = Bitmap.createBitmap(frame, 0, 0, frame.getWidth() - 1,
+                    frame.getHeight());
+            frame.recycle();
+            frame = even;
+        }
+        List<Face> faces = new ArrayList<>();
+        long start = SystemClock.elapsedRealtime();
+        mEngine.findFaces(new BitmapPixelBuffer(frame), faces);
+        float width = frame.getWidth();
+        float height = frame.getHeight();
+        frame.recycle();
+        float[] priors = new float[5 * faces.size()];
+        for (int index = 0; index < faces.size(); index++) {
+            Face face = faces.get(index);
+            priors[5 * index] = face.getLeftEyeX() / width;
+            priors[5 * index + 1] = face.getLeftEyeY() / height;
+            priors[5 * index + 2] = face.getRightEyeX() / width;
+            priors[5 * index + 3] = face.getRightEyeY() / height;
+            priors[5 * index + 4] = face.getEyeDistance() / width;
+        }
+        synchronized (this) {
+            mPriors = priors;
+            mPriorMillis = frameMillis;
+        }
+        Timber.d("preview priors : %d faces, %d ms", faces.size(),
+                SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * Take the faces of the last frame searched, as they stand when the shutter is released.
+     *
+     * @return faces of a frame younger than the lifetime, or null when there is none
+     */
+    @Nullable
+    public synchronized Snapshot takeSnapshot() {
+        if (mPriors == null || SystemClock.elapsedRealtime() - mPriorMillis > mLifetimeMillis) {
+            return null;
+        }
+        return new Snapshot(mPriors);
+    }
+
+    /**
+     * Stop searching frames. Frames offered later are dropped.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+        synchronized (this) {
+            mPriors = null;
+        }
+    }
+
+    /**
+     * Faces of a preview frame, which apply to an image of any size.
+     */
+    public static class Snapshot {
+        private final float[] mPriors;
+
+        private Snapshot(float[] priors) {
+            this.mPriors = priors;
+        }
+
+        public int getCount() {
+            return mPriors.length / 5;
+        }
+
+        /**
+         * Scale the faces to an image.
+         *
+         * @param width width of the image
+         * @param height height of the image
+         * @param faces list which receives the faces in coordinates of the image
+         */
+        public void getFaces(int width, int height, @NonNull List<Face> faces) {
+            for (int index = 0; index < mPriors.length; index += 5) {
+                faces.add(new Face(mPriors[index] * width, mPriors[index + 1] * height,
+                        mPriors[index + 2] * width, mPriors[index + 3] * height,
+                        mPriors[index + 4] * width));
+            }
+        }
+    }
+}
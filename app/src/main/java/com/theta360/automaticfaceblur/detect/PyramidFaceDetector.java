@@ -0,0 +1,167 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.detect;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.theta360.automaticfaceblur.Face;
+import com.theta360.automaticfaceblur.blur.BitmapPixelBuffer;
+import com.theta360.automaticfaceblur.blur.Cancellable;
+import com.theta360.automaticfaceblur.pool.BitmapPool;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Face detection on two levels of an equirectangular image.
+ *
+ * Large faces, which are close to the camera, are found on a reduced copy of the whole image.
+ * Small faces are far away and therefore close to the horizon, so the full resolution is only
+ * searched in a band of rows around it. Faces found on both levels are kept once, at the full
+ * resolution.
+ */
+public class PyramidFaceDetector {
+    private final FaceDetectorEngine mEngine;
+    private final int mCoarseScale;
+    private final float mBandLatitude;
+    private final List<Face> mLevelFaces = new ArrayList<>();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * Constructor of PyramidFaceDetector.
+     *
+     * @param engine detector run on each level
+     * @param coarseScale reduction of the coarse level, at least 2
+     * @param bandLatitude latitude in degrees above and below the horizon searched at the full
+     *                     resolution
+     */
+    public PyramidFaceDetector(@NonNull FaceDetectorEngine engine, int coarseScale,
+            float bandLatitude) {
+        this(engine, coarseScale, bandLatitude, null);
+    }
+
+    /**
+     * Constructor of PyramidFaceDetector.
+     *
+     * @param engine detector run on each level
+     * @param coarseScale reduction of the coarse level, at least 2
+     * @param bandLatitude latitude in degrees above and below the horizon searched at the full
+     *                     resolution
+     * @param bitmapPool pool providing the bitmaps of the levels, or null to allocate them
+     */
+    public PyramidFaceDetector(@NonNull FaceDetectorEngine engine, int coarseScale,
+            float bandLatitude, @Nullable BitmapPool bitmapPool) {
+        if (coarseScale < 2 || bandLatitude < 0 || bandLatitude > 90) {
+            throw new IllegalArgumentException(
+                    "invalid pyramid: scale " + coarseScale + ", band " + bandLatitude);
+        }
+        this.mEngine = engine;
+        this.mCoarseScale = coarseScale;
+        this.mBandLatitude = bandLatitude;
+        this.mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Find the faces of an image whose rows span the latitudes of the equirectangular image.
+     *
+     * @param image RGB_565 image with an even width
+     * @param cancellable cancellation state checked between levels
+     * @param faces list which receives the faces in coordinates of the image
+     */
+    public void findFaces(@NonNull Bitmap image, @NonNull Cancellable cancellable,
+            @NonNull List<Face> faces) {
+        int first = faces.size();
+        int width = image.getWidth() / mCoarseScale & ~1;
+        int height = image.getHeight() / mCoarseScale;
+        Bitmap coarse = createLevel(width, height);
+        new Canvas(coarse).drawBitmap(image, null, new Rect(0, 0, width, height), mPaint);
+        findFaces(coarse, (float) image.getWidth() / width, (float) image.getHeight() / height,
+                0, faces);
+        releaseLevel(coarse);
+        int coarseEnd = faces.size();
+        if (cancellable.isCancelled()) {
+            return;
+        }
+
+        int bandTop = (int) (image.getHeight() * (0.5f - mBandLatitude / 180));
+        int bandBottom = image.getHeight() - bandTop;
+        if (bandBottom > bandTop) {
+            Bitmap band = createLevel(image.getWidth(), bandBottom - bandTop);
+            new Canvas(band).drawBitmap(image, 0, -bandTop, null);
+            findFaces(band, 1, 1, bandTop, faces);
+            releaseLevel(band);
+        }
+        removeDuplicates(faces, first, coarseEnd);
+    }
+
+    private Bitmap createLevel(int width, int height) {
+        if (mBitmapPool != null) {
+            return mBitmapPool.get(width, height, Bitmap.Config.RGB_565);
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+    }
+
+    private void releaseLevel(Bitmap level) {
+        if (mBitmapPool != null) {
+            mBitmapPool.put(level);
+        } else {
+            level.recycle();
+        }
+    }
+
+    /**
+     * Find the faces of one level and map them to the image.
+     */
+    private void findFaces(Bitmap level, float scaleX, float scaleY, int top, List<Face> faces) {
+        mLevelFaces.clear();
+        mEngine.findFaces(new BitmapPixelBuffer(level), mLevelFaces);
+        for (Face face : mLevelFaces) {
+            faces.add(new Face(face.getLeftEyeX() * scaleX, face.getLeftEyeY() * scaleY + top,
+                    face.getRightEyeX() * scaleX, face.getRightEyeY() * scaleY + top,
+                    face.getEyeDistance() * scaleX));
+        }
+    }
+
+    /**
+     * Remove the coarse faces [from, to) whose center lies within the eye distance of a face
+     * found at the full resolution.
+     */
+    private static void removeDuplicates(List<Face> faces, int from, int to) {
+        for (int coarse = to - 1; coarse >= from; coarse--) {
+            Face face = faces.get(coarse);
+            for (int fine = to; fine < faces.size(); fine++) {
+                if (isSameFace(face, faces.get(fine))) {
+                    faces.remove(coarse);
+                    to--;
+                    break;
+                }
+            }
+        }
+    }
+
+    private static boolean isSameFace(Face face, Face other) {
+        float distance = Math.max(face.getEyeDistance(), other.getEyeDistance());
+        float dx = (face.getLeftEyeX() + face.getRightEyeX()) / 2
+                - (other.getLeftEyeX() + other.getRightEyeX()) / 2;
+        float dy = (face.getLeftEyeY() + face.getRightEyeY()) / 2
+                - (other.getLeftEyeY() + other.getRightEyeY()) / 2;
+        return Math.abs(dx) < distance && Math.abs(dy) < distance;
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.detect;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.theta360.automaticfaceblur.Face;
+import com.theta360.automaticfaceblur.blur.BitmapPixelBuffer;
+import com.theta360.automaticfaceblur.blur.Cancellable;
+import com.theta360.automaticfaceblur.pool.BitmapPool;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Face detection on overlapping vertical tiles of an equirectangular image, searched in
+ * parallel.
+ *
+ * The tiles go around the image like its columns do, so the last tile runs across the seam and
+ * replaces the composite of both sides. Neighboring tiles overlap by more than the width of a
+ * close face, so every face is whole in at least one tile. Faces found in several tiles are
+ * merged by non-maximum suppression on their rectangles, keeping the one farthest from the sides
+ * of its tile, where the detector sees the most context.
+ */
+public class TiledFaceDetector {
+    //Intersection over union above which two faces are the same one.
+    private static final float SAME_FACE_IOU = 0.3f;
+    private final FaceDetectorEngine mEngine;
+    private final int mTileCount;
+    private final float mOverlap;
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * Constructor of TiledFaceDetector.
+     *
+     * @param engine detector run on each tile
+     * @param tileCount number of tiles, at least 2, which are all searched at once when the pool
+     *                  has as many workers
+     * @param overlap width shared by neighboring tiles in parts of the image width, from 0 to 0.5
+     * @param bitmapPool pool providing the bitmaps of the tiles, or null to allocate them
+     */
+    public TiledFaceDetector(@NonNull FaceDetectorEngine engine, int tileCount, float overlap,
+            @Nullable BitmapPool bitmapPool) {
+        if (tileCount < 2 || !(overlap >= 0 && overlap <= 0.5f)) {
+            throw new IllegalArgumentException(
+                    "invalid tiles: " + tileCount + ", overlap " + overlap);
+        }
+        this.mEngine = engine;
+        this.mTileCount = tileCount;
+        this.mOverlap = overlap;
+        this.mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Width of the tiles of an image.
+     *
+     * @param width width of the equirectangular image
+     * @param tileCount number of tiles
+     * @param overlap width shared by neighboring tiles in parts of the image width
+     * @return even width of a tile, at most the image width
+     */
+    public static int getTileWidth(int width, int tileCount, float overlap) {
+        return Math.min(width / tileCount + (int) (width * overlap), width) & ~1;
+    }
+
+    /**
+     * Estimate the memory used by a search: the bitmaps of the tiles, all searched at once.
+     *
+     * @param width width of the equirectangular image
+     * @param height height of the equirectangular image
+     * @param tileCount number of tiles
+     * @param overlap width shared by neighboring tiles in parts of the image width
+     * @return estimated bytes
+     */
+    public static long estimateBytes(int width, int height, int tileCount, float overlap) {
+        return 2L * tileCount * getTileWidth(width, tileCount, overlap) * height;
+    }
+
+    /**
+     * Find the faces of an equirectangular image.
+     *
+     * @param image RGB_565 equirectangular image
+     * @param cancellable cancellation state checked before each tile
+     * @param pool pool running the searches of the tiles
+     * @param faces list which receives the faces in coordinates of the image, with their center
+     *              inside the image
+     */
+    public void findFaces(@NonNull Bitmap image, @NonNull Cancellable cancellable,
+            @NonNull ForkJoinPool pool, @NonNull List<Face> faces) {
+        List<List<Face>> tileFaces = new ArrayList<>();
+        for (int tile = 0; tile < mTileCount; tile++) {
+            tileFaces.add(new ArrayList<>());
+        }
+        pool.invoke(new TilesAction(image, cancellable, tileFaces, 0, mTileCount));
+
+        List<Candidate> candidates = new ArrayList<>();
+        int tileWidth = getTileWidth(image.getWidth(), mTileCount, mOverlap);
+        for (int tile = 0; tile < mTileCount; tile++) {
+            int left = getTileLeft(image.getWidth(), tile);
+            for (Face face : tileFaces.get(tile)) {
+                candidates.add(new Candidate(face, left, tileWidth, image.getWidth()));
+            }
+        }
+        suppress(candidates, image.getWidth(), faces);
+    }
+
+    private int getTileLeft(int width, int tile) {
+        return (int) ((long) width * tile / mTileCount);
+    }
+
+    /**
+     * Keep the candidates from the most central one down, dropping those which overlap a face
+     * already kept.
+     */
+    private static void suppress(List<Candidate> candidates, int width, List<Face> faces) {
+        Collections.sort(candidates, (first, second) -> Float.compare(second.mMargin,
+                first.mMargin));
+        List<Candidate> kept = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            boolean same = false;
+            for (int index = 0; index < kept.size() && !same; index++) {
+                same = intersectionOverUnion(candidate, kept.get(index), width) > SAME_FACE_IOU;
+            }
+            if (!same) {
+                kept.add(candidate);
+                faces.add(candidate.mFace);
+            }
+        }
+    }
+
+    /**
+     * Intersection over union of the squares of two faces, twice the eye distance wide, across
+     * the seam.
+     */
+    private static float intersectionOverUnion(Candidate first, Candidate second, int width) {
+        float dx = Math.abs(first.mCenterX - second.mCenterX);
+        dx = Math.min(dx, width - dx);
+        float dy = Math.abs(first.mCenterY - second.mCenterY);
+        float firstHalf = first.mFace.getEyeDistance();
+        float secondHalf = second.mFace.getEyeDistance();
+        float side = Math.min(firstHalf, secondHalf) * 2;
+        float overlapX = Math.min(firstHalf + secondHalf - dx, side);
+        float overlapY = Math.min(firstHalf + secondHalf - dy, side);
+        if (overlapX <= 0 || overlapY <= 0) {
+            return 0;
+        }
+        float intersection = overlapX * overlapY;
+        float union = 4 * firstHalf * firstHalf + 4 * secondHalf * secondHalf - intersection;
+        return intersection / union;
+    }
+
+    private Bitmap createTile(int width, int height) {
+        if (mBitmapPool != null) {
+            return mBitmapPool.get(width, height, Bitmap.Config.RGB_565);
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+    }
+
+    private void releaseTile(Bitmap tile) {
+        if (mBitmapPool != null) {
+            mBitmapPool.put(tile);
+        } else {
+            tile.recycle();
+        }
+    }
+
+    /**
+     * Face found in a tile, moved to the image.
+     */
+    private static class Candidate {
+        private final Face mFace;
+        private final float mCenterX;
+        private final float mCenterY;
+        //Distance from the center to the closer side of the tile.
+        private final float mMargin;
+
+        private Candidate(Face tileFace, int left, int tileWidth, int width) {
+            float tileCenterX = (tileFace.getLeftEyeX() + tileFace.getRightEyeX()) / 2;
+            float shift = tileCenterX + left >= width ? left - width : left;
+            this.mFace = new Face(tileFace.getLeftEyeX() + shift, tileFace.getLeftEyeY(),
+                    tileFace.getRightEyeX() + shift, tileFace.getRightEyeY(),
+                    tileFace.getEyeDistance());
+            this.mCenterX = tileCenterX + shift;
+            this.mCenterY = (tileFace.getLeftEyeY() + tileFace.getRightEyeY()) / 2;
+            this.mMargin = Math.min(tileCenterX, tileWidth - tileCenterX);
+        }
+    }
+
+    /**
+     * Search of a range of tiles, split down to one tile per leaf.
+     */
+    private class TilesAction extends RecursiveAction {
+        private final Bitmap mImage;
+        private final Cancellable mCancellable;
+        private final List<List<Face>> mTileFaces;
+        private final int mFrom;
+        private final int mTo;
+
+        private TilesAction(Bitmap image, Cancellable cancellable, List<List<Face>> tileFaces,
+                int from, int to) {
+            this.mImage = image;
+            this.mCancellable = cancellable;
+            this.mTileFaces = tileFaces;
+            this.mFrom = from;
+            this.mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > 1) {
+                int middle = (mFrom + mTo) / 2;
+                invokeAll(new TilesAction(mImage, mCancellable, mTileFaces, mFrom, middle),
+                        new TilesAction(mImage, mCancellable, mTileFaces, middle, mTo));
+                return;
+            }
+            if (mCancellable.isCancelled()) {
+                return;
+            }
+            int width = mImage.getWidth();
+            int height = mImage.getHeight();
+            int tileWidth = getTileWidth(width, mTileCount, mOverlap);
+            int left = getTileLeft(width, mFrom);
+            Bitmap tile = createTile(tileWidth, height);
+            try {
+                //A tile running across the seam is drawn from both sides of the image.
+                int firstWidth = Math.min(tileWidth, width - left);
+                Canvas canvas = new Canvas(tile);
+                canvas.drawBitmap(mImage, new Rect(left, 0, left + firstWidth, height),
+                        new Rect(0, 0, firstWidth, height), null);
+                if (firstWidth < tileWidth) {
+                    canvas.drawBitmap(mImage, new Rect(0, 0, tileWidth - firstWidth, height),
+                            new Rect(firstWidth, 0, tileWidth, height), null);
+                }
+                mEngine.findFaces(new BitmapPixelBuffer(tile), mTileFaces.get(mFrom));
+            } finally {
+                releaseTile(tile);
+            }
+        }
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Package storing face detection over the equirectangular image
+ */
+package com.theta360.automaticfaceblur.detect;
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.jpeg;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reader of the entropy-coded data of a JPEG scan, which removes the stuffed zero bytes and
+ * stops at the next marker.
+ */
+final class BitReader {
+    private final InputStream mInput;
+    private long mBuffer;
+    private int mBits;
+    //Marker which ended the data read so far, or -1.
+    private int mMarker = -1;
+
+    BitReader(InputStream input) {
+        this.mInput = input;
+    }
+
+    /**
+     * Look at the next bits without consuming them. Past a marker, the data continues with zeros.
+     *
+     * @param count number of bits, at most 24
+     */
+    int peek(int count) throws IOException {
+        if (mBits < count) {
+            fill();
+        }
+        return (int) (mBuffer >>> (mBits - count)) & ((1 << count) - 1);
+    }
+
+    void skip(int count) {
+        mBits -= count;
+    }
+
+    int read(int count) throws IOException {
+        int value = peek(count);
+        mBits -= count;
+        return value;
+    }
+
+    /**
+     * Read a coefficient of the given size and extend its sign.
+     */
+    int receiveExtend(int size) throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+        int value = read(size);
+        return value < 1 << (size - 1) ? value - (1 << size) + 1 : value;
+    }
+
+    /**
+     * Drop the bits up to the next marker and read the marker.
+     *
+     * @return code of the marker
+     */
+    int readMarker() throws IOException {
+        mBuffer = 0;
+        mBits = 0;
+        if (mMarker < 0) {
+            int value = mInput.read();
+            while (value >= 0 && value != 0xFF) {
+                value = mInput.read();
+            }
+            while (value == 0xFF) {
+                value = mInput.read();
+            }
+            if (value < 0) {
+                throw new EOFException("no marker before the end of the file");
+            }
+            mMarker = value;
+        }
+        int marker = mMarker;
+        mMarker = -1;
+        return marker;
+    }
+
+    private void fill() throws IOException {
+        while (mBits <= 56) {
+            int value = 0;
+            if (mMarker < 0) {
+                value = mInput.read();
+                if (value < 0) {
+                    throw new EOFException("scan ends without a marker");
+                }
+                if (value == 0xFF) {
+                    int next = mInput.read();
+                    while (next == 0xFF) {
+                        next = mInput.read();
+                    }
+                    if (next < 0) {
+                        throw new EOFException("scan ends inside a marker");
+                    }
+                    if (next != 0) {
+                        mMarker = next;
+                        value = 0;
+                    }
+                }
+            }
+            mBuffer = mBuffer << 8 | value;
+            mBits += 8;
+        }
+    }
+}
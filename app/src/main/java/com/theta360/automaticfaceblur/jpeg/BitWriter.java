@@ -0,0 +1,81 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.jpeg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writer of the entropy-coded data of a JPEG scan, which stuffs a zero byte after every 0xFF.
+ */
+final class BitWriter {
+    private final OutputStream mOutput;
+    private int mBuffer;
+    private int mBits;
+
+    BitWriter(OutputStream output) {
+        this.mOutput = output;
+    }
+
+    /**
+     * Write the low bits of a value.
+     *
+     * @param count number of bits, at most 24
+     */
+    void write(int value, int count) throws IOException {
+        mBuffer = mBuffer << count | value & ((1 << count) - 1);
+        mBits += count;
+        while (mBits >= 8) {
+            int octet = mBuffer >>> (mBits - 8) & 0xFF;
+            mOutput.write(octet);
+            if (octet == 0xFF) {
+                mOutput.write(0);
+            }
+            mBits -= 8;
+        }
+    }
+
+    /**
+     * Write the amplitude bits which follow the size category of a coefficient.
+     *
+     * @param value coefficient
+     * @param size size category of the coefficient, from sizeOf()
+     */
+    void writeAmplitude(int value, int size) throws IOException {
+        if (size > 0) {
+            write(value < 0 ? value - 1 : value, size);
+        }
+    }
+
+    /**
+     * @return size category of a coefficient, the number of bits of its magnitude
+     */
+    static int sizeOf(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    /**
+     * Pad the last byte with ones and write a marker.
+     */
+    void writeMarker(int marker) throws IOException {
+        if (mBits > 0) {
+            write(-1, 8 - mBits);
+        }
+        mBuffer = 0;
+        mOutput.write(0xFF);
+        mOutput.write(marker);
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.jpeg;
+
+import java.io.IOException;
+
+/**
+ * Huffman table of a baseline JPEG file, used both to decode and to encode symbols.
+ */
+final class HuffmanTable {
+    //Bits looked up in one step when decoding.
+    private static final int LOOKAHEAD = 9;
+    private final int[] mMaxCode = new int[17];
+    private final int[] mValueOffset = new int[17];
+    private final int[] mValues;
+    //Length in the high byte and symbol in the low byte, or 0 for longer codes.
+    private final int[] mLookup = new int[1 << LOOKAHEAD];
+    private final int[] mCode = new int[256];
+    private final int[] mSize = new int[256];
+
+    /**
+     * Constructor of HuffmanTable.
+     *
+     * @param counts number of codes of each length from 1 to 16, at indices 0 to 15
+     * @param values symbols in the order of their codes
+     */
+    HuffmanTable(int[] counts, int[] values) throws IOException {
+        this.mValues = values;
+        int code = 0;
+        int index = 0;
+        for (int length = 1; length <= 16; length++) {
+            mValueOffset[length] = index - code;
+            for (int count = 0; count < counts[length - 1]; count++) {
+                if (code >= 1 << length) {
+                    throw new IOException("invalid Huffman table");
+                }
+                int symbol = values[index++];
+                mCode[symbol] = code;
+                mSize[symbol] = length;
+                if (length <= LOOKAHEAD) {
+                    int shift = LOOKAHEAD - length;
+                    for (int fill = 0; fill < 1 << shift; fill++) {
+                        mLookup[code << shift | fill] = length << 8 | symbol;
+                    }
+                }
+                code++;
+            }
+            mMaxCode[length] = counts[length - 1] > 0 ? code - 1 : -1;
+            code <<= 1;
+        }
+    }
+
+    /**
+     * Decode the next symbol.
+     */
+    int decode(BitReader reader) throws IOException {
+        int entry = mLookup[reader.peek(LOOKAHEAD)];
+        if (entry != 0) {
+            reader.skip(entry >> 8);
+            return entry & 0xFF;
+        }
+        for (int length = LOOKAHEAD + 1; length <= 16; length++) {
+            int code = reader.peek(length);
+            if (code <= mMaxCode[length]) {
+                reader.skip(length);
+                return mValues[code + mValueOffset[length]];
+            }
+        }
+        throw new IOException("invalid Huffman code");
+    }
+
+    /**
+     * Encode a symbol.
+     *
+     * @throws UnsupportedJpegException when the table has no code for the symbol
+     */
+    void encode(BitWriter writer, int symbol) throws IOException {
+        int size = mSize[symbol];
+        if (size == 0) {
+            throw new UnsupportedJpegException("no Huffman code for symbol " + symbol);
+        }
+        writer.write(mCode[symbol], size);
+    }
+}
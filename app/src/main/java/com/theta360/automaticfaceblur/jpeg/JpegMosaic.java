@@ -0,0 +1,515 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.jpeg;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.theta360.automaticfaceblur.blur.BlurGeometry;
+import com.theta360.automaticfaceblur.blur.MosaicStrategy;
+import com.theta360.automaticfaceblur.blur.RegionSink;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Mosaic applied to a baseline JPEG file on its quantized DCT coefficients, without decoding
+ * the pixels or encoding the image again.
+ *
+ * Rectangles are snapped outwards to a block grid like in BlurEngine. While the scan is copied,
+ * every mosaic block of the grid gets the average DC coefficient of the 8x8 blocks it covers in
+ * each component and no AC coefficient, which makes it one flat color. The grid must be a
+ * multiple of the MCU size, so mosaic blocks never share an 8x8 block with untouched pixels.
+ * Every other block keeps its coefficients, and the file keeps its markers, metadata and
+ * Huffman tables. The scan is processed one row of mosaic blocks at a time, so only the
+ * coefficients of that row are held in memory.
+ */
+public class JpegMosaic implements RegionSink {
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int DHT = 0xC4;
+    private static final int DRI = 0xDD;
+    private static final int RST0 = 0xD0;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mGrid;
+    private final BlurGeometry mGeometry;
+    private final int mColumns;
+    private final int mRows;
+    private final BitSet mPendingBlocks;
+
+    /**
+     * Constructor of JpegMosaic.
+     *
+     * @param width width of the image
+     * @param height height of the image
+     * @param grid size of a mosaic block in pixels, a multiple of the MCU size of the file
+     * @param geometry geometry which widens the blocks towards the poles, or null
+     */
+    public JpegMosaic(int width, int height, int grid, @Nullable BlurGeometry geometry) {
+        if (width <= 0 || height <= 0 || grid <= 0 || grid % 8 != 0) {
+            throw new IllegalArgumentException(
+                    "invalid grid: " + width + "x" + height + " block " + grid);
+        }
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mGrid = grid;
+        this.mGeometry = geometry;
+        this.mColumns = (width + grid - 1) / grid;
+        this.mRows = (height + grid - 1) / grid;
+        this.mPendingBlocks = new BitSet(mColumns * mRows);
+    }
+
+    /**
+     * @return number of grid blocks waiting for write()
+     */
+    public int getPendingBlockCount() {
+        return mPendingBlocks.cardinality();
+    }
+
+    @Override
+    public void add(int x, int y, int width, int height) {
+        int top = Math.max(y, 0);
+        int bottom = Math.min(y + height, mHeight);
+        if (width <= 0 || top >= bottom) {
+            return;
+        }
+        int left = width >= mWidth ? 0 : Math.floorMod(x, mWidth);
+        int right = left + Math.min(width, mWidth);
+        int firstColumn = left / mGrid;
+        for (int row = top / mGrid; row <= (bottom - 1) / mGrid; row++) {
+            int rowStart = row * mColumns;
+            if (right <= mWidth) {
+                mPendingBlocks.set(rowStart + firstColumn, rowStart + (right - 1) / mGrid + 1);
+            } else {
+                mPendingBlocks.set(rowStart + firstColumn, rowStart + mColumns);
+                mPendingBlocks.set(rowStart, rowStart + (right - mWidth - 1) / mGrid + 1);
+            }
+        }
+    }
+
+    /**
+     * Copy a JPEG file with the pending blocks pixelated, and clear the pending set.
+     *
+     * @param input baseline JPEG file of the size given to the constructor
+     * @param output receiver of the pixelated file, which is incomplete when this throws
+     * @throws UnsupportedJpegException when the file is not a single-scan baseline JPEG, or its
+     *                                  Huffman tables lack a code the new coefficients need
+     */
+    public void write(@NonNull InputStream input, @NonNull OutputStream output)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        BufferedOutputStream out = new BufferedOutputStream(output);
+        if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != SOI) {
+            throw new UnsupportedJpegException("not a JPEG file");
+        }
+        out.write(0xFF);
+        out.write(SOI);
+
+        Frame frame = null;
+        HuffmanTable[] dcTables = new HuffmanTable[4];
+        HuffmanTable[] acTables = new HuffmanTable[4];
+        int restartInterval = 0;
+        while (true) {
+            int marker = readMarker(in);
+            if (marker == EOI) {
+                throw new UnsupportedJpegException("no scan in the file");
+            }
+            if (marker == SOI || (marker >= RST0 && marker < RST0 + 8) || marker == 0x01) {
+                throw new UnsupportedJpegException("unexpected marker " + marker);
+            }
+            byte[] segment = new byte[in.readUnsignedShort() - 2];
+            in.readFully(segment);
+            out.write(0xFF);
+            out.write(marker);
+            out.write((segment.length + 2) >> 8);
+            out.write(segment.length + 2);
+            out.write(segment);
+            if (marker == 0xC0 || marker == 0xC1) {
+                frame = new Frame(segment);
+            } else if (marker >= 0xC2 && marker <= 0xCF && marker != DHT && marker != 0xC8
+                    && marker != 0xCC) {
+                throw new UnsupportedJpegException("only baseline JPEG files are handled");
+            } else if (marker == DHT) {
+                readHuffmanTables(segment, dcTables, acTables);
+            } else if (marker == DRI) {
+                restartInterval = (segment[0] & 0xFF) << 8 | segment[1] & 0xFF;
+            } else if (marker == SOS) {
+                if (frame == null) {
+                    throw new UnsupportedJpegException("scan before the frame header");
+                }
+                copyScan(in, out, frame, new Scan(segment, frame, dcTables, acTables),
+                        restartInterval);
+                break;
+            }
+        }
+
+        //Anything after the end of the image, such as data added by the camera, is kept.
+        byte[] buffer = new byte[8192];
+        for (int count = in.read(buffer); count >= 0; count = in.read(buffer)) {
+            out.write(buffer, 0, count);
+        }
+        out.flush();
+        mPendingBlocks.clear();
+    }
+
+    private static int readMarker(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() != 0xFF) {
+            throw new UnsupportedJpegException("marker expected");
+        }
+        int marker = in.readUnsignedByte();
+        while (marker == 0xFF) {
+            marker = in.readUnsignedByte();
+        }
+        return marker;
+    }
+
+    private static void readHuffmanTables(byte[] segment, HuffmanTable[] dcTables,
+            HuffmanTable[] acTables) throws IOException {
+        int position = 0;
+        while (position < segment.length) {
+            int tableClass = (segment[position] & 0xFF) >> 4;
+            int id = segment[position] & 0x0F;
+            if (tableClass > 1 || id > 3) {
+                throw new UnsupportedJpegException("invalid Huffman table " + tableClass + id);
+            }
+            int[] counts = new int[16];
+            int total = 0;
+            for (int length = 0; length < 16; length++) {
+                counts[length] = segment[position + 1 + length] & 0xFF;
+                total += counts[length];
+            }
+            int[] values = new int[total];
+            for (int index = 0; index < total; index++) {
+                values[index] = segment[position + 17 + index] & 0xFF;
+            }
+            HuffmanTable table = new HuffmanTable(counts, values);
+            if (tableClass == 0) {
+                dcTables[id] = table;
+            } else {
+                acTables[id] = table;
+            }
+            position += 17 + total;
+        }
+    }
+
+    /**
+     * Decode the scan one row of mosaic blocks at a time, pixelate the row and encode it again.
+     */
+    private void copyScan(DataInputStream in, OutputStream out, Frame frame, Scan scan,
+            int restartInterval) throws IOException {
+        if (frame.mWidth != mWidth || frame.mHeight != mHeight) {
+            throw new IllegalArgumentException("JPEG file is " + frame.mWidth + "x"
+                    + frame.mHeight + ", expected " + mWidth + "x" + mHeight);
+        }
+        int mcuWidth = 8 * frame.mMaxH;
+        int mcuHeight = 8 * frame.mMaxV;
+        if (mGrid % mcuWidth != 0 || mGrid % mcuHeight != 0) {
+            throw new UnsupportedJpegException(
+                    "grid " + mGrid + " does not fit MCUs of " + mcuWidth + "x" + mcuHeight);
+        }
+        int mcusPerLine = (mWidth + mcuWidth - 1) / mcuWidth;
+        int mcuRows = (mHeight + mcuHeight - 1) / mcuHeight;
+        int stripMcuRows = mGrid / mcuHeight;
+        Component[] components = scan.mComponents;
+        int[][] coefficients = new int[components.length][];
+        for (int index = 0; index < components.length; index++) {
+            Component component = components[index];
+            component.mBlocksPerLine = mcusPerLine * component.mH;
+            coefficients[index] =
+                    new int[component.mBlocksPerLine * stripMcuRows * component.mV * 64];
+        }
+
+        BitReader reader = new BitReader(in);
+        BitWriter writer = new BitWriter(out);
+        int[] readPredictions = new int[components.length];
+        int[] writePredictions = new int[components.length];
+        int readMcus = 0;
+        int writtenMcus = 0;
+        int restarts = 0;
+        for (int row = 0; row < mRows; row++) {
+            int firstMcuRow = row * stripMcuRows;
+            int lastMcuRow = Math.min(firstMcuRow + stripMcuRows, mcuRows);
+            for (int mcuRow = firstMcuRow; mcuRow < lastMcuRow; mcuRow++) {
+                for (int mcu = 0; mcu < mcusPerLine; mcu++) {
+                    if (restartInterval > 0 && readMcus > 0 && readMcus % restartInterval == 0) {
+                        int marker = reader.readMarker();
+                        if (marker < RST0 || marker >= RST0 + 8) {
+                            throw new IOException("restart marker expected, found " + marker);
+                        }
+                        Arrays.fill(readPredictions, 0);
+                    }
+                    decodeMcu(reader, components, coefficients, readPredictions, mcu,
+                            mcuRow - firstMcuRow);
+                    readMcus++;
+                }
+            }
+
+            pixelateRow(row, components, coefficients, frame);
+
+            for (int mcuRow = firstMcuRow; mcuRow < lastMcuRow; mcuRow++) {
+                for (int mcu = 0; mcu < mcusPerLine; mcu++) {
+                    if (restartInterval > 0 && writtenMcus > 0
+                            && writtenMcus % restartInterval == 0) {
+                        writer.writeMarker(RST0 + (restarts++ & 7));
+                        Arrays.fill(writePredictions, 0);
+                    }
+                    encodeMcu(writer, components, coefficients, writePredictions, mcu,
+                            mcuRow - firstMcuRow);
+                    writtenMcus++;
+                }
+            }
+        }
+
+        if (reader.readMarker() != EOI) {
+            throw new UnsupportedJpegException("only single-scan JPEG files are handled");
+        }
+        writer.writeMarker(EOI);
+    }
+
+    private static void decodeMcu(BitReader reader, Component[] components, int[][] coefficients,
+            int[] predictions, int mcu, int mcuRow) throws IOException {
+        for (int index = 0; index < components.length; index++) {
+            Component component = components[index];
+            int[] blocks = coefficients[index];
+            for (int v = 0; v < component.mV; v++) {
+                int blockRow = mcuRow * component.mV + v;
+                for (int h = 0; h < component.mH; h++) {
+                    int base = (blockRow * component.mBlocksPerLine + mcu * component.mH + h)
+                            * 64;
+                    Arrays.fill(blocks, base + 1, base + 64, 0);
+                    predictions[index] +=
+                            reader.receiveExtend(component.mDcTable.decode(reader));
+                    blocks[base] = predictions[index];
+                    for (int k = 1; k < 64; k++) {
+                        int symbol = component.mAcTable.decode(reader);
+                        int size = symbol & 0x0F;
+                        k += symbol >> 4;
+                        if (size == 0) {
+                            if (symbol != 0xF0) {
+                                break;
+                            }
+                            continue;
+                        }
+                        if (k > 63) {
+                            throw new IOException("AC coefficient out of the block");
+                        }
+                        blocks[base + k] = reader.receiveExtend(size);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void encodeMcu(BitWriter writer, Component[] components, int[][] coefficients,
+            int[] predictions, int mcu, int mcuRow) throws IOException {
+        for (int index = 0; index < components.length; index++) {
+            Component component = components[index];
+            int[] blocks = coefficients[index];
+            for (int v = 0; v < component.mV; v++) {
+                int blockRow = mcuRow * component.mV + v;
+                for (int h = 0; h < component.mH; h++) {
+                    int base = (blockRow * component.mBlocksPerLine + mcu * component.mH + h)
+                            * 64;
+                    int difference = blocks[base] - predictions[index];
+                    predictions[index] = blocks[base];
+                    int size = BitWriter.sizeOf(difference);
+                    component.mDcTable.encode(writer, size);
+                    writer.writeAmplitude(difference, size);
+
+                    int run = 0;
+                    for (int k = 1; k < 64; k++) {
+                        int value = blocks[base + k];
+                        if (value == 0) {
+                            run++;
+                            continue;
+                        }
+                        for (; run > 15; run -= 16) {
+                            component.mAcTable.encode(writer, 0xF0);
+                        }
+                        size = BitWriter.sizeOf(value);
+                        component.mAcTable.encode(writer, run << 4 | size);
+                        writer.writeAmplitude(value, size);
+                        run = 0;
+                    }
+                    if (run > 0) {
+                        component.mAcTable.encode(writer, 0x00);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Pixelate the pending blocks of one row of the grid, whose coefficients are buffered.
+     *
+     * Mosaic blocks follow MosaicStrategy: they are widened towards the poles, aligned to the
+     * image and clipped to each run of pending blocks.
+     */
+    private void pixelateRow(int row, Component[] components, int[][] coefficients,
+            Frame frame) {
+        int rowStart = row * mColumns;
+        int blockWidth = mGrid;
+        if (mGeometry != null) {
+            blockWidth *= mGeometry.blockScale(row * mGrid + mGrid / 2,
+                    MosaicStrategy.MAX_BLOCK_SCALE);
+        }
+        int rowHeight = Math.min(mGrid, mHeight - row * mGrid);
+        int first = mPendingBlocks.nextSetBit(rowStart);
+        while (first >= 0 && first < rowStart + mColumns) {
+            int last = Math.min(mPendingBlocks.nextClearBit(first), rowStart + mColumns);
+            int runLeft = (first - rowStart) * mGrid;
+            int runRight = Math.min((last - rowStart) * mGrid, mWidth);
+            for (int blockLeft = runLeft / blockWidth * blockWidth; blockLeft < runRight;
+                    blockLeft += blockWidth) {
+                int left = Math.max(blockLeft, runLeft);
+                int right = Math.min(blockLeft + blockWidth, runRight);
+                for (int index = 0; index < components.length; index++) {
+                    flatten(components[index], coefficients[index], frame, left, right,
+                            rowHeight);
+                }
+            }
+            first = mPendingBlocks.nextSetBit(last);
+        }
+    }
+
+    /**
+     * Give the 8x8 blocks of a component under the columns [left, right) of the buffered row
+     * their average DC coefficient and no AC coefficient.
+     */
+    private static void flatten(Component component, int[] blocks, Frame frame, int left,
+            int right, int rowHeight) {
+        int blockWidth = 8 * frame.mMaxH / component.mH;
+        int blockHeight = 8 * frame.mMaxV / component.mV;
+        int firstColumn = left / blockWidth;
+        int lastColumn = (right + blockWidth - 1) / blockWidth;
+        int lastRow = (rowHeight + blockHeight - 1) / blockHeight;
+        long sum = 0;
+        for (int blockRow = 0; blockRow < lastRow; blockRow++) {
+            for (int column = firstColumn; column < lastColumn; column++) {
+                sum += blocks[(blockRow * component.mBlocksPerLine + column) * 64];
+            }
+        }
+        int count = lastRow * (lastColumn - firstColumn);
+        int average = (int) Math.floor((double) sum / count + 0.5);
+        for (int blockRow = 0; blockRow < lastRow; blockRow++) {
+            for (int column = firstColumn; column < lastColumn; column++) {
+                int base = (blockRow * component.mBlocksPerLine + column) * 64;
+                blocks[base] = average;
+                Arrays.fill(blocks, base + 1, base + 64, 0);
+            }
+        }
+    }
+
+    /**
+     * Frame header of a baseline JPEG file.
+     */
+    private static class Frame {
+        private final int mWidth;
+        private final int mHeight;
+        private final Component[] mComponents;
+        private int mMaxH;
+        private int mMaxV;
+
+        private Frame(byte[] segment) throws IOException {
+            if ((segment[0] & 0xFF) != 8) {
+                throw new UnsupportedJpegException("only 8 bit samples are handled");
+            }
+            this.mHeight = (segment[1] & 0xFF) << 8 | segment[2] & 0xFF;
+            this.mWidth = (segment[3] & 0xFF) << 8 | segment[4] & 0xFF;
+            if (mHeight == 0) {
+                throw new UnsupportedJpegException("height defined by DNL is not handled");
+            }
+            this.mComponents = new Component[segment[5] & 0xFF];
+            for (int index = 0; index < mComponents.length; index++) {
+                int position = 6 + 3 * index;
+                //The blocks of a single component are scanned one by one, whatever its sampling.
+                boolean single = mComponents.length == 1;
+                Component component = new Component(segment[position] & 0xFF,
+                        single ? 1 : (segment[position + 1] & 0xFF) >> 4,
+                        single ? 1 : segment[position + 1] & 0x0F);
+                if (component.mH < 1 || component.mH > 4 || component.mV < 1
+                        || component.mV > 4) {
+                    throw new IOException("invalid sampling factors");
+                }
+                mComponents[index] = component;
+                mMaxH = Math.max(mMaxH, component.mH);
+                mMaxV = Math.max(mMaxV, component.mV);
+            }
+        }
+    }
+
+    /**
+     * Scan header, which must cover every component of the frame.
+     */
+    private static class Scan {
+        private final Component[] mComponents;
+
+        private Scan(byte[] segment, Frame frame, HuffmanTable[] dcTables,
+                HuffmanTable[] acTables) throws IOException {
+            int count = segment[0] & 0xFF;
+            if (count != frame.mComponents.length || frame.mComponents.length > 4) {
+                throw new UnsupportedJpegException("only interleaved single scans are handled");
+            }
+            this.mComponents = new Component[count];
+            for (int index = 0; index < count; index++) {
+                int id = segment[1 + 2 * index] & 0xFF;
+                int tables = segment[2 + 2 * index] & 0xFF;
+                Component component = null;
+                for (Component candidate : frame.mComponents) {
+                    if (candidate.mId == id) {
+                        component = candidate;
+                    }
+                }
+                if (component == null || dcTables[tables >> 4 & 3] == null
+                        || acTables[tables & 3] == null) {
+                    throw new IOException("scan component " + id + " is not defined");
+                }
+                component.mDcTable = dcTables[tables >> 4 & 3];
+                component.mAcTable = acTables[tables & 3];
+                mComponents[index] = component;
+            }
+            int position = 1 + 2 * count;
+            if (segment[position] != 0 || (segment[position + 1] & 0xFF) != 63
+                    || segment[position + 2] != 0) {
+                throw new UnsupportedJpegException("only sequential scans are handled");
+            }
+        }
+    }
+
+    /**
+     * Component of the frame with the tables its scan uses.
+     */
+    private static class Component {
+        private final int mId;
+        private final int mH;
+        private final int mV;
+        private HuffmanTable mDcTable;
+        private HuffmanTable mAcTable;
+        private int mBlocksPerLine;
+
+        private Component(int id, int h, int v) {
+            this.mId = id;
+            this.mH = h;
+            this.mV = v;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.jpeg;
+
+import android.support.annotation.NonNull;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Baseline JPEG encoder fed with the image one strip of rows at a time, so the whole image
+ * never has to be held in memory.
+ *
+ * The file is a JFIF file with the luma and chroma tables of the JPEG standard scaled like
+ * libjpeg does for the quality, chroma subsampled by 2 in both directions and the standard
+ * Huffman tables, which is what Bitmap.compress() writes. Every strip but the last must span a
+ * multiple of 16 rows, the height of an MCU.
+ */
+public class JpegStripEncoder {
+    //Rows of an MCU, luma sampled at full resolution and chroma at half resolution.
+    public static final int MCU_SIZE = 16;
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63};
+    private static final int[] LUMA_QUANTIZATION = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99};
+    private static final int[] CHROMA_QUANTIZATION = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99};
+    private static final int[] DC_LUMA_COUNTS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] DC_CHROMA_COUNTS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] AC_LUMA_COUNTS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] AC_LUMA_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51,
+            0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1,
+            0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18,
+            0x19, 0x1a, 0x25, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57,
+            0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75,
+            0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92,
+            0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8,
+            0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa};
+    private static final int[] AC_CHROMA_COUNTS =
+            {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] AC_CHROMA_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07,
+            0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09,
+            0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25,
+            0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56,
+            0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74,
+            0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba,
+            0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6,
+            0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa};
+    //Scale factors of the AAN DCT for each row and column.
+    private static final double[] AAN_SCALES = {1.0, 1.387039845, 1.306562965, 1.175875602,
+            1.0, 0.785694958, 0.541196100, 0.275899379};
+    private final BufferedOutputStream mOutput;
+    private final BitWriter mWriter;
+    private final int mWidth;
+    private final int mHeight;
+    private final int[] mLumaTable = new int[64];
+    private final int[] mChromaTable = new int[64];
+    //Reciprocals of the quantization steps scaled for the AAN DCT, in natural order.
+    private final float[] mLumaDivisors = new float[64];
+    private final float[] mChromaDivisors = new float[64];
+    private final HuffmanTable mDcLuma;
+    private final HuffmanTable mAcLuma;
+    private final HuffmanTable mDcChroma;
+    private final HuffmanTable mAcChroma;
+    private final float[] mBlock = new float[64];
+    private final float[] mCb = new float[64];
+    private final float[] mCr = new float[64];
+    private int mLumaPrediction;
+    private int mCbPrediction;
+    private int mCrPrediction;
+    private int mRows;
+
+    /**
+     * Constructor of JpegStripEncoder, which writes the headers of the file.
+     *
+     * @param output receiver of the file
+     * @param width width of the image
+     * @param height height of the image
+     * @param quality quality from 1 to 100, as for Bitmap.compress()
+     */
+    public JpegStripEncoder(@NonNull OutputStream output, int width, int height, int quality)
+            throws IOException {
+        if (width <= 0 || height <= 0 || width > 0xFFFF || height > 0xFFFF || quality < 1
+                || quality > 100) {
+            throw new IllegalArgumentException(
+                    "invalid JPEG: " + width + "x" + height + " quality " + quality);
+        }
+        this.mOutput = new BufferedOutputStream(output);
+        this.mWriter = new BitWriter(mOutput);
+        this.mWidth = width;
+        this.mHeight = height;
+        int scale = quality < 50 ? 5000 / quality : 200 - 2 * quality;
+        for (int index = 0; index < 64; index++) {
+            mLumaTable[index] = Math.min(Math.max((LUMA_QUANTIZATION[index] * scale + 50) / 100,
+                    1), 255);
+            mChromaTable[index] = Math.min(Math.max(
+                    (CHROMA_QUANTIZATION[index] * scale + 50) / 100, 1), 255);
+            double aan = AAN_SCALES[index >> 3] * AAN_SCALES[index & 7] * 8;
+            mLumaDivisors[index] = (float) (1 / (mLumaTable[index] * aan));
+            mChromaDivisors[index] = (float) (1 / (mChromaTable[index] * aan));
+        }
+        mDcLuma = new HuffmanTable(DC_LUMA_COUNTS, DC_VALUES);
+        mAcLuma = new HuffmanTable(AC_LUMA_COUNTS, AC_LUMA_VALUES);
+        mDcChroma = new HuffmanTable(DC_CHROMA_COUNTS, DC_VALUES);
+        mAcChroma = new HuffmanTable(AC_CHROMA_COUNTS, AC_CHROMA_VALUES);
+        writeHeaders();
+    }
+
+    private void writeHeaders() throws IOException {
+        mOutput.write(new byte[]{(byte) 0xFF, (byte) 0xD8});
+        //JFIF 1.1 without density or thumbnail.
+        writeSegment(0xE0, new byte[]{'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+
+        byte[] tables = new byte[2 * 65];
+        for (int index = 0; index < 64; index++) {
+            tables[1 + index] = (byte) mLumaTable[ZIGZAG[index]];
+            tables[66 + index] = (byte) mChromaTable[ZIGZAG[index]];
+        }
+        tables[65] = 1;
+        writeSegment(0xDB, tables);
+
+        writeSegment(0xC0, new byte[]{8, (byte) (mHeight >> 8), (byte) mHeight,
+                (byte) (mWidth >> 8), (byte) mWidth, 3, 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+
+        writeHuffmanTable(0x00, DC_LUMA_COUNTS, DC_VALUES);
+        writeHuffmanTable(0x10, AC_LUMA_COUNTS, AC_LUMA_VALUES);
+        writeHuffmanTable(0x01, DC_CHROMA_COUNTS, DC_VALUES);
+        writeHuffmanTable(0x11, AC_CHROMA_COUNTS, AC_CHROMA_VALUES);
+
+        writeSegment(0xDA, new byte[]{3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+    }
+
+    private void writeHuffmanTable(int classAndId, int[] counts, int[] values)
+            throws IOException {
+        byte[] segment = new byte[17 + values.length];
+        segment[0] = (byte) classAndId;
+        for (int index = 0; index < 16; index++) {
+            segment[1 + index] = (byte) counts[index];
+        }
+        for (int index = 0; index < values.length; index++) {
+            segment[17 + index] = (byte) values[index];
+        }
+        writeSegment(0xC4, segment);
+    }
+
+    private void writeSegment(int marker, byte[] segment) throws IOException {
+        mOutput.write(0xFF);
+        mOutput.write(marker);
+        mOutput.write((segment.length + 2) >> 8);
+        mOutput.write(segment.length + 2);
+        mOutput.write(segment);
+    }
+
+    /**
+     * @return rows encoded so far
+     */
+    public int getRows() {
+        return mRows;
+    }
+
+    /**
+     * Encode the next rows of the image.
+     *
+     * @param pixels ARGB pixels of the rows, whose alpha is ignored
+     * @param offset index of the first pixel
+     * @param stride distance between two rows
+     * @param rows number of rows, a multiple of MCU_SIZE unless they end the image
+     */
+    public void write(int[] pixels, int offset, int stride, int rows) throws IOException {
+        if (rows <= 0 || mRows + rows > mHeight
+                || (rows % MCU_SIZE != 0 && mRows + rows != mHeight)) {
+            throw new IllegalArgumentException("invalid strip of " + rows + " rows at row "
+                    + mRows + " of " + mHeight);
+        }
+        for (int top = 0; top < rows; top += MCU_SIZE) {
+            int mcuRows = Math.min(MCU_SIZE, rows - top);
+            for (int left = 0; left < mWidth; left += MCU_SIZE) {
+                encodeMcu(pixels, offset + top * stride, stride, left, mcuRows);
+            }
+        }
+        mRows += rows;
+    }
+
+    /**
+     * Write the end of the file once every row is encoded.
+     */
+    public void finish() throws IOException {
+        if (mRows != mHeight) {
+            throw new IllegalStateException(mRows + " rows encoded of " + mHeight);
+        }
+        mWriter.writeMarker(0xD9);
+        mOutput.flush();
+    }
+
+    /**
+     * Encode the four luma blocks and the two chroma blocks of one MCU, repeating the last
+     * column and row of the image where the MCU goes beyond it.
+     */
+    private void encodeMcu(int[] pixels, int offset, int stride, int left, int rows)
+            throws IOException {
+        for (int index = 0; index < 64; index++) {
+            mCb[index] = 0;
+            mCr[index] = 0;
+        }
+        for (int block = 0; block < 4; block++) {
+            int blockX = left + (block & 1) * 8;
+            int blockY = (block >> 1) * 8;
+            for (int y = 0; y < 8; y++) {
+                int rowStart = offset + Math.min(blockY + y, rows - 1) * stride;
+                int chromaRow = ((blockY + y) >> 1) * 8;
+                for (int x = 0; x < 8; x++) {
+                    int color = pixels[rowStart + Math.min(blockX + x, mWidth - 1)];
+                    int red = color >> 16 & 0xFF;
+                    int green = color >> 8 & 0xFF;
+                    int blue = color & 0xFF;
+                    mBlock[y * 8 + x] = 0.299f * red + 0.587f * green + 0.114f * blue - 128;
+                    int chroma = chromaRow + ((blockX - left + x) >> 1);
+                    mCb[chroma] += -0.168736f * red - 0.331264f * green + 0.5f * blue;
+                    mCr[chroma] += 0.5f * red - 0.418688f * green - 0.081312f * blue;
+                }
+            }
+            mLumaPrediction = encodeBlock(mBlock, mLumaDivisors, mLumaPrediction, mDcLuma,
+                    mAcLuma);
+        }
+        //Average of 2x2 pixels, already centered on 0.
+        for (int index = 0; index < 64; index++) {
+            mCb[index] *= 0.25f;
+            mCr[index] *= 0.25f;
+        }
+        mCbPrediction = encodeBlock(mCb, mChromaDivisors, mCbPrediction, mDcChroma, mAcChroma);
+        mCrPrediction = encodeBlock(mCr, mChromaDivisors, mCrPrediction, mDcChroma, mAcChroma);
+    }
+
+    /**
+     * Transform, quantize and encode one block of samples centered on 0.
+     *
+     * @return DC coefficient of the block, the prediction of the next block
+     */
+    private int encodeBlock(float[] block, float[] divisors, int prediction, HuffmanTable dc,
+            HuffmanTable ac) throws IOException {
+        forwardDct(block);
+        int value = Math.round(block[0] * divisors[0]);
+        int difference = value - prediction;
+        int size = BitWriter.sizeOf(difference);
+        dc.encode(mWriter, size);
+        mWriter.writeAmplitude(difference, size);
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int natural = ZIGZAG[k];
+            int coefficient = Math.round(block[natural] * divisors[natural]);
+            if (coefficient == 0) {
+                run++;
+                continue;
+            }
+            for (; run > 15; run -= 16) {
+                ac.encode(mWriter, 0xF0);
+            }
+            size = BitWriter.sizeOf(coefficient);
+            ac.encode(mWriter, run << 4 | size);
+            mWriter.writeAmplitude(coefficient, size);
+            run = 0;
+        }
+        if (run > 0) {
+            ac.encode(mWriter, 0x00);
+        }
+        return value;
+    }
+
+    /**
+     * Floating point AAN forward DCT in place, leaving out the scale factors which the divisors
+     * hold.
+     */
+    private static void forwardDct(float[] block) {
+        for (int pass = 0; pass < 2; pass++) {
+            //Rows first, then columns.
+            int step = pass == 0 ? 1 : 8;
+            int next = pass == 0 ? 8 : 1;
+            for (int line = 0; line < 8; line++) {
+                int base = line * next;
+                float d0 = block[base];
+                float d1 = block[base + step];
+                float d2 = block[base + 2 * step];
+                float d3 = block[base + 3 * step];
+                float d4 = block[base + 4 * step];
+                float d5 = block[base + 5 * step];
+                float d6 = block[base + 6 * step];
+                float d7 = block[base + 7 * step];
+
+                float tmp0 = d0 + d7;
+                float tmp7 = d0 - d7;
+                float tmp1 = d1 + d6;
+                float tmp6 = d1 - d6;
+                float tmp2 = d2 + d5;
+                float tmp5 = d2 - d5;
+                float tmp3 = d3 + d4;
+                float tmp4 = d3 - d4;
+
+                //Even part.
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+                block[base] = tmp10 + tmp11;
+                block[base + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                block[base + 2 * step] = tmp13 + z1;
+                block[base + 6 * step] = tmp13 - z1;
+
+                //Odd part.
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+                block[base + 5 * step] = z13 + z2;
+                block[base + 3 * step] = z13 - z2;
+                block[base + step] = z11 + z4;
+                block[base + 7 * step] = z11 - z4;
+            }
+        }
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Package storing the baseline JPEG transcoder which pixelates faces on quantized coefficients
+ */
+package com.theta360.automaticfaceblur.jpeg;
@@ -0,0 +1,238 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.pool;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import timber.log.Timber;
+
+/**
+ * Pool of mutable bitmaps reused from one image to the next.
+ *
+ * Every shot needs bitmaps of the same few sizes, so bitmaps given back to the pool are kept up
+ * to a byte budget and handed out again for an exact match of width, height and config, either
+ * erased or as the target of a decode through BitmapFactory.Options.inBitmap. The least recently
+ * given back bitmaps are dropped first when the budget is exceeded or the system asks to trim
+ * memory. The pool may be used from several threads.
+ */
+public class BitmapPool implements ComponentCallbacks2 {
+    private final long mMaxBytes;
+    //Pooled bitmaps, the least recently given back first.
+    private final List<Bitmap> mBitmaps = new ArrayList<>();
+    private long mBytes;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * Constructor of BitmapPool.
+     *
+     * @param maxBytes budget of the pooled bitmaps in bytes
+     */
+    public BitmapPool(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("invalid budget: " + maxBytes);
+        }
+        this.mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return number of requests served by a pooled bitmap
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return number of requests which allocated a new bitmap
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return bytes held by the pooled bitmaps
+     */
+    public synchronized long getPooledBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @param width width of a request
+     * @param height height of a request
+     * @param config config of a request
+     * @return bytes of the pooled bitmap which the request would reuse, or 0 when none matches
+     */
+    public synchronized long getMatchingBytes(int width, int height,
+            @NonNull Bitmap.Config config) {
+        for (Bitmap bitmap : mBitmaps) {
+            if (matches(bitmap, width, height, config)) {
+                return bitmap.getAllocationByteCount();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Get a mutable bitmap erased to transparent.
+     *
+     * @param width width of the bitmap
+     * @param height height of the bitmap
+     * @param config config of the bitmap
+     * @return pooled bitmap, or a new one when none matches
+     */
+    @NonNull
+    public Bitmap get(int width, int height, @NonNull Bitmap.Config config) {
+        Bitmap bitmap = take(width, height, config);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    /**
+     * Decode a file into a pooled bitmap when one has the size and config of the result. The
+     * bitmap is mutable.
+     *
+     * @param fileUrl path of the file
+     * @param options options of the decode, whose inSampleSize and inPreferredConfig are used
+     * @return decoded image, or null when the file cannot be decoded
+     */
+    @Nullable
+    public Bitmap decodeFile(@NonNull String fileUrl, @NonNull BitmapFactory.Options options)
+            throws IOException {
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(fileUrl, options);
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        Bitmap.Config config = options.inPreferredConfig != null
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        Bitmap reused = options.outWidth > 0 && options.outHeight > 0
+                ? take(options.outWidth, options.outHeight, config) : null;
+        options.inBitmap = reused;
+        try {
+            return decodeStream(fileUrl, options);
+        } catch (IllegalArgumentException e) {
+            if (reused == null) {
+                throw e;
+            }
+            //The decoder refused the pooled bitmap, so keep it for another request.
+            Timber.d("inBitmap not reused : %s", e.getMessage());
+            options.inBitmap = null;
+            put(reused);
+            return decodeStream(fileUrl, options);
+        } finally {
+            options.inBitmap = null;
+        }
+    }
+
+    private static Bitmap decodeStream(String fileUrl, BitmapFactory.Options options)
+            throws IOException {
+        try (FileInputStream fileInputStream = new FileInputStream(fileUrl)) {
+            return BitmapFactory.decodeStream(fileInputStream, null, options);
+        }
+    }
+
+    /**
+     * Give a bitmap back to the pool. The caller must not use it afterwards.
+     *
+     * @param bitmap bitmap to reuse, or null
+     */
+    public void put(@Nullable Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmap.getAllocationByteCount() > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        synchronized (this) {
+            mBitmaps.add(bitmap);
+            mBytes += bitmap.getAllocationByteCount();
+            trimTo(mMaxBytes);
+        }
+    }
+
+    /**
+     * Recycle the pooled bitmaps.
+     */
+    public synchronized void clear() {
+        trimTo(0);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        //The plugin works without a UI, so hiding it releases nothing.
+        if (level == TRIM_MEMORY_UI_HIDDEN) {
+            return;
+        }
+        synchronized (this) {
+            trimTo(level >= TRIM_MEMORY_RUNNING_LOW ? 0 : mMaxBytes / 2);
+            Timber.d("onTrimMemory : level %d, %d bytes pooled", level, mBytes);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+
+    }
+
+    /**
+     * Take the pooled bitmap matching a request out of the pool, counting the hit or miss.
+     */
+    private synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+        for (int index = mBitmaps.size() - 1; index >= 0; index--) {
+            Bitmap bitmap = mBitmaps.get(index);
+            if (matches(bitmap, width, height, config)) {
+                mBitmaps.remove(index);
+                mBytes -= bitmap.getAllocationByteCount();
+                mHitCount++;
+                return bitmap;
+            }
+        }
+        mMissCount++;
+        return null;
+    }
+
+    private static boolean matches(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        return bitmap.getWidth() == width && bitmap.getHeight() == height
+                && bitmap.getConfig() == config;
+    }
+
+    /**
+     * Recycle the least recently given back bitmaps until the pool holds at most maxBytes.
+     */
+    private void trimTo(long maxBytes) {
+        while (mBytes > maxBytes) {
+            Bitmap bitmap = mBitmaps.remove(0);
+            mBytes -= bitmap.getAllocationByteCount();
+            bitmap.recycle();
+        }
+    }
+}
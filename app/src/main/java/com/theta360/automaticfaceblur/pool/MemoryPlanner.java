@@ -0,0 +1,163 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.pool;
+
+import android.support.annotation.NonNull;
+import com.theta360.automaticfaceblur.detect.CubemapFaceDetector;
+import com.theta360.automaticfaceblur.detect.TiledFaceDetector;
+import timber.log.Timber;
+
+/**
+ * Estimate of the heap needed by each way of processing an image, and trace of the heap used by
+ * a job.
+ *
+ * The estimates add up the bitmaps alive at the peak of each mode for the image size, so the
+ * task can pick a mode which fits the free heap before it allocates anything. Bitmap pixels are
+ * counted on the Java heap, where they live up to Android 7.
+ */
+public class MemoryPlanner {
+    private static final long MEGABYTE = 1024 * 1024;
+    //Share of the image the patches of the region decode are assumed to cover at most.
+    private static final int REGION_PATCH_SHARE = 8;
+    private final Runtime mRuntime = Runtime.getRuntime();
+    private final long mWidth;
+    private final long mHeight;
+    private final int mPyramidScale;
+    private final int mCubemapParallelism;
+    private final int mTileCount;
+    private final float mTileOverlap;
+    private long mPeakBytes;
+
+    /**
+     * Way of processing an image.
+     */
+    public enum Mode {
+        //Whole ARGB_8888 image decoded, blurred and encoded.
+        FULL,
+        //Face regions decoded one by one, whole image decoded only for the output.
+        REGION,
+        //Face regions decoded one by one, output decoded and encoded in strips of rows.
+        BAND,
+        //Faces pixelated on the JPEG coefficients, no ARGB_8888 image at all.
+        JPEG
+    }
+
+    /**
+     * Constructor of MemoryPlanner.
+     *
+     * @param width width of the image
+     * @param height height of the image
+     * @param pyramidScale reduction of the coarse level of the pyramid detection, or 0 without
+     *                     the pyramid
+     * @param cubemapParallelism faces of the cube searched at once by the cubemap detection, or
+     *                           0 without the cubemap
+     * @param tileCount tiles of the tiled detection, or 0 without the tiles
+     * @param tileOverlap width shared by neighboring tiles in parts of the image width
+     */
+    public MemoryPlanner(int width, int height, int pyramidScale, int cubemapParallelism,
+            int tileCount, float tileOverlap) {
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mPyramidScale = pyramidScale;
+        this.mCubemapParallelism = cubemapParallelism;
+        this.mTileCount = tileCount;
+        this.mTileOverlap = tileOverlap;
+        this.mPeakBytes = getUsedBytes();
+    }
+
+    /**
+     * Estimate the peak of the bitmaps and buffers of a mode.
+     *
+     * @param mode way of processing the image
+     * @param detectionSample reduction of the image given to the face detector in this mode
+     * @param rows rows processed at once: a mosaic block in the JPEG mode, a strip in the band
+     *             mode
+     * @return estimated bytes
+     */
+    public long estimate(@NonNull Mode mode, int detectionSample, int rows) {
+        long fullImage = 4 * mWidth * mHeight;
+        long detection = estimateDetection(detectionSample);
+        switch (mode) {
+            case REGION:
+                return Math.max(detection, fullImage + fullImage / REGION_PATCH_SHARE);
+            case BAND:
+                //The decoded strip and its pixels, next to the patches.
+                return Math.max(detection,
+                        fullImage / REGION_PATCH_SHARE + 2 * 4 * mWidth * rows);
+            case JPEG:
+                //Coefficients of one grid row of MCU rows, luma and two chroma components.
+                return detection + 3 * 4 * mWidth * (rows + 16);
+            case FULL:
+            default:
+                return fullImage + detection;
+        }
+    }
+
+    /**
+     * Detection image, plus the largest of the copies of the seam band made for the detector, the
+     * pyramid levels, the faces of the cube and the tiles.
+     */
+    private long estimateDetection(int sample) {
+        long image = 2 * (mWidth / sample) * (mHeight / sample);
+        //The copies of the seam band, as ARGB pixels and an RGB_565 bitmap, stay below half of
+        //the detection image, like the rectangles cropped by the prefilter.
+        long work = image / 2;
+        if (mPyramidScale > 0) {
+            //The band around the horizon is at most the whole image.
+            work = Math.max(work, image / ((long) mPyramidScale * mPyramidScale) + image);
+        }
+        if (mCubemapParallelism > 0) {
+            work = Math.max(work, CubemapFaceDetector.estimateBytes((int) (mWidth / sample),
+                    (int) (mHeight / sample), mCubemapParallelism));
+        }
+        if (mTileCount > 0) {
+            work = Math.max(work, TiledFaceDetector.estimateBytes((int) (mWidth / sample),
+                    (int) (mHeight / sample), mTileCount, mTileOverlap));
+        }
+        return image + work;
+    }
+
+    /**
+     * @param reusableBytes bytes held by the heap which the job can reuse, like pooled bitmaps
+     * @return bytes the job can still allocate
+     */
+    public long getAvailableBytes(long reusableBytes) {
+        return mRuntime.maxMemory() - getUsedBytes() + reusableBytes;
+    }
+
+    /**
+     * @return highest heap use seen by trace()
+     */
+    public long getPeakBytes() {
+        return mPeakBytes;
+    }
+
+    /**
+     * Record the heap used at a stage of the job.
+     *
+     * @param stage name of the stage
+     */
+    public void trace(@NonNull String stage) {
+        long used = getUsedBytes();
+        mPeakBytes = Math.max(mPeakBytes, used);
+        Timber.d("memory %s : %d MB used, %d MB peak, %d MB max", stage, used / MEGABYTE,
+                mPeakBytes / MEGABYTE, mRuntime.maxMemory() / MEGABYTE);
+    }
+
+    private long getUsedBytes() {
+        return mRuntime.totalMemory() - mRuntime.freeMemory();
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Package storing the memory management of the image pipeline
+ */
+package com.theta360.automaticfaceblur.pool;
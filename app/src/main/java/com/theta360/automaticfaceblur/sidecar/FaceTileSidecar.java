@@ -0,0 +1,248 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.sidecar;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.support.annotation.NonNull;
+import com.theta360.automaticfaceblur.blur.RegionSink;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Encrypted file holding the original pixels of the blurred regions of an image.
+ *
+ * The regions are added as rectangles, then written as JPEG tiles encrypted with AES/GCM under a
+ * key kept in the Android key store of the camera, so the tiles can only be restored on the
+ * device which shot the image. The tiles are a small part of the image, which lets the unblurred
+ * original be deleted once the tile file and the blurred image are written.
+ *
+ * The file starts with a magic number and the GCM initialization vector in clear, followed by
+ * the encrypted image size, tile count and tiles, each as x, y, width, height and JPEG bytes.
+ */
+public class FaceTileSidecar implements RegionSink {
+    public static final String EXTENSION = ".TILES";
+    //"FTS1"
+    private static final int MAGIC = 0x46545331;
+    private static final String KEY_STORE = "AndroidKeyStore";
+    private static final String KEY_ALIAS = "face_tiles";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int TAG_LENGTH = 128;
+    private static final int TILE_QUALITY = 100;
+    private final int mWidth;
+    private final int mHeight;
+    //Tiles as x, y, width, height.
+    private int[] mTiles = new int[64];
+    private int mTileCount;
+
+    /**
+     * Constructor of FaceTileSidecar.
+     *
+     * @param width width of the image
+     * @param height height of the image
+     */
+    public FaceTileSidecar(int width, int height) {
+        this.mWidth = width;
+        this.mHeight = height;
+    }
+
+    public int getTileCount() {
+        return mTileCount;
+    }
+
+    /**
+     * Add a tile. Tiles must lie inside the image and must not overlap.
+     */
+    @Override
+    public void add(int x, int y, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        if (x < 0 || y < 0 || x + width > mWidth || y + height > mHeight) {
+            throw new IllegalArgumentException(
+                    "tile out of image: " + x + "," + y + " " + width + "x" + height);
+        }
+        if (mTiles.length < 4 * (mTileCount + 1)) {
+            mTiles = Arrays.copyOf(mTiles, 2 * mTiles.length);
+        }
+        int index = 4 * mTileCount++;
+        mTiles[index] = x;
+        mTiles[index + 1] = y;
+        mTiles[index + 2] = width;
+        mTiles[index + 3] = height;
+    }
+
+    /**
+     * Write the tiles cut from the original image to a file.
+     *
+     * @param file file to write, replaced if it exists
+     * @param original unblurred image
+     */
+    public void write(@NonNull File file, @NonNull Bitmap original)
+            throws IOException, GeneralSecurityException {
+        if (original.getWidth() != mWidth || original.getHeight() != mHeight) {
+            throw new IllegalArgumentException("size of original differs from the tiles");
+        }
+        write(file, (x, y, width, height) -> Bitmap.createBitmap(original, x, y, width, height));
+    }
+
+    /**
+     * Write the tiles decoded from the original image file to a file.
+     *
+     * @param file file to write, replaced if it exists
+     * @param decoder decoder of the unblurred image file
+     */
+    public void write(@NonNull File file, @NonNull BitmapRegionDecoder decoder)
+            throws IOException, GeneralSecurityException {
+        if (decoder.getWidth() != mWidth || decoder.getHeight() != mHeight) {
+            throw new IllegalArgumentException("size of original differs from the tiles");
+        }
+        write(file, (x, y, width, height) -> {
+            Bitmap tile = decoder.decodeRegion(new Rect(x, y, x + width, y + height), null);
+            if (tile == null) {
+                throw new IOException("cannot decode tile " + x + "," + y);
+            }
+            return tile;
+        });
+    }
+
+    private void write(File file, TileSource source) throws IOException, GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, getKey());
+        byte[] iv = cipher.getIV();
+
+        try (FileOutputStream fileOutputStream = new FileOutputStream(file);
+                DataOutputStream header = new DataOutputStream(fileOutputStream)) {
+            header.writeInt(MAGIC);
+            header.writeByte(iv.length);
+            header.write(iv);
+            header.flush();
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(
+                    new CipherOutputStream(fileOutputStream, cipher)));
+            data.writeInt(mWidth);
+            data.writeInt(mHeight);
+            data.writeInt(mTileCount);
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+            for (int index = 0; index < 4 * mTileCount; index += 4) {
+                Bitmap tile = source.getTile(mTiles[index], mTiles[index + 1],
+                        mTiles[index + 2], mTiles[index + 3]);
+                jpeg.reset();
+                tile.compress(Bitmap.CompressFormat.JPEG, TILE_QUALITY, jpeg);
+                tile.recycle();
+                for (int value = 0; value < 4; value++) {
+                    data.writeInt(mTiles[index + value]);
+                }
+                data.writeInt(jpeg.size());
+                jpeg.writeTo(data);
+            }
+            //Closing the cipher stream writes the authentication tag.
+            data.close();
+        }
+    }
+
+    /**
+     * Paste the tiles of a file back into the blurred image.
+     *
+     * @param file tile file written for the image
+     * @param blurred blurred image, which must be mutable
+     */
+    public static void restore(@NonNull File file, @NonNull Bitmap blurred)
+            throws IOException, GeneralSecurityException {
+        try (DataInputStream header = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (header.readInt() != MAGIC) {
+                throw new IOException("not a tile file: " + file);
+            }
+            byte[] iv = new byte[header.readUnsignedByte()];
+            header.readFully(iv);
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, getKey(), new GCMParameterSpec(TAG_LENGTH, iv));
+
+            //GCM releases the plain text only once the tag is verified.
+            DataInputStream data = new DataInputStream(new CipherInputStream(header, cipher));
+            if (data.readInt() != blurred.getWidth() || data.readInt() != blurred.getHeight()) {
+                throw new IOException("tile file is for another image size: " + file);
+            }
+            Canvas canvas = new Canvas(blurred);
+            int tileCount = data.readInt();
+            byte[] jpeg = new byte[0];
+            for (int index = 0; index < tileCount; index++) {
+                int x = data.readInt();
+                int y = data.readInt();
+                data.readInt();
+                data.readInt();
+                int length = data.readInt();
+                if (jpeg.length < length) {
+                    jpeg = new byte[length];
+                }
+                data.readFully(jpeg, 0, length);
+                Bitmap tile = BitmapFactory.decodeByteArray(jpeg, 0, length);
+                if (tile == null) {
+                    throw new IOException("broken tile " + index + " in " + file);
+                }
+                canvas.drawBitmap(tile, x, y, null);
+                tile.recycle();
+            }
+        }
+    }
+
+    /**
+     * Key of the tile files, created in the key store on first use.
+     */
+    private static SecretKey getKey() throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(KEY_STORE);
+        keyStore.load(null);
+        if (keyStore.containsAlias(KEY_ALIAS)) {
+            return (SecretKey) keyStore.getKey(KEY_ALIAS, null);
+        }
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES,
+                KEY_STORE);
+        keyGenerator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .build());
+        return keyGenerator.generateKey();
+    }
+
+    /**
+     * Source of the original pixels of a tile.
+     */
+    private interface TileSource {
+        Bitmap getTile(int x, int y, int width, int height) throws IOException;
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Package storing the encrypted tiles of original pixels which replace the unblurred image
+ */
+package com.theta360.automaticfaceblur.sidecar;
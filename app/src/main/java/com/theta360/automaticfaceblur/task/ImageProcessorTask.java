@@ -19,23 +19,53 @@ import static com.theta360.automaticfaceblur.MainActivity.DCIM;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.PointF;
-import android.media.FaceDetector;
+import android.graphics.Rect;
 import android.os.AsyncTask;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.theta360.automaticfaceblur.Face;
+import com.theta360.automaticfaceblur.blur.BitmapPixelBuffer;
+import com.theta360.automaticfaceblur.blur.BlurEngine;
+import com.theta360.automaticfaceblur.blur.BlurGeometry;
+import com.theta360.automaticfaceblur.blur.BlurStrategy;
+import com.theta360.automaticfaceblur.blur.EllipseMask;
+import com.theta360.automaticfaceblur.blur.IntArrayPixelBuffer;
+import com.theta360.automaticfaceblur.blur.MosaicStrategy;
+import com.theta360.automaticfaceblur.blur.PixelBuffer;
+import com.theta360.automaticfaceblur.blur.RegionDecoderPixelBuffer;
+import com.theta360.automaticfaceblur.blur.RegionPlanner;
+import com.theta360.automaticfaceblur.blur.WrappedPixelBuffer;
+import com.theta360.automaticfaceblur.detect.AndroidFaceDetectorEngine;
+import com.theta360.automaticfaceblur.detect.CubemapFaceDetector;
+import com.theta360.automaticfaceblur.detect.DetectionCache;
+import com.theta360.automaticfaceblur.detect.FaceDetectorEngine;
+import com.theta360.automaticfaceblur.detect.FaceIndex;
+import com.theta360.automaticfaceblur.detect.MeasuredFaceDetectorEngine;
+import com.theta360.automaticfaceblur.detect.PrefilteredFaceDetectorEngine;
+import com.theta360.automaticfaceblur.detect.PreviewFacePriors;
+import com.theta360.automaticfaceblur.detect.PyramidFaceDetector;
+import com.theta360.automaticfaceblur.detect.TiledFaceDetector;
 import com.theta360.automaticfaceblur.exif.Exif;
+import com.theta360.automaticfaceblur.jpeg.JpegMosaic;
+import com.theta360.automaticfaceblur.jpeg.JpegStripEncoder;
+import com.theta360.automaticfaceblur.jpeg.UnsupportedJpegException;
+import com.theta360.automaticfaceblur.pool.BitmapPool;
+import com.theta360.automaticfaceblur.pool.MemoryPlanner;
+import com.theta360.automaticfaceblur.sidecar.FaceTileSidecar;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import timber.log.Timber;
@@ -44,25 +74,272 @@ import timber.log.Timber;
  * Process input image and return blurred image.
  */
 public class ImageProcessorTask extends AsyncTask<String, Void, Map<String, String>> {
-    //Divide the equirectangular image into similar four parts, the rightmost x coordinate of the leftmost part.
-    private static final int RIGHTMOST_OF_LEFT_IMAGE = 1344;
-    //Divide the equirectangular image into similar four, the leftmost x coordinate of the rightmost part.
-    private static final int LEFTMOST_OF_RIGHT_IMAGE = 4032;
     //Maximum of faces can be detected.
     private static final int MAX_FACE = 256;
+    //Size of a mosaic block in pixels, also the block grid of the blur engine.
+    private static final int MOSAIC_DOT = 32;
+    //Margin added around every face region before the regions are merged.
+    private static final int REGION_DILATION = 0;
+    //Reduction of the image given to FaceDetector. 1 keeps the sensitivity to small faces.
+    private static final int DETECTION_SCALE = 1;
+    //Reduction of the coarse level of the pyramid detection.
+    private static final int PYRAMID_SCALE = 2;
+    //Latitude above and below the horizon where the pyramid detection searches small faces.
+    private static final float PYRAMID_BAND_LATITUDE = 30f;
+    //Faces of the cube searched at once by the cubemap detection, each with its own bitmap.
+    private static final int CUBEMAP_PARALLELISM = 2;
+    //Tiles of the tiled detection, one per core.
+    private static final int DETECTION_TILES =
+            Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    //Width shared by neighboring tiles in parts of the image width, wider than a close face.
+    private static final float TILE_OVERLAP = 0.125f;
+    //Width of the band searched across the seam in parts of the image width, twice the width
+    //of the largest face expected there (22.5 degrees, a face about 40 cm from the camera).
+    private static final float SEAM_BAND = 0.125f;
+    //Size of a cell of the index merging the faces of the detection passes, in pixels of the
+    //detection image.
+    private static final int FACE_INDEX_CELL = 64;
+    //Side of a cell of the skin and variance map of the prefilter, in pixels of the detection
+    //image.
+    private static final int PREFILTER_CELL = 32;
+    //Cells searched around every candidate cell of the prefilter.
+    private static final int PREFILTER_MARGIN = 2;
+    //Part of the image the candidates of the prefilter may cover before it is searched whole.
+    private static final float PREFILTER_MAX_COVERAGE = 0.5f;
+    //Side of the window searched around a face of the preview, in eye distances. Wider than the
+    //blur region, so a face which moved a little before the shot stays inside.
+    private static final float PRIOR_WINDOW = 6f;
+    //Smallest side of the window searched around a face of the preview, in pixels.
+    private static final int PRIOR_MIN_WINDOW = 64;
+    //Reduction of the image decoded for detection when the face regions are decoded one by one.
+    private static final int REGION_DETECTION_SAMPLE = 2;
+    //Version of the detection, raised whenever its results change so cached faces are redone.
+    private static final int DETECTION_VERSION = 1;
+    //Files whose faces are kept by the detection cache, a few hundred bytes each.
+    private static final int DETECTION_CACHE_ENTRIES = 512;
+    //Rows of a strip decoded, blurred and encoded at once, a multiple of the MCU height.
+    private static final int BAND_ROWS = 256;
+    //JPEG quality of the blurred file.
+    private static final int OUTPUT_QUALITY = 100;
+    //Part of the radius of an elliptical mask over which the blur fades out.
+    private static final float MASK_FEATHER = 0.3f;
+    //Pool shared by the blur jobs, one worker per core.
+    private static final ForkJoinPool BLUR_POOL =
+            new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    //Bitmaps reused from one shot to the next, up to a quarter of the heap.
+    private static final BitmapPool BITMAP_POOL =
+            new BitmapPool(Runtime.getRuntime().maxMemory() / 4);
+    //Faces of the files already searched, or null to search every file.
+    private static DetectionCache sDetectionCache;
     public static final String BLURRED_FILE_KEY = "blurred_file_url";
     public static final String ORIGINAL_FILE_KEY = "original_file_url";
+    public static final String TILE_FILE_KEY = "tile_file_url";
     private Bitmap mBitmapToDetectFace;
     private Bitmap mBitmapToBlur;
+    private float mDetectionScale;
+    private int mImageWidth;
+    private int mImageHeight;
+    private boolean mRegionDecode;
+    private BitmapRegionDecoder mRegionDecoder;
+    private boolean mBandStreaming;
+    private boolean mJpegPixelation;
+    private MemoryPlanner.Mode mMode;
+    private JpegMosaic mJpegMosaic;
+    private boolean mJpegWritten;
+    private boolean mPyramidDetection;
+    private PyramidFaceDetector mPyramidDetector;
+    private boolean mCubemapDetection;
+    private CubemapFaceDetector mCubemapDetector;
+    private boolean mTiledDetection;
+    private TiledFaceDetector mTiledDetector;
+    private FaceIndex mFaceIndex;
+    private boolean mPrefilter;
+    private PreviewFacePriors.Snapshot mPreviewPriors;
+    private ForkJoinTask<?> mEarlyBlur;
+    private PrefilteredFaceDetectorEngine mPrefilteredEngine;
+    private long mDetectionKey;
+    private String mDetectionParameters;
+    private DetectionCache.Detection mCachedDetection;
+    private MeasuredFaceDetectorEngine mDetectorEngine =
+            new MeasuredFaceDetectorEngine(new AndroidFaceDetectorEngine(MAX_FACE));
     private Callback mCallback;
+    private BlurStrategy mBlurStrategy;
+    private BlurGeometry mBlurGeometry;
+    private RegionPlanner mRegionPlanner;
+    private BlurEngine mBlurEngine;
+    private boolean mEllipticalMask;
+    private EllipseMask mEllipseMask;
+    private boolean mKeepFaceTiles;
+    private String mTileFileUrl;
+    private MemoryPlanner mMemoryPlanner;
 
     /**
-     * Constructor of ImageProcessorTask.
+     * Constructor of ImageProcessorTask which blurs faces with the latitude-aware mosaic.
      *
      * @param callback callback
      */
     public ImageProcessorTask(@NonNull Callback callback) {
+        this(callback, null);
+    }
+
+    /**
+     * Constructor of ImageProcessorTask.
+     *
+     * @param callback callback
+     * @param blurStrategy blur applied to the faces, or null for the latitude-aware mosaic
+     */
+    public ImageProcessorTask(@NonNull Callback callback, @Nullable BlurStrategy blurStrategy) {
+        this(callback, blurStrategy, false);
+    }
+
+    /**
+     * Constructor of ImageProcessorTask.
+     *
+     * @param callback callback
+     * @param blurStrategy blur applied to the faces, or null for the latitude-aware mosaic
+     * @param ellipticalMask true to blend the blur into each face through a feathered ellipse
+     *                       instead of blurring whole rectangles
+     */
+    public ImageProcessorTask(@NonNull Callback callback, @Nullable BlurStrategy blurStrategy,
+            boolean ellipticalMask) {
+        this(callback, blurStrategy, ellipticalMask, false);
+    }
+
+    /**
+     * Constructor of ImageProcessorTask.
+     *
+     * @param callback callback
+     * @param blurStrategy blur applied to the faces, or null for the latitude-aware mosaic
+     * @param ellipticalMask true to blend the blur into each face through a feathered ellipse
+     *                       instead of blurring whole rectangles
+     * @param keepFaceTiles true to keep only the original pixels of the blurred regions in an
+     *                      encrypted tile file and delete the original image
+     */
+    public ImageProcessorTask(@NonNull Callback callback, @Nullable BlurStrategy blurStrategy,
+            boolean ellipticalMask, boolean keepFaceTiles) {
         this.mCallback = callback;
+        this.mBlurStrategy = blurStrategy;
+        this.mEllipticalMask = ellipticalMask;
+        this.mKeepFaceTiles = keepFaceTiles;
+    }
+
+    /**
+     * Detect faces on a reduced copy of the whole image and at the full resolution only around
+     * the horizon, where faces far from the camera are small. Must be called before execute().
+     *
+     * @param pyramidDetection true to use the pyramid detection
+     */
+    public void setPyramidDetection(boolean pyramidDetection) {
+        mPyramidDetection = pyramidDetection;
+    }
+
+    /**
+     * Detect faces on the six faces of a cube reprojected from the image instead of the image
+     * and its seam composite, so faces far from the horizon are not bent. Takes precedence over
+     * the pyramid detection. Must be called before execute().
+     *
+     * @param cubemapDetection true to use the cubemap detection
+     */
+    public void setCubemapDetection(boolean cubemapDetection) {
+        mCubemapDetection = cubemapDetection;
+    }
+
+    /**
+     * Detect faces on overlapping vertical tiles of the image searched in parallel, the tile
+     * across the seam replacing the seam composite. Takes precedence over the pyramid detection.
+     * Must be called before execute().
+     *
+     * @param tiledDetection true to use the tiled detection
+     */
+    public void setTiledDetection(boolean tiledDetection) {
+        mTiledDetection = tiledDetection;
+    }
+
+    /**
+     * Search only the parts of the images given to the detector whose color and contrast may
+     * hold a face. Must be called before execute().
+     *
+     * @param prefilter true to prefilter the images
+     */
+    public void setPrefilter(boolean prefilter) {
+        mPrefilter = prefilter;
+    }
+
+    /**
+     * Search first around the faces seen on the live preview when the shutter was released, and
+     * blur the faces confirmed there while the rest of the image is searched. The whole image is
+     * searched in any case. Must be called before execute().
+     *
+     * @param previewPriors faces of the preview, or null when there are no fresh ones
+     */
+    public void setPreviewPriors(@Nullable PreviewFacePriors.Snapshot previewPriors) {
+        mPreviewPriors = previewPriors;
+    }
+
+    /**
+     * Replace the FaceDetector API of Android by another detector. Must be called before
+     * execute().
+     *
+     * @param engine detector of the faces
+     */
+    public void setDetectorEngine(@NonNull FaceDetectorEngine engine) {
+        mDetectorEngine = new MeasuredFaceDetectorEngine(engine);
+    }
+
+    /**
+     * Decode a reduced image for detection and only the face regions at full resolution for the
+     * blur, so the whole image is decoded only for the output. Must be called before execute().
+     *
+     * @param regionDecode true to decode the face regions one by one
+     */
+    public void setRegionDecode(boolean regionDecode) {
+        mRegionDecode = regionDecode;
+    }
+
+    /**
+     * Detect faces on a reduced image like the region decode, then decode, blur and encode the
+     * output in strips of rows, so the whole image is never held in memory. Must be called
+     * before execute().
+     *
+     * @param bandStreaming true to stream the output in strips
+     */
+    public void setBandStreaming(boolean bandStreaming) {
+        mBandStreaming = bandStreaming;
+    }
+
+    /**
+     * Pixelate the faces on the JPEG coefficients of the file instead of decoding and encoding
+     * the whole image, when the default mosaic is used without the elliptical mask and the file
+     * is a baseline JPEG. Must be called before execute().
+     *
+     * @param jpegPixelation true to pixelate on the JPEG coefficients
+     */
+    public void setJpegPixelation(boolean jpegPixelation) {
+        mJpegPixelation = jpegPixelation;
+    }
+
+    /**
+     * @return pool of the bitmaps reused by the tasks, which follows the memory trim requests
+     *         it is registered for
+     */
+    @NonNull
+    public static BitmapPool getBitmapPool() {
+        return BITMAP_POOL;
+    }
+
+    /**
+     * Keep the faces found in each file, so that blurring a file again skips its detection.
+     *
+     * @param directory directory of the cache shared by the tasks, or null to search every file
+     */
+    public static synchronized void setDetectionCache(@Nullable File directory) {
+        sDetectionCache = directory != null
+                ? new DetectionCache(directory, DETECTION_CACHE_ENTRIES, DETECTION_VERSION)
+                : null;
+    }
+
+    private static synchronized DetectionCache getDetectionCache() {
+        return sDetectionCache;
     }
 
     /**
@@ -84,6 +361,7 @@ public class ImageProcessorTask extends AsyncTask<String, Void, Map<String, Stri
         Matcher matcher = Pattern.compile("/\\d{3}RICOH.*").matcher(params[0]);
         if (matcher.find()) {
             String fileUrl = DCIM + matcher.group();
+            boolean done = false;
             try {
                 long start = System.currentTimeMillis();
                 Bitmap bitmap = blurInputFile(fileUrl);
@@ -91,21 +369,30 @@ public class ImageProcessorTask extends AsyncTask<String, Void, Map<String, Stri
                     String blurredFileUrl = fileUrl.replace("/R", "/B");
                     if (bitmap != null) {
                         try (FileOutputStream fos = new FileOutputStream(blurredFileUrl)) {
-                            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
+                            bitmap.compress(Bitmap.CompressFormat.JPEG, OUTPUT_QUALITY, fos);
                         }
 
                         long end = System.currentTimeMillis();
                         Timber.d("blur : %d ms", (end - start));
+                        traceMemory("output");
                     }
 
                     File blurredFile = new File(blurredFileUrl);
                     File file = new File(fileUrl);
-                    if (Exif.copyMetadata(fileUrl, blurredFileUrl)) {
-//                        file.delete();
+                    //A file written from the JPEG coefficients already has the metadata.
+                    if (mJpegWritten || Exif.copyMetadata(fileUrl, blurredFileUrl)) {
+                        if (mTileFileUrl != null) {
+                            //The original pixels of the faces are kept in the tile file.
+                            file.delete();
+                        }
                         Timber.d("fileUrl = %s", blurredFileUrl);
                         Map<String, String> map = new HashMap<>();
                         map.put(BLURRED_FILE_KEY, blurredFileUrl);
                         map.put(ORIGINAL_FILE_KEY, fileUrl);
+                        if (mTileFileUrl != null) {
+                            map.put(TILE_FILE_KEY, mTileFileUrl);
+                        }
+                        done = true;
                         return map;
                     } else {
                         blurredFile.delete();
@@ -113,11 +400,44 @@ public class ImageProcessorTask extends AsyncTask<String, Void, Map<String, Stri
                 }
             } catch (IOException e) {
                 Timber.d(e.getMessage());
+            } finally {
+                //A tile file is only kept along with its blurred file.
+                if (!done && mTileFileUrl != null) {
+                    new File(mTileFileUrl).delete();
+                    mTileFileUrl = null;
+                }
+                releaseBitmaps();
             }
         }
         return null;
     }
 
+    /**
+     * Record the heap used at a stage of the job, once the image size is known.
+     *
+     * @param stage name of the stage
+     */
+    private void traceMemory(String stage) {
+        if (mMemoryPlanner != null) {
+            mMemoryPlanner.trace(stage);
+        }
+    }
+
+    /**
+     * Give the bitmaps of the job back to the pool for the next shot.
+     */
+    private void releaseBitmaps() {
+        //The image may still be blurred in the background when the job failed.
+        finishEarlyBlur();
+        BITMAP_POOL.put(mBitmapToBlur);
+        mBitmapToBlur = null;
+        BITMAP_POOL.put(mBitmapToDetectFace);
+        mBitmapToDetectFace = null;
+        Timber.d("bitmap pool : %d hits, %d misses, %d bytes pooled",
+                BITMAP_POOL.getHitCount(), BITMAP_POOL.getMissCount(),
+                BITMAP_POOL.getPooledBytes());
+    }
+
     @Override
     protected void onPostExecute(Map<String, String> result) {
         if (result != null) {
@@ -143,133 +463,706 @@ public class ImageProcessorTask extends AsyncTask<String, Void, Map<String, Stri
         inputFile(fileUrl);
         long now = System.currentTimeMillis();
         Timber.d("inputFile : %d", now - start);
-        blurFaces();
-        now = System.currentTimeMillis();
-        Timber.d("blurFaceInEqui : %d", now - start);
-        blurFacesOnSides();
-        now = System.currentTimeMillis();
-        Timber.d("blurFaceEquiTwoEdges : %d", now - start);
+        traceMemory("inputFile");
+        if (mCachedDetection != null) {
+            for (Face face : mCachedDetection.getFaces()) {
+                mFaceIndex.add(face);
+            }
+            Timber.d("detection cache : %d faces", mCachedDetection.getFaces().size());
+        } else {
+            searchPriors();
+            blurFaces();
+            now = System.currentTimeMillis();
+            Timber.d("blurFaceInEqui : %d", now - start);
+            blurFacesOnSides();
+            now = System.currentTimeMillis();
+            Timber.d("blurFaceEquiTwoEdges : %d", now - start);
+            storeDetection();
+        }
+        blurIndexedFaces();
+        Timber.d("detection : %s", mDetectorEngine);
+        if (mPrefilteredEngine != null) {
+            Timber.d("%s", mPrefilteredEngine);
+        }
+        if (mCubemapDetector != null) {
+            Timber.d("cubemap remap : %d ms", mCubemapDetector.getRemapMillis());
+        }
+        traceMemory("detection");
+        finishEarlyBlur();
+        if (!isCancelled()) {
+            mRegionPlanner.plan();
+            Timber.d("regions : %d rectangles -> %d spans, %d px requested, %d px saved",
+                    mRegionPlanner.getRectangleCount(), mRegionPlanner.getSpanCount(),
+                    mRegionPlanner.getRequestedPixels(),
+                    mRegionPlanner.getRequestedPixels() - mRegionPlanner.getUnionPixels());
+            mRegionPlanner.addSpansTo(mBlurEngine);
+            Timber.d("blur blocks : %d", mBlurEngine.getPendingBlockCount());
+            if (mKeepFaceTiles) {
+                writeFaceTiles(fileUrl, fileUrl.replace("/R", "/B")
+                        .replace(".JPG", FaceTileSidecar.EXTENSION));
+            }
+            if (mJpegMosaic != null && !writeJpegMosaic(fileUrl)) {
+                choosePixelMode(fileUrl);
+            }
+            if (mJpegWritten) {
+                Timber.d("blurred file written from the JPEG coefficients");
+            } else if (mMode == MemoryPlanner.Mode.BAND) {
+                streamBands(fileUrl);
+            } else if (mRegionDecoder != null) {
+                blurDecodedRegions(fileUrl);
+            } else {
+                if (mBitmapToBlur == null) {
+                    mBitmapToBlur = decodeFullImage(fileUrl);
+                }
+                //The faces confirmed around the priors are blurred already.
+                mBlurEngine.removeBlurredBlocks();
+                mBlurEngine.run(new BitmapPixelBuffer(mBitmapToBlur), this::isCancelled,
+                        BLUR_POOL);
+            }
+            now = System.currentTimeMillis();
+            Timber.d("blurRegions : %d", now - start);
+            traceMemory("blurRegions");
+        }
         return mBitmapToBlur;
     }
 
     /**
-     * Make bitmap from the file path.
+     * Choose how to blur the pixels when the JPEG coefficients cannot be used, among the modes
+     * which fit the free heap.
      *
-     * @param fileUrl path of file in DCIM
+     * @param fileUrl path of file to blur
      */
-    private void inputFile(String fileUrl) throws IOException {
+    private void choosePixelMode(String fileUrl) throws IOException {
+        mJpegMosaic = null;
+        mMode = chooseMode(MemoryPlanner.Mode.FULL, false);
+        if (mMode == MemoryPlanner.Mode.REGION || mMode == MemoryPlanner.Mode.BAND) {
+            mRegionDecoder = BitmapRegionDecoder.newInstance(fileUrl, false);
+        }
+    }
+
+    /**
+     * Write the blurred file by pixelating the pending blocks of the blur engine on the JPEG
+     * coefficients of the original file, which keeps its metadata.
+     *
+     * @param fileUrl path of file to blur
+     * @return true if the blurred file is written, false if the file needs the pixel path
+     */
+    private boolean writeJpegMosaic(String fileUrl) {
+        mBlurEngine.addPendingBlocksTo(mJpegMosaic);
+        String blurredFileUrl = fileUrl.replace("/R", "/B");
+        try (FileInputStream fileInputStream = new FileInputStream(fileUrl);
+                FileOutputStream fileOutputStream = new FileOutputStream(blurredFileUrl)) {
+            mJpegMosaic.write(fileInputStream, fileOutputStream);
+            mJpegWritten = true;
+            return true;
+        } catch (UnsupportedJpegException e) {
+            Timber.d("JPEG coefficients not used : %s", e.getMessage());
+        } catch (IOException e) {
+            //A broken scan is left to the decoder of the pixel path.
+            Timber.d("JPEG coefficients failed : %s", e.getMessage());
+        }
+        //The stream is closed here, so the partial file can be deleted.
+        new File(blurredFileUrl).delete();
+        return false;
+    }
+
+    /**
+     * Blur the face regions decoded one by one from the file, then decode the whole image for
+     * the output and paste the blurred regions into it.
+     *
+     * @param fileUrl path of file to blur
+     */
+    private void blurDecodedRegions(String fileUrl) throws IOException {
+        RegionDecoderPixelBuffer regionBuffer = blurRegions();
+        mRegionDecoder.recycle();
         if (!isCancelled()) {
-            try (FileInputStream fileInputStream = new FileInputStream(fileUrl)) {
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inMutable = true;
-                //To make Android API FaceDetector effective, Bitmap.Config.RGB_565 is used.
-                options.inPreferredConfig = Bitmap.Config.RGB_565;
-                mBitmapToDetectFace = BitmapFactory.decodeStream(fileInputStream, null, options);
+            mBitmapToBlur = decodeFullImage(fileUrl);
+            regionBuffer.applyTo(new BitmapPixelBuffer(mBitmapToBlur));
+        }
+    }
+
+    /**
+     * Blur the face regions decoded one by one from the file into patches.
+     *
+     * @return buffer holding the blurred patches
+     */
+    private RegionDecoderPixelBuffer blurRegions() {
+        //Detection is done, so only the face regions are decoded until the output is needed.
+        BITMAP_POOL.put(mBitmapToDetectFace);
+        mBitmapToDetectFace = null;
+        RegionDecoderPixelBuffer regionBuffer = new RegionDecoderPixelBuffer(mRegionDecoder);
+        mBlurEngine.run(regionBuffer, this::isCancelled, BLUR_POOL);
+        Timber.d("blur patches : %d px", regionBuffer.getPatchPixels());
+        return regionBuffer;
+    }
+
+    /**
+     * Blur the face regions decoded one by one from the file, then write the blurred file one
+     * strip of rows at a time: each strip is decoded, gets the blurred patches it crosses and is
+     * encoded.
+     *
+     * @param fileUrl path of file to blur
+     */
+    private void streamBands(String fileUrl) throws IOException {
+        RegionDecoderPixelBuffer regionBuffer = blurRegions();
+        String blurredFileUrl = fileUrl.replace("/R", "/B");
+        Bitmap strip = BITMAP_POOL.get(mImageWidth, BAND_ROWS, Bitmap.Config.ARGB_8888);
+        int[] pixels = new int[mImageWidth * BAND_ROWS];
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        try (FileOutputStream fileOutputStream = new FileOutputStream(blurredFileUrl)) {
+            JpegStripEncoder encoder = new JpegStripEncoder(fileOutputStream, mImageWidth,
+                    mImageHeight, OUTPUT_QUALITY);
+            for (int top = 0; top < mImageHeight && !isCancelled(); top += BAND_ROWS) {
+                int rows = Math.min(BAND_ROWS, mImageHeight - top);
+                options.inBitmap = strip;
+                Bitmap decoded = mRegionDecoder.decodeRegion(
+                        new Rect(0, top, mImageWidth, top + rows), options);
+                if (decoded == null) {
+                    throw new IOException("cannot decode rows " + top + " of " + fileUrl);
+                }
+                decoded.getPixels(pixels, 0, mImageWidth, 0, 0, mImageWidth, rows);
+                if (decoded != strip) {
+                    decoded.recycle();
+                }
+                regionBuffer.applyTo(new IntArrayPixelBuffer(pixels, mImageWidth, rows), top);
+                encoder.write(pixels, 0, mImageWidth, rows);
             }
+            if (!isCancelled()) {
+                encoder.finish();
+            }
+        } finally {
+            BITMAP_POOL.put(strip);
+            mRegionDecoder.recycle();
+        }
+        if (isCancelled()) {
+            new File(blurredFileUrl).delete();
+        }
+    }
 
-            try (FileInputStream fileInputStream = new FileInputStream(fileUrl)) {
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inMutable = true;
-                //To remain image quality, Bitmap.Config.ARGB_8888 is used.
-                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-                mBitmapToBlur = BitmapFactory.decodeStream(fileInputStream, null, options);
+    /**
+     * Write the original pixels of the blocks about to be blurred to an encrypted tile file.
+     * When this fails, the tile file is dropped and the original image is kept.
+     *
+     * @param fileUrl path of file to blur
+     * @param tileFileUrl path of the tile file
+     */
+    private void writeFaceTiles(String fileUrl, String tileFileUrl) {
+        long start = System.currentTimeMillis();
+        //Merge the runs of blocks into few tiles.
+        RegionPlanner tilePlanner = new RegionPlanner(mImageWidth, mImageHeight, 0);
+        mBlurEngine.addPendingBlocksTo(tilePlanner);
+        tilePlanner.plan();
+        FaceTileSidecar sidecar = new FaceTileSidecar(mImageWidth, mImageHeight);
+        tilePlanner.addSpansTo(sidecar);
+
+        File tileFile = new File(tileFileUrl);
+        try {
+            if (mBitmapToBlur != null) {
+                sidecar.write(tileFile, mBitmapToBlur);
+            } else if (mRegionDecoder != null) {
+                sidecar.write(tileFile, mRegionDecoder);
+            } else {
+                BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(fileUrl, false);
+                sidecar.write(tileFile, decoder);
+                decoder.recycle();
             }
+            mTileFileUrl = tileFileUrl;
+            Timber.d("writeFaceTiles : %d tiles, %d bytes, %d ms", sidecar.getTileCount(),
+                    tileFile.length(), System.currentTimeMillis() - start);
+        } catch (IOException | GeneralSecurityException e) {
+            Timber.d(e.getMessage());
+            tileFile.delete();
         }
     }
 
     /**
-     * Detect faces but segmented faces in the equirectangular image and blur.
+     * Make bitmap from the file path.
+     *
+     * @param fileUrl path of file in DCIM
      */
-    private void blurFaces() {
+    private void inputFile(String fileUrl) throws IOException {
         if (!isCancelled()) {
-            FaceDetector.Face[] faces = new FaceDetector.Face[MAX_FACE];
-            FaceDetector faceDetector = new FaceDetector(mBitmapToDetectFace.getWidth(),
-                    mBitmapToDetectFace.getHeight(),
-                    MAX_FACE);
-            int faceIsFound = faceDetector.findFaces(mBitmapToDetectFace, faces);
-
-            for (int index = 0; index < faceIsFound; index++) {
-                PointF point = new PointF();
-                faces[index].getMidPoint(point);
-                if (isCancelled()) {
-                    return;
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(fileUrl, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                throw new IOException("cannot decode " + fileUrl);
+            }
+            mImageWidth = options.outWidth;
+            mImageHeight = options.outHeight;
+            mMemoryPlanner = new MemoryPlanner(mImageWidth, mImageHeight,
+                    mPyramidDetection ? PYRAMID_SCALE : 0,
+                    mCubemapDetection ? CUBEMAP_PARALLELISM : 0,
+                    mTiledDetection ? DETECTION_TILES : 0, TILE_OVERLAP);
+            MemoryPlanner.Mode mode = chooseMode();
+            mMode = mode;
+            boolean regions = mode == MemoryPlanner.Mode.REGION
+                    || mode == MemoryPlanner.Mode.BAND;
+            lookUpDetection(fileUrl, regions ? REGION_DETECTION_SAMPLE : DETECTION_SCALE);
+            if (regions) {
+                mRegionDecoder = BitmapRegionDecoder.newInstance(fileUrl, false);
+            } else if (mode != MemoryPlanner.Mode.JPEG) {
+                mBitmapToBlur = decodeFullImage(fileUrl);
+            }
+            if (mCachedDetection != null) {
+                //The faces are known, so no detection image is needed.
+                mDetectionScale = (float) mImageWidth / mCachedDetection.getWidth();
+                mFaceIndex = new FaceIndex(mCachedDetection.getWidth(),
+                        mCachedDetection.getHeight(), FACE_INDEX_CELL);
+            } else {
+                if (regions) {
+                    mBitmapToDetectFace = decodeDetectionImage(fileUrl, REGION_DETECTION_SAMPLE);
+                } else if (mode == MemoryPlanner.Mode.JPEG) {
+                    //Without pixels to blur, only the detection image is decoded.
+                    mBitmapToDetectFace = decodeDetectionImage(fileUrl, DETECTION_SCALE);
+                } else {
+                    mBitmapToDetectFace = toDetectionImage(mBitmapToBlur);
+                    mDetectionScale = (float) mImageWidth / mBitmapToDetectFace.getWidth();
                 }
-                //Blur a square with width: 3 times the binocular distance, height: 4.5 times the binocular distance to the face.
-                int width = (int) faces[index].eyesDistance() * 3;
-                int height = (int) (faces[index].eyesDistance() * 4.5);
-                int blurStartX = (int) (point.x - width / 2);
-                int blurStartY = (int) (point.y - height / 2);
-
-                //Make coordinate not exceed the size of bitmap.
-                if (blurStartX >= 0 && blurStartY >= 0 &&
-                        blurStartX + width <= mBitmapToDetectFace.getWidth()
-                        && blurStartY + height <= mBitmapToDetectFace.getHeight()) {
-                    blur(blurStartX, blurStartY, width, height);
+                mFaceIndex = new FaceIndex(mBitmapToDetectFace.getWidth(),
+                        mBitmapToDetectFace.getHeight(), FACE_INDEX_CELL);
+                if (mPrefilter) {
+                    mPrefilteredEngine = new PrefilteredFaceDetectorEngine(
+                            mDetectorEngine.getEngine(), PREFILTER_CELL, PREFILTER_MARGIN,
+                            PREFILTER_MAX_COVERAGE);
+                    mDetectorEngine = new MeasuredFaceDetectorEngine(mPrefilteredEngine);
                 }
+                if (mCubemapDetection) {
+                    mCubemapDetector = new CubemapFaceDetector(mDetectorEngine,
+                            CUBEMAP_PARALLELISM, BITMAP_POOL);
+                } else if (mTiledDetection) {
+                    mTiledDetector = new TiledFaceDetector(mDetectorEngine, DETECTION_TILES,
+                            TILE_OVERLAP, BITMAP_POOL);
+                } else if (mPyramidDetection) {
+                    mPyramidDetector = new PyramidFaceDetector(mDetectorEngine, PYRAMID_SCALE,
+                            PYRAMID_BAND_LATITUDE, BITMAP_POOL);
+                }
+            }
+            mBlurGeometry = new BlurGeometry(mImageWidth, mImageHeight, MOSAIC_DOT);
+            mRegionPlanner = new RegionPlanner(mImageWidth, mImageHeight, REGION_DILATION);
+            if (mBlurStrategy == null) {
+                mBlurStrategy = new MosaicStrategy(MOSAIC_DOT, mBlurGeometry);
+            }
+            mBlurEngine = new BlurEngine(mImageWidth, mImageHeight, MOSAIC_DOT, mBlurStrategy);
+            if (mode == MemoryPlanner.Mode.JPEG) {
+                mJpegMosaic = new JpegMosaic(mImageWidth, mImageHeight, MOSAIC_DOT, mBlurGeometry);
+            }
+            if (mEllipticalMask) {
+                mEllipseMask = new EllipseMask(mBlurGeometry, MASK_FEATHER);
+                mBlurEngine.setMask(mEllipseMask);
             }
         }
     }
 
     /**
-     * Blur the designated area by the calculated binocular coordinates.
+     * Look up the faces of the file in the detection cache, keyed by its entropy-coded data and
+     * the parameters of the detection.
+     *
+     * @param fileUrl path of file in DCIM
+     * @param sampleSize reduction of the detection image
      */
-    private void blurFacesOnSides() {
-        ArrayList<Face> faceList = calculateCoordinateOfEyes();
+    private void lookUpDetection(String fileUrl, int sampleSize) {
+        DetectionCache cache = getDetectionCache();
+        if (cache == null) {
+            return;
+        }
+        mDetectionParameters = mDetectorEngine.getEngine().getClass().getName()
+                + " sample " + sampleSize + " pyramid " + mPyramidDetection
+                + " cubemap " + mCubemapDetection + " tiled " + mTiledDetection
+                + " prefilter " + mPrefilter;
+        long start = System.currentTimeMillis();
+        try {
+            mDetectionKey = DetectionCache.hashScan(new File(fileUrl));
+        } catch (IOException e) {
+            Timber.d(e.getMessage());
+            mDetectionParameters = null;
+            return;
+        }
+        mCachedDetection = cache.get(mDetectionKey, mDetectionParameters);
+        Timber.d("detection cache : %s, %d ms", mCachedDetection != null ? "hit" : "miss",
+                System.currentTimeMillis() - start);
+    }
 
-        for (Face face : faceList) {
+    /**
+     * Store the faces of the index in the detection cache, unless the detection was cancelled.
+     */
+    private void storeDetection() {
+        DetectionCache cache = getDetectionCache();
+        if (cache == null || mDetectionParameters == null || isCancelled()) {
+            return;
+        }
+        ArrayList<Face> faceList = new ArrayList<>();
+        mFaceIndex.getFaces(faceList);
+        try {
+            cache.put(mDetectionKey, mDetectionParameters, mBitmapToDetectFace.getWidth(),
+                    mBitmapToDetectFace.getHeight(), faceList);
+        } catch (IOException e) {
+            Timber.d(e.getMessage());
+        }
+    }
+
+    /**
+     * Choose the way of processing the image, starting from the mode set on the task.
+     *
+     * @return mode of the job
+     */
+    private MemoryPlanner.Mode chooseMode() throws IOException {
+        //The coefficient mosaic replaces only the default mosaic.
+        boolean jpegAllowed = mBlurStrategy == null && !mEllipticalMask;
+        MemoryPlanner.Mode requested = MemoryPlanner.Mode.FULL;
+        if (mRegionDecode) {
+            requested = MemoryPlanner.Mode.REGION;
+        } else if (mBandStreaming) {
+            requested = MemoryPlanner.Mode.BAND;
+        } else if (mJpegPixelation && jpegAllowed) {
+            requested = MemoryPlanner.Mode.JPEG;
+        }
+        return chooseMode(requested, jpegAllowed);
+    }
+
+    /**
+     * Choose the requested mode when it fits the free heap, otherwise the first of the full,
+     * region decode, band and coefficient modes which fits.
+     *
+     * @param requested mode tried first
+     * @param jpegAllowed true if the coefficient mode may be chosen
+     * @return mode of the job
+     */
+    private MemoryPlanner.Mode chooseMode(MemoryPlanner.Mode requested, boolean jpegAllowed)
+            throws IOException {
+        long available = 0;
+        MemoryPlanner.Mode[] candidates = {requested, MemoryPlanner.Mode.FULL,
+                MemoryPlanner.Mode.REGION, MemoryPlanner.Mode.BAND, MemoryPlanner.Mode.JPEG};
+        for (MemoryPlanner.Mode mode : candidates) {
+            if (mode == MemoryPlanner.Mode.JPEG && !jpegAllowed) {
+                continue;
+            }
+            //Only the pooled bitmaps the mode reuses count as free, the others stay allocated.
+            available = mMemoryPlanner.getAvailableBytes(getReusableBytes(mode));
+            long estimate = mMemoryPlanner.estimate(mode, getDetectionSample(mode),
+                    mode == MemoryPlanner.Mode.BAND ? BAND_ROWS : MOSAIC_DOT);
+            if (estimate <= available) {
+                Timber.d("mode %s : %d bytes estimated, %d bytes available, %s requested",
+                        mode, estimate, available, requested);
+                return mode;
+            }
+        }
+        throw new IOException("not enough memory for " + mImageWidth + "x" + mImageHeight
+                + ", " + available + " bytes available");
+    }
+
+    /**
+     * @param mode mode of the job
+     * @return bytes of the pooled bitmaps which the decoded image, the detection image and the
+     *         strip of the mode would reuse
+     */
+    private long getReusableBytes(MemoryPlanner.Mode mode) {
+        int sample = getDetectionSample(mode);
+        long bytes;
+        if (mode == MemoryPlanner.Mode.FULL) {
+            bytes = BITMAP_POOL.getMatchingBytes(mImageWidth, mImageHeight,
+                    Bitmap.Config.ARGB_8888)
+                    + BITMAP_POOL.getMatchingBytes(mImageWidth / sample & ~1,
+                    mImageHeight / sample, Bitmap.Config.RGB_565);
+        } else {
+            //The decoder rounds the reduced size up.
+            bytes = BITMAP_POOL.getMatchingBytes((mImageWidth + sample - 1) / sample,
+                    (mImageHeight + sample - 1) / sample, Bitmap.Config.RGB_565);
+        }
+        if (mode == MemoryPlanner.Mode.BAND) {
+            bytes += BITMAP_POOL.getMatchingBytes(mImageWidth, BAND_ROWS,
+                    Bitmap.Config.ARGB_8888);
+        }
+        return bytes;
+    }
+
+    private static int getDetectionSample(MemoryPlanner.Mode mode) {
+        return mode == MemoryPlanner.Mode.REGION || mode == MemoryPlanner.Mode.BAND
+                ? REGION_DETECTION_SAMPLE : DETECTION_SCALE;
+    }
+
+    /**
+     * Decode the whole image at full resolution.
+     *
+     * @param fileUrl path of file in DCIM
+     * @return mutable ARGB_8888 image
+     */
+    private static Bitmap decodeFullImage(String fileUrl) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        //To remain image quality, Bitmap.Config.ARGB_8888 is used.
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap bitmap = BITMAP_POOL.decodeFile(fileUrl, options);
+        if (bitmap == null) {
+            throw new IOException("cannot decode " + fileUrl);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decode the image given to FaceDetector directly, without the full resolution ARGB_8888
+     * image, and set the scale back to it.
+     *
+     * @param fileUrl path of file in DCIM
+     * @param sampleSize reduction applied by the decoder
+     * @return RGB_565 image reduced sampleSize times, with an even width
+     */
+    private Bitmap decodeDetectionImage(String fileUrl, int sampleSize) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        //To make Android API FaceDetector effective, Bitmap.Config.RGB_565 is used.
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap = BITMAP_POOL.decodeFile(fileUrl, options);
+        if (bitmap == null) {
+            throw new IOException("cannot decode " + fileUrl);
+        }
+        mDetectionScale = (float) mImageWidth / bitmap.getWidth();
+        if (bitmap.getWidth() % 2 != 0) {
+            Bitmap evenBitmap = BITMAP_POOL.get(bitmap.getWidth() - 1, bitmap.getHeight(),
+                    Bitmap.Config.RGB_565);
+            new Canvas(evenBitmap).drawBitmap(bitmap, 0, 0, null);
+            BITMAP_POOL.put(bitmap);
+            bitmap = evenBitmap;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Derive the image given to FaceDetector from the decoded image, instead of decoding the file
+     * a second time.
+     *
+     * @param bitmap decoded image
+     * @return RGB_565 image reduced DETECTION_SCALE times, with an even width
+     */
+    private static Bitmap toDetectionImage(Bitmap bitmap) {
+        //To make Android API FaceDetector effective, Bitmap.Config.RGB_565 is used.
+        int width = bitmap.getWidth() / DETECTION_SCALE & ~1;
+        int height = bitmap.getHeight() / DETECTION_SCALE;
+        Bitmap detectionImage = BITMAP_POOL.get(width, height, Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(detectionImage);
+        if (DETECTION_SCALE == 1) {
+            canvas.drawBitmap(bitmap, 0, 0, null);
+        } else {
+            canvas.drawBitmap(bitmap, null, new Rect(0, 0, width, height),
+                    new Paint(Paint.FILTER_BITMAP_FLAG));
+        }
+        return detectionImage;
+    }
+
+    /**
+     * Search the windows around the faces of the preview at full resolution, index the faces
+     * confirmed there and start blurring them in the background while the whole image is
+     * searched.
+     */
+    private void searchPriors() {
+        if (isCancelled() || mPreviewPriors == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        int width = mBitmapToDetectFace.getWidth();
+        int height = mBitmapToDetectFace.getHeight();
+        ArrayList<Face> priorList = new ArrayList<>();
+        mPreviewPriors.getFaces(width, height, priorList);
+        PixelBuffer image = new BitmapPixelBuffer(mBitmapToDetectFace);
+        ArrayList<Face> faceList = new ArrayList<>();
+        ArrayList<Face> windowFaces = new ArrayList<>();
+        for (Face prior : priorList) {
             if (isCancelled()) {
                 return;
             }
-            //Blur a square with width: 1.5 times the binocular distance, height: 4.5 times the binocular distance to each eye.
-            int width = (int) (face.getEyeDistance() * 1.5);
-            int height = (int) (face.getEyeDistance() * 4.5);
-            int leftEyeBlurStartX = (int) (face.getLeftEyeX() - width / 2);
-            int leftEyeBlurStartY = (int) (face.getLeftEyeY() - height / 2);
-            int rightEyeBlurStartX = (int) (face.getRightEyeX() - width / 2);
-            int rightEyeBlurStartY = (int) (face.getRightEyeY() - height / 2);
-
-            if (leftEyeBlurStartX < 0) {
-                leftEyeBlurStartX = 0;
+            //Windows wrap at the seam and are cut at the poles.
+            int side = Math.max(PRIOR_MIN_WINDOW, (int) (PRIOR_WINDOW * prior.getEyeDistance()));
+            int windowWidth = Math.min(width, side) & ~1;
+            int windowHeight = Math.min(height, side);
+            float centerX = (prior.getLeftEyeX() + prior.getRightEyeX()) / 2;
+            float centerY = (prior.getLeftEyeY() + prior.getRightEyeY()) / 2;
+            int left = Math.floorMod((int) centerX - windowWidth / 2, width);
+            int top = Math.max(0, Math.min(height - windowHeight,
+                    (int) centerY - windowHeight / 2));
+            int[] pixels = new int[windowWidth * windowHeight];
+            new WrappedPixelBuffer(image, left, windowWidth).getPixels(pixels, 0, windowWidth, 0,
+                    top, windowWidth, windowHeight);
+            windowFaces.clear();
+            mDetectorEngine.findFaces(new IntArrayPixelBuffer(pixels, windowWidth, windowHeight),
+                    windowFaces);
+            for (Face face : windowFaces) {
+                faceList.add(new Face(toEquirectangularX(face.getLeftEyeX(), left),
+                        face.getLeftEyeY() + top, toEquirectangularX(face.getRightEyeX(), left),
+                        face.getRightEyeY() + top, face.getEyeDistance()));
             }
+        }
+        for (Face face : faceList) {
+            mFaceIndex.add(face);
+        }
+        Timber.d("priors : %d searched, %d faces, %d ms", priorList.size(), faceList.size(),
+                System.currentTimeMillis() - start);
+        startEarlyBlur(faceList);
+    }
 
-            //If start x coordinate of left eye on the right side of the bitmap and blur to draw will exceed the width of bitmap
-            //or start x coordinate of right eye will exceed the width of bitmap, adjust coordinate.
-            if ((leftEyeBlurStartX >= LEFTMOST_OF_RIGHT_IMAGE
-                    && leftEyeBlurStartX + width >= mBitmapToDetectFace.getWidth())
-                    || rightEyeBlurStartX < 0) {
-                //Remove gap between blur and the edge of bitmap.
-                while (width % 32 != 0) {
-                    width++;
+    /**
+     * Blur faces on the full image in the background. Only the full image is blurred in place,
+     * and the elliptical mask is left out because it grows while the image is searched. Face
+     * tiles are cut from the full image once the image is searched, so they also leave it out.
+     *
+     * Only faces whose mosaic blocks are single grid blocks are blurred early. Each such block
+     * is averaged on its own, so the image ends up exactly as if all faces were blurred at once.
+     * Wider blocks towards the poles are clipped to the runs of blocks they fall in, and a blur
+     * with a halo reads its neighbours, which both depend on the faces found later.
+     *
+     * @param faceList faces in coordinates of the detection image
+     */
+    private void startEarlyBlur(ArrayList<Face> faceList) {
+        if (faceList.isEmpty() || mMode != MemoryPlanner.Mode.FULL || mBitmapToBlur == null
+                || mEllipseMask != null || mKeepFaceTiles
+                || !(mBlurStrategy instanceof MosaicStrategy)
+                || ((MosaicStrategy) mBlurStrategy).getDot() != MOSAIC_DOT) {
+            return;
+        }
+        ArrayList<int[]> strips = new ArrayList<>();
+        int faceCount = 0;
+        for (Face face : faceList) {
+            //The eyes of a face on the seam were wrapped one by one to both ends of the image.
+            float centerX = FaceIndex.getCenterX(face, mBitmapToDetectFace.getWidth())
+                    * mDetectionScale;
+            float centerY = (face.getLeftEyeY() + face.getRightEyeY()) / 2 * mDetectionScale;
+            strips.clear();
+            mBlurGeometry.addFace((x, y, width, height) -> strips.add(
+                    new int[] {x, y, width, height}), centerX, centerY,
+                    face.getEyeDistance() * mDetectionScale, 3f, 4.5f);
+            if (hasSingleBlocks(strips)) {
+                for (int[] strip : strips) {
+                    mBlurEngine.add(strip[0], strip[1], strip[2], strip[3]);
                 }
-                leftEyeBlurStartX = mBitmapToDetectFace.getWidth() - width;
+                faceCount++;
             }
+        }
+        Timber.d("early blur : %d faces, %d blocks", faceCount,
+                mBlurEngine.getPendingBlockCount());
+        if (faceCount == 0) {
+            return;
+        }
+        PixelBuffer buffer = new BitmapPixelBuffer(mBitmapToBlur);
+        mEarlyBlur = BLUR_POOL.submit(() -> mBlurEngine.run(buffer, this::isCancelled,
+                BLUR_POOL));
+    }
 
-            //If start x coordinate of right eye on the left side of the bitmap and start x coordinate of left eye on the right side of the bitmap
-            //or start x coordinate of right eye will exceed the width of bitmap, adjust coordinate.
-            if (rightEyeBlurStartX < 0 || (rightEyeBlurStartX <= RIGHTMOST_OF_LEFT_IMAGE
-                    && leftEyeBlurStartX >= LEFTMOST_OF_RIGHT_IMAGE)) {
-                rightEyeBlurStartX = 0;
+    /**
+     * @param strips strips of a face region as x, y, width and height
+     * @return true when every row of mosaic blocks the strips touch has blocks of one grid block
+     */
+    private boolean hasSingleBlocks(ArrayList<int[]> strips) {
+        for (int[] strip : strips) {
+            int lastRow = (strip[1] + strip[3] - 1) / MOSAIC_DOT;
+            for (int row = strip[1] / MOSAIC_DOT; row <= lastRow; row++) {
+                if (mBlurGeometry.blockScale(row * MOSAIC_DOT + MOSAIC_DOT / 2,
+                        MosaicStrategy.MAX_BLOCK_SCALE) != 1) {
+                    return false;
+                }
             }
+        }
+        return true;
+    }
 
-            //If start x coordinate of right eye on the right side of the bitmap and blur to draw will exceed the width of bitmap,
-            //adjust coordinate.
-            if (rightEyeBlurStartX >= LEFTMOST_OF_RIGHT_IMAGE
-                    && rightEyeBlurStartX + width >= mBitmapToDetectFace.getWidth()) {
-                //Remove gap between blur and the edge of bitmap.
-                while (width % 32 != 0) {
-                    width++;
-                }
-                rightEyeBlurStartX = mBitmapToDetectFace.getWidth() - width;
+    /**
+     * Wait for the faces blurred in the background, before more blocks are added to the blur or
+     * the image is released.
+     */
+    private void finishEarlyBlur() {
+        if (mEarlyBlur == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        mEarlyBlur.quietlyJoin();
+        if (mEarlyBlur.isCompletedAbnormally()) {
+            Timber.d("early blur failed : %s", mEarlyBlur.getException());
+        }
+        mEarlyBlur = null;
+        Timber.d("early blur wait : %d ms", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Detect faces but segmented faces in the equirectangular image and index them for the blur.
+     */
+    private void blurFaces() {
+        if (!isCancelled()) {
+            ArrayList<Face> faceList = new ArrayList<>();
+            if (mCubemapDetector != null) {
+                mCubemapDetector.findFaces(mBitmapToDetectFace, this::isCancelled, BLUR_POOL,
+                        faceList);
+            } else if (mTiledDetector != null) {
+                mTiledDetector.findFaces(mBitmapToDetectFace, this::isCancelled, BLUR_POOL,
+                        faceList);
+            } else {
+                findFaces(mBitmapToDetectFace, faceList);
+            }
+            for (Face face : faceList) {
+                mFaceIndex.add(face);
             }
+        }
+    }
 
-            //If blur to draw will exceed the height of bitmap, adjust coordinate.
-            if (leftEyeBlurStartY + height >= mBitmapToDetectFace.getHeight()) {
-                leftEyeBlurStartY = mBitmapToDetectFace.getHeight() - height;
-                rightEyeBlurStartY = mBitmapToDetectFace.getHeight() - height;
+    /**
+     * Find the faces of a detection image, on the pyramid when it is enabled.
+     *
+     * @param image RGB_565 image with an even width
+     * @param faceList list which receives the faces in coordinates of the image
+     */
+    private void findFaces(Bitmap image, ArrayList<Face> faceList) {
+        if (mPyramidDetector != null) {
+            mPyramidDetector.findFaces(image, this::isCancelled, faceList);
+            return;
+        }
+        mDetectorEngine.findFaces(new BitmapPixelBuffer(image), faceList);
+    }
+
+    /**
+     * Index the faces found across the seam for the blur. Their eyes may lie on both sides of
+     * the seam.
+     */
+    private void blurFacesOnSides() {
+        for (Face face : calculateCoordinateOfEyes()) {
+            mFaceIndex.add(face);
+        }
+    }
+
+    /**
+     * Blur the designated area of every face of the index, duplicates of the passes merged.
+     */
+    private void blurIndexedFaces() {
+        if (isCancelled()) {
+            return;
+        }
+        ArrayList<Face> faceList = new ArrayList<>();
+        mFaceIndex.getFaces(faceList);
+        Timber.d("faces : %d, %d duplicates merged", faceList.size(),
+                mFaceIndex.getMergeCount());
+        for (Face face : faceList) {
+            if (isCancelled()) {
+                return;
             }
+            //The region wraps around the seam.
+            addFace((face.getLeftEyeX() + face.getRightEyeX()) / 2, face.getLeftEyeY(),
+                    face.getEyeDistance());
+        }
+    }
 
-            blur(leftEyeBlurStartX, leftEyeBlurStartY, width, height);
-            blur(rightEyeBlurStartX, rightEyeBlurStartY, width, height);
+    /**
+     * Add the blur region of a face, and its ellipse when the elliptical mask is used.
+     *
+     * @param centerX x coordinate of the face center in the detection image, which may lie
+     *                beyond the seam
+     * @param centerY y coordinate of the face center in the detection image
+     * @param eyesDistance distance between the eyes in the detection image
+     */
+    private void addFace(float centerX, float centerY, float eyesDistance) {
+        centerX *= mDetectionScale;
+        centerY *= mDetectionScale;
+        eyesDistance *= mDetectionScale;
+        //Blur a region with width: 3 times the binocular distance, height: 4.5 times the binocular distance to the face,
+        //corrected for the stretch of the rows it covers.
+        mBlurGeometry.addFace(mRegionPlanner, centerX, centerY, eyesDistance, 3f, 4.5f);
+        if (mEllipseMask != null) {
+            mEllipseMask.addFace(centerX, centerY, eyesDistance, 3f, 4.5f);
         }
     }
 
@@ -278,59 +1171,32 @@ public class ImageProcessorTask extends AsyncTask<String, Void, Map<String, Stri
      */
     private ArrayList<Face> calculateCoordinateOfEyes() {
         ArrayList<Face> faceList = new ArrayList<>();
-        if (!isCancelled()) {
-            //Cut both sides of the equirectangular picture which the size is a quarter of it.
-            int trimmingWidth = (int) (mBitmapToDetectFace.getWidth() * 0.25);
-            int trimmingHeight = mBitmapToDetectFace.getHeight();
-
-            Bitmap leftTrimmingImage =
-                    Bitmap.createBitmap(mBitmapToDetectFace, 0, 0, trimmingWidth, trimmingHeight,
-                            null, true);
-            Bitmap rightTrimmingImage =
-                    Bitmap.createBitmap(mBitmapToDetectFace,
-                            mBitmapToDetectFace.getWidth() - trimmingWidth, 0,
-                            trimmingWidth, trimmingHeight, null, true);
-
-            //Decide the size of composited bitmap.
-            int compositeWidth = trimmingWidth * 2;
-            int compositeHeight = trimmingHeight;
-            //Composite the two cut bitmap.
-            Bitmap compositedImage = Bitmap
-                    .createBitmap(compositeWidth, compositeHeight, Bitmap.Config.RGB_565);
-            Canvas canvas = new Canvas(compositedImage);
-            canvas.drawBitmap(mBitmapToDetectFace, 0, 0, null);
-            canvas.drawBitmap(leftTrimmingImage, trimmingWidth, 0, null);
-            canvas.drawBitmap(rightTrimmingImage, 0, 0, null);
-
-            //Detect faces in the composited bitmap.
-            FaceDetector.Face[] faces = new FaceDetector.Face[MAX_FACE];
-            FaceDetector faceDetector = new FaceDetector(compositedImage.getWidth(),
-                    compositedImage.getHeight(), MAX_FACE);
-            int faceIsFound = faceDetector.findFaces(compositedImage, faces);
-            int middleOfCompositeImage = RIGHTMOST_OF_LEFT_IMAGE;
-
-            //Calculate coordinate of left eye and right eye.
-            for (int index = 0; index < faceIsFound; index++) {
-                PointF point = new PointF();
-                faces[index].getMidPoint(point);
+        //The seam lies inside the back face of the cube and inside one of the tiles, which are
+        //searched whole.
+        if (!isCancelled() && mCubemapDetector == null && mTiledDetector == null) {
+            //View a narrow band of columns centered on the seam, without copying it.
+            int bandWidth = (int) (mBitmapToDetectFace.getWidth() * SEAM_BAND) & ~1;
+            int bandLeft = mBitmapToDetectFace.getWidth() - bandWidth / 2;
+            PixelBuffer band = new WrappedPixelBuffer(new BitmapPixelBuffer(mBitmapToDetectFace),
+                    bandLeft, bandWidth);
 
-                float halfOfEyesDistance = faces[index].eyesDistance() / 2;
-                float leftEyeX = point.x - halfOfEyesDistance;
-                float rightEyeX = point.x + halfOfEyesDistance;
+            //Detect faces in the band.
+            ArrayList<Face> bandFaces = new ArrayList<>();
+            mDetectorEngine.findFaces(band, bandFaces);
 
-                //Calculate the binocular coordinates in the original equirectangular image.
-                if (leftEyeX < middleOfCompositeImage && rightEyeX < middleOfCompositeImage) {
-                    leftEyeX += middleOfCompositeImage * 3;
-                    rightEyeX += middleOfCompositeImage * 3;
-                } else if (leftEyeX > middleOfCompositeImage
-                        && rightEyeX > middleOfCompositeImage) {
-                    leftEyeX -= middleOfCompositeImage;
-                    rightEyeX -= middleOfCompositeImage;
-                } else {
-                    leftEyeX += middleOfCompositeImage * 3;
-                    rightEyeX -= middleOfCompositeImage;
+            //Calculate coordinate of left eye and right eye.
+            for (Face bandFace : bandFaces) {
+                //A face whose region does not reach the seam is whole in the image and is
+                //found by the first pass. The region is 3 times the binocular distance wide.
+                float centerX = (bandFace.getLeftEyeX() + bandFace.getRightEyeX()) / 2;
+                if (Math.abs(centerX - bandWidth / 2f) >= 1.5f * bandFace.getEyeDistance()) {
+                    continue;
                 }
-                Face face = new Face(leftEyeX, point.y, rightEyeX, point.y, halfOfEyesDistance * 2);
+                //Calculate the binocular coordinates in the original equirectangular image.
+                float leftEyeX = toEquirectangularX(bandFace.getLeftEyeX(), bandLeft);
+                float rightEyeX = toEquirectangularX(bandFace.getRightEyeX(), bandLeft);
+                Face face = new Face(leftEyeX, bandFace.getLeftEyeY(), rightEyeX,
+                        bandFace.getRightEyeY(), bandFace.getEyeDistance());
                 faceList.add(face);
             }
         }
@@ -338,55 +1204,18 @@ public class ImageProcessorTask extends AsyncTask<String, Void, Map<String, Stri
     }
 
     /**
-     * Blur the designated area.
+     * Convert an x coordinate of the seam band or of a window into the equirectangular image.
      *
-     * @param blurStartX start X coordinate of the blur
-     * @param blurStartY start Y coordinate of the blur
-     * @param width width of the blur
-     * @param height height of the blur
+     * @param x x coordinate in the seam band or window
+     * @param bandLeft column of the image where the band or window starts
+     * @return x coordinate in the equirectangular image
      */
-    private void blur(int blurStartX, int blurStartY, int width, int height) {
-        if (!isCancelled()) {
-            Bitmap blurToDraw = Bitmap
-                    .createBitmap(mBitmapToBlur, blurStartX, blurStartY, width, height);
-            Canvas canvas = new Canvas(mBitmapToBlur);
-            Paint paint = new Paint();
-            paint.setAntiAlias(false);
-            paint.setDither(true);
-
-            int dot = 32;
-            int square = dot * dot;
-            for (int i = 0; i < width / dot; i++) {
-                for (int j = 0; j < height / dot; j++) {
-                    if (isCancelled()) {
-                        return;
-                    }
-
-                    int r = 0;
-                    int g = 0;
-                    int b = 0;
-                    for (int k = 0; k < dot; k++) {
-                        for (int l = 0; l < dot; l++) {
-                            int dotColor = blurToDraw.getPixel(i * dot + k, j
-                                    * dot + l);
-                            r += Color.red(dotColor);
-                            g += Color.green(dotColor);
-                            b += Color.blue(dotColor);
-                        }
-                    }
-                    r = r / square;
-                    g = g / square;
-                    b = b / square;
-                    for (int k = 0; k < dot; k++) {
-                        for (int l = 0; l < dot; l++) {
-                            blurToDraw.setPixel(i * dot + k, j * dot + l,
-                                    Color.rgb(r, g, b));
-                        }
-                    }
-                }
-            }
-            canvas.drawBitmap(blurToDraw, blurStartX, blurStartY, paint);
+    private float toEquirectangularX(float x, int bandLeft) {
+        float imageX = x + bandLeft;
+        if (imageX >= mBitmapToDetectFace.getWidth()) {
+            return imageX - mBitmapToDetectFace.getWidth();
         }
+        return imageX;
     }
 
     /**
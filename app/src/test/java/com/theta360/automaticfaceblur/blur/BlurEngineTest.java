@@ -0,0 +1,270 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import org.junit.Test;
+
+/**
+ * Memory used by BlurEngine.run() once the scratch buffers of its workers have grown, and
+ * mosaic blocks around the seam.
+ */
+public class BlurEngineTest {
+    private static final int WIDTH = 2048;
+    private static final int HEIGHT = 1024;
+    private static final int GRID = 32;
+    //Bytes a run may allocate whatever the number of faces: the fork/join tasks, which are
+    //bounded by the parallelism of the pool.
+    private static final long MAX_RUN_BYTES = 16 * 1024;
+    //Runs measured for each number of faces. Which worker blurs which group changes from run
+    //to run, so a worker may still grow its scratch buffers after the warm-up, but not in
+    //every run.
+    private static final int MEASURED_RUNS = 5;
+    private static final Cancellable NEVER_CANCELLED = new Cancellable() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    @Test
+    public void run_allocatesNothingPerFaceWithMosaic() {
+        checkAllocations(new MosaicStrategy(GRID));
+    }
+
+    @Test
+    public void run_allocatesNothingPerFaceWithBoxBlur() {
+        checkAllocations(new BoxBlurStrategy(12, BoxBlurStrategy.GAUSSIAN_PASSES));
+    }
+
+    @Test
+    public void run_reusesTheScratchOfEarlierEngines() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        PixelBuffer buffer = randomBuffer();
+        BlurStrategy strategy = new MosaicStrategy(GRID);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            warmUp(new BlurEngine(WIDTH, HEIGHT, GRID, strategy), buffer, pool);
+            //Every job builds its own engine, whose first run finds the grown scratch.
+            long bytes = measureRun(threads, () -> new BlurEngine(WIDTH, HEIGHT, GRID, strategy),
+                    buffer, pool, 300);
+            assertTrue("300 faces of new engines allocate " + bytes + " bytes",
+                    bytes <= MAX_RUN_BYTES);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void run_keepsMosaicBlocksOnTheirSideOfTheSeam() {
+        //Neither the grid nor the widened blocks divide the width.
+        int width = 5000;
+        int height = 512;
+        checkSeamMosaic(width, height, null);
+        checkSeamMosaic(width, height, new BlurGeometry(width, height, GRID));
+    }
+
+    @Test
+    public void run_clearsThePendingBlocks() {
+        BlurEngine engine = new BlurEngine(WIDTH, HEIGHT, GRID, new MosaicStrategy(GRID));
+        engine.add(WIDTH - 40, 100, 80, 50);
+        assertEquals(4 * 2, engine.getPendingBlockCount());
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            engine.run(new IntArrayPixelBuffer(new int[WIDTH * HEIGHT], WIDTH, HEIGHT),
+                    NEVER_CANCELLED, pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(0, engine.getPendingBlockCount());
+    }
+
+    /**
+     * Pixelate regions across the seam and near the poles, and compare the image with a mosaic
+     * of each run of blocks split at the seam, whose blocks are aligned to the image.
+     */
+    private static void checkSeamMosaic(int width, int height, BlurGeometry geometry) {
+        int[] pixels = new int[width * height];
+        Random random = new Random(8);
+        for (int index = 0; index < pixels.length; index++) {
+            pixels[index] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        int[] expected = pixels.clone();
+        int[][] regions = {{width - 50, 40, 120, 60}, {-300, 0, 700, 40}, {width - 9, 300, 20, 20},
+                {4000, 480, 1500, 32}};
+        BlurEngine engine = new BlurEngine(width, height, GRID, new MosaicStrategy(GRID, geometry));
+        int columns = (width + GRID - 1) / GRID;
+        boolean[][] pending = new boolean[(height + GRID - 1) / GRID][columns];
+        for (int[] region : regions) {
+            engine.add(region[0], region[1], region[2], region[3]);
+            for (int y = region[1]; y < region[1] + region[3]; y++) {
+                for (int x = region[0]; x < region[0] + region[2]; x++) {
+                    pending[y / GRID][Math.floorMod(x, width) / GRID] = true;
+                }
+            }
+        }
+        for (int row = 0; row < pending.length; row++) {
+            int blockWidth = GRID;
+            if (geometry != null) {
+                blockWidth *= geometry.blockScale(row * GRID + GRID / 2,
+                        MosaicStrategy.MAX_BLOCK_SCALE);
+            }
+            int top = row * GRID;
+            int bottom = Math.min(top + GRID, height);
+            for (int first = 0; first < columns; first++) {
+                if (!pending[row][first] || (first > 0 && pending[row][first - 1])) {
+                    continue;
+                }
+                int last = first;
+                while (last < columns && pending[row][last]) {
+                    last++;
+                }
+                int runLeft = first * GRID;
+                int runRight = Math.min(last * GRID, width);
+                for (int left = runLeft / blockWidth * blockWidth; left < runRight;
+                        left += blockWidth) {
+                    averageBlock(pixels, expected, width, Math.max(left, runLeft), top,
+                            Math.min(left + blockWidth, runRight), bottom);
+                }
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            engine.run(new IntArrayPixelBuffer(pixels, width, height), NEVER_CANCELLED, pool);
+        } finally {
+            pool.shutdown();
+        }
+        for (int index = 0; index < pixels.length; index++) {
+            if (expected[index] != pixels[index]) {
+                throw new AssertionError("pixel at " + index % width + "," + index / width
+                        + (geometry != null ? " with widened blocks" : "") + ": expected "
+                        + Integer.toHexString(expected[index]) + ", got "
+                        + Integer.toHexString(pixels[index]));
+            }
+        }
+    }
+
+    /**
+     * Fill a block of the expected image with the average of the source, summed pixel by pixel.
+     */
+    private static void averageBlock(int[] source, int[] expected, int width, int left, int top,
+            int right, int bottom) {
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        for (int y = top; y < bottom; y++) {
+            for (int x = left; x < right; x++) {
+                int color = source[y * width + x];
+                red += color >> 16 & 0xFF;
+                green += color >> 8 & 0xFF;
+                blue += color & 0xFF;
+            }
+        }
+        long area = (long) (right - left) * (bottom - top);
+        int average = 0xFF000000 | (int) (red / area) << 16 | (int) (green / area) << 8
+                | (int) (blue / area);
+        for (int y = top; y < bottom; y++) {
+            Arrays.fill(expected, y * width + left, y * width + right, average);
+        }
+    }
+
+    /**
+     * Run the engine on few and on many faces after a warm-up, and check that neither run
+     * allocates more than the fork/join tasks.
+     */
+    private static void checkAllocations(BlurStrategy strategy) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        PixelBuffer buffer = randomBuffer();
+        BlurEngine engine = new BlurEngine(WIDTH, HEIGHT, GRID, strategy);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            warmUp(engine, buffer, pool);
+            long few = measureRun(threads, () -> engine, buffer, pool, 10);
+            long many = measureRun(threads, () -> engine, buffer, pool, 300);
+            assertTrue("10 faces allocate " + few + " bytes", few <= MAX_RUN_BYTES);
+            assertTrue("300 faces allocate " + many + " bytes", many <= MAX_RUN_BYTES);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static PixelBuffer randomBuffer() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        Random random = new Random(3);
+        for (int index = 0; index < pixels.length; index++) {
+            pixels[index] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        return new IntArrayPixelBuffer(pixels, WIDTH, HEIGHT);
+    }
+
+    /**
+     * Run the engine a few times, which grows the scratch buffers of every worker to the
+     * widest band.
+     */
+    private static void warmUp(BlurEngine engine, PixelBuffer buffer, ForkJoinPool pool) {
+        for (int run = 0; run < 5; run++) {
+            addFaces(engine, new Random(4), 300);
+            engine.run(buffer, NEVER_CANCELLED, pool);
+        }
+    }
+
+    /**
+     * @param engines engine of each run, either the same or a new one
+     * @return fewest bytes allocated by every thread in a run blurring the faces
+     */
+    private static long measureRun(com.sun.management.ThreadMXBean threads,
+            Supplier<BlurEngine> engines, PixelBuffer buffer, ForkJoinPool pool,
+            int faceCount) {
+        long fewest = Long.MAX_VALUE;
+        for (int run = 0; run < MEASURED_RUNS; run++) {
+            BlurEngine engine = engines.get();
+            addFaces(engine, new Random(4), faceCount);
+            long[] ids = threads.getAllThreadIds();
+            long[] before = threads.getThreadAllocatedBytes(ids);
+            engine.run(buffer, NEVER_CANCELLED, pool);
+            long[] after = threads.getThreadAllocatedBytes(ids);
+            long bytes = 0;
+            for (int index = 0; index < ids.length; index++) {
+                if (before[index] >= 0 && after[index] >= 0) {
+                    bytes += after[index] - before[index];
+                }
+            }
+            fewest = Math.min(fewest, bytes);
+        }
+        return fewest;
+    }
+
+    /**
+     * Add face regions spread over the image, some of them across the seam.
+     */
+    private static void addFaces(BlurEngine engine, Random random, int count) {
+        for (int face = 0; face < count; face++) {
+            int size = 16 + random.nextInt(160);
+            engine.add(random.nextInt(WIDTH) - size / 2, random.nextInt(HEIGHT - size), size,
+                    size * 3 / 2);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Running sums of BoxBlurStrategy against box filters summing their whole window.
+ */
+public class BoxBlurStrategyTest {
+    private static final int WIDTH = 61;
+    private static final int HEIGHT = 47;
+
+    @Test
+    public void blur_matchesBoxFiltersOverTheWholeWindow() {
+        for (int radius : new int[] {1, 4, 30}) {
+            for (int passes = 1; passes <= BoxBlurStrategy.GAUSSIAN_PASSES; passes++) {
+                checkRegion(radius, passes, 0, 0, WIDTH, HEIGHT);
+                checkRegion(radius, passes, 13, 9, 40, 30);
+            }
+        }
+    }
+
+    /**
+     * Blur a region of a random band and compare it with the brute force filters applied to
+     * the whole band.
+     */
+    private static void checkRegion(int radius, int passes, int left, int top, int right,
+            int bottom) {
+        Random random = new Random(radius * 31 + passes);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int index = 0; index < pixels.length; index++) {
+            pixels[index] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        int[][] planes = new int[3][WIDTH * HEIGHT];
+        for (int index = 0; index < pixels.length; index++) {
+            for (int channel = 0; channel < 3; channel++) {
+                planes[channel][index] = pixels[index] >> (16 - 8 * channel) & 0xFF;
+            }
+        }
+        for (int channel = 0; channel < 3; channel++) {
+            for (int pass = 0; pass < passes; pass++) {
+                planes[channel] = boxFilter(planes[channel], radius, true);
+            }
+            for (int pass = 0; pass < passes; pass++) {
+                planes[channel] = boxFilter(planes[channel], radius, false);
+            }
+        }
+        int[] expected = pixels.clone();
+        for (int y = top; y < bottom; y++) {
+            for (int x = left; x < right; x++) {
+                int index = y * WIDTH + x;
+                expected[index] = 0xFF000000 | planes[0][index] << 16 | planes[1][index] << 8
+                        | planes[2][index];
+            }
+        }
+
+        new BoxBlurStrategy(radius, passes).newKernel().blur(pixels, 0, 0, WIDTH, WIDTH, HEIGHT,
+                left, top, right, bottom);
+        for (int y = top; y < bottom; y++) {
+            int[] expectedRow = new int[right - left];
+            int[] actualRow = new int[right - left];
+            System.arraycopy(expected, y * WIDTH + left, expectedRow, 0, right - left);
+            System.arraycopy(pixels, y * WIDTH + left, actualRow, 0, right - left);
+            assertArrayEquals("radius " + radius + ", " + passes + " passes, row " + y,
+                    expectedRow, actualRow);
+        }
+    }
+
+    /**
+     * One box filter summing the whole window of every pixel, with the edges extended.
+     */
+    private static int[] boxFilter(int[] plane, int radius, boolean horizontal) {
+        int window = 2 * radius + 1;
+        int[] result = new int[plane.length];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int sum = 0;
+                for (int offset = -radius; offset <= radius; offset++) {
+                    int sampleX = horizontal ? clamp(x + offset, WIDTH - 1) : x;
+                    int sampleY = horizontal ? y : clamp(y + offset, HEIGHT - 1);
+                    sum += plane[sampleY * WIDTH + sampleX];
+                }
+                result[y * WIDTH + x] = (sum + window / 2) / window;
+            }
+        }
+        return result;
+    }
+
+    private static int clamp(int value, int last) {
+        return Math.max(0, Math.min(value, last));
+    }
+}
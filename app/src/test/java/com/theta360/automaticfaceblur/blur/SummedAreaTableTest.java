@@ -0,0 +1,110 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.blur;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Averages of SummedAreaTable against sums of every pixel.
+ */
+public class SummedAreaTableTest {
+    @Test
+    public void average_matchesTheSumOfThePixels() {
+        Random random = new Random(5);
+        int stride = 97;
+        int[] pixels = randomPixels(random, stride * 61);
+        SummedAreaTable table = new SummedAreaTable();
+        //A region inside a larger band, as the mosaic kernel builds it.
+        int regionX = 7;
+        int regionY = 3;
+        int width = 83;
+        int height = 55;
+        int offset = regionY * stride + regionX;
+        table.build(pixels, offset, stride, width, height);
+        assertEquals(width, table.getWidth());
+        assertEquals(height, table.getHeight());
+        for (int check = 0; check < 2000; check++) {
+            int left = random.nextInt(width);
+            int top = random.nextInt(height);
+            int right = left + 1 + random.nextInt(width - left);
+            int bottom = top + 1 + random.nextInt(height - top);
+            assertEquals("average of " + left + "," + top + " to " + right + "," + bottom,
+                    bruteForceAverage(pixels, offset, stride, left, top, right, bottom),
+                    table.average(left, top, right, bottom));
+        }
+    }
+
+    @Test
+    public void average_matchesTheSumOfThePixelsAfterASmallerBuild() {
+        Random random = new Random(6);
+        SummedAreaTable table = new SummedAreaTable();
+        table.build(randomPixels(random, 128 * 128), 0, 128, 128, 128);
+        //The table keeps its larger arrays, which must not leak into the smaller region.
+        int[] pixels = randomPixels(random, 20 * 9);
+        table.build(pixels, 0, 20, 20, 9);
+        assertEquals(bruteForceAverage(pixels, 0, 20, 0, 0, 20, 9), table.average(0, 0, 20, 9));
+        assertEquals(bruteForceAverage(pixels, 0, 20, 19, 8, 20, 9),
+                table.average(19, 8, 20, 9));
+    }
+
+    @Test
+    public void average_isExactForWhitePixels() {
+        //The largest sums a table holds, which must not overflow.
+        int width = 4096;
+        int height = SummedAreaTable.MAX_PIXELS / width;
+        int[] pixels = new int[width];
+        Arrays.fill(pixels, 0xFFFFFFFF);
+        SummedAreaTable table = new SummedAreaTable();
+        //Every row of the region reads the same white row.
+        table.build(pixels, 0, 0, width, height);
+        assertEquals(0xFFFFFFFF, table.average(0, 0, width, height));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void build_rejectsRegionsWhoseSumsOverflow() {
+        new SummedAreaTable().build(new int[1], 0, 0, 65536, 65536);
+    }
+
+    private static int[] randomPixels(Random random, int count) {
+        int[] pixels = new int[count];
+        for (int index = 0; index < count; index++) {
+            pixels[index] = random.nextInt();
+        }
+        return pixels;
+    }
+
+    private static int bruteForceAverage(int[] pixels, int offset, int stride, int left, int top,
+            int right, int bottom) {
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        for (int y = top; y < bottom; y++) {
+            for (int x = left; x < right; x++) {
+                int color = pixels[offset + y * stride + x];
+                red += color >> 16 & 0xFF;
+                green += color >> 8 & 0xFF;
+                blue += color & 0xFF;
+            }
+        }
+        long area = (long) (right - left) * (bottom - top);
+        return 0xFF000000 | (int) (red / area) << 16 | (int) (green / area) << 8
+                | (int) (blue / area);
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.detect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.theta360.automaticfaceblur.Face;
+import com.theta360.automaticfaceblur.blur.IntArrayPixelBuffer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * CascadeFaceDetectorEngine run on the JVM through MeasuredFaceDetectorEngine, with hand-made
+ * cascades which find schematic faces.
+ */
+public class CascadeFaceDetectorEngineTest {
+    private static final float SCALE_FACTOR = 1.1f;
+    private static final int MIN_NEIGHBORS = 2;
+    private static final int MIN_SIZE = 24;
+    //Faces drawn as left, top and side, each side a multiple of the window of the cascades.
+    private static final int[][] FACES = {{40, 40, 48}, {200, 56, 72}};
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 160;
+    //Runs counted by the measure.
+    private static final int RUNS = 3;
+
+    @Test
+    public void findFaces_findsTheFacesWithHaarFeatures() throws IOException {
+        checkFaces(readCascade("synthetic_face_haar.xml"));
+    }
+
+    @Test
+    public void findFaces_findsTheFacesWithLbpFeatures() throws IOException {
+        checkFaces(readCascade("synthetic_face_lbp.xml"));
+    }
+
+    @Test
+    public void findFaces_findsNothingInTheBackground() throws IOException {
+        for (String name : new String[] {"synthetic_face_haar.xml", "synthetic_face_lbp.xml"}) {
+            MeasuredFaceDetectorEngine engine = measure(readCascade(name));
+            List<Face> faces = new ArrayList<>();
+            engine.findFaces(new IntArrayPixelBuffer(background(WIDTH, HEIGHT), WIDTH, HEIGHT),
+                    faces);
+            assertEquals(name + ": " + describe(faces), 0, faces.size());
+        }
+    }
+
+    @Test
+    public void findFaces_reusesTheEngineForImagesOfAnotherShape() throws IOException {
+        MeasuredFaceDetectorEngine engine = measure(readCascade("synthetic_face_haar.xml"));
+        engine.findFaces(new IntArrayPixelBuffer(background(WIDTH, HEIGHT), WIDTH, HEIGHT),
+                new ArrayList<Face>());
+        //A narrow image of the same area needs larger integral images.
+        int width = 128;
+        int height = WIDTH * HEIGHT / width;
+        int[] pixels = background(width, height);
+        drawFace(pixels, width, FACES[0][0], FACES[0][1], FACES[0][2]);
+        List<Face> faces = new ArrayList<>();
+        engine.findFaces(new IntArrayPixelBuffer(pixels, width, height), faces);
+        assertEquals(describe(faces), 1, faces.size());
+    }
+
+    @Test
+    public void read_keepsTheShapeOfTheCascade() throws IOException {
+        Cascade haar = readCascade("synthetic_face_haar.xml");
+        assertEquals(24, haar.getWindowWidth());
+        assertEquals(24, haar.getWindowHeight());
+        assertEquals(3, haar.getStageCount());
+        assertEquals(1, readCascade("synthetic_face_lbp.xml").getStageCount());
+    }
+
+    @Test
+    public void findFaces_countsTheRunsOfAnEquirectangularImage() throws IOException {
+        int width = 1280;
+        int height = 640;
+        int[] pixels = background(width, height);
+        for (int[] face : FACES) {
+            drawFace(pixels, width, face[0] * 3, face[1] * 3, face[2] * 2);
+        }
+        IntArrayPixelBuffer image = new IntArrayPixelBuffer(pixels, width, height);
+        for (String name : new String[] {"synthetic_face_haar.xml", "synthetic_face_lbp.xml"}) {
+            MeasuredFaceDetectorEngine engine = measure(readCascade(name));
+            for (int run = 0; run < RUNS; run++) {
+                List<Face> faces = new ArrayList<>();
+                engine.findFaces(image, faces);
+                assertEquals(name, FACES.length, faces.size());
+            }
+            assertEquals(RUNS, engine.getCallCount());
+            assertEquals((long) RUNS * width * height, engine.getPixelCount());
+            assertEquals(RUNS * FACES.length, engine.getFaceCount());
+            assertTrue(name, engine.getMillis() >= 0);
+        }
+    }
+
+    private void checkFaces(Cascade cascade) {
+        int[] pixels = background(WIDTH, HEIGHT);
+        for (int[] face : FACES) {
+            drawFace(pixels, WIDTH, face[0], face[1], face[2]);
+        }
+        MeasuredFaceDetectorEngine engine = measure(cascade);
+        List<Face> faces = new ArrayList<>();
+        engine.findFaces(new IntArrayPixelBuffer(pixels, WIDTH, HEIGHT), faces);
+        assertEquals(describe(faces), FACES.length, faces.size());
+        assertEquals(1, engine.getCallCount());
+        assertEquals(FACES.length, engine.getFaceCount());
+        for (int[] face : FACES) {
+            float size = face[2];
+            float centerX = face[0] + size / 2;
+            //The eyes of the schematic face are drawn from 7/24 to 11/24 of its side.
+            float eyeY = face[1] + size * 9 / 24;
+            boolean found = false;
+            for (Face candidate : faces) {
+                float candidateX = (candidate.getLeftEyeX() + candidate.getRightEyeX()) / 2;
+                found |= Math.abs(candidateX - centerX) < size / 8
+                        && Math.abs(candidate.getLeftEyeY() - eyeY) < size / 8
+                        && Math.abs(candidate.getEyeDistance() - size * 0.4f) < size / 8;
+            }
+            assertTrue("face at " + face[0] + "," + face[1] + " in " + describe(faces), found);
+        }
+    }
+
+    private static String describe(List<Face> faces) {
+        StringBuilder builder = new StringBuilder();
+        for (Face face : faces) {
+            builder.append(String.format("(%.0f,%.0f %.0f) ", face.getLeftEyeX(),
+                    face.getLeftEyeY(), face.getEyeDistance()));
+        }
+        return builder.toString();
+    }
+
+    private static MeasuredFaceDetectorEngine measure(Cascade cascade) {
+        return new MeasuredFaceDetectorEngine(
+                new CascadeFaceDetectorEngine(cascade, SCALE_FACTOR, MIN_NEIGHBORS, MIN_SIZE));
+    }
+
+    private Cascade readCascade(String name) throws IOException {
+        try (InputStream input = getClass().getResourceAsStream(name)) {
+            return Cascade.read(input);
+        }
+    }
+
+    /**
+     * @return smooth shading with soft stripes, which holds no face
+     */
+    private static int[] background(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double level = 110 + 30 * Math.sin(x * 0.05) * Math.cos(y * 0.07)
+                        + 20.0 * y / height;
+                pixels[y * width + x] = gray((int) level);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Draw a schematic face: a bright square with two dark eyes, a bright bridge between them
+     * and a dark mouth, on a grid of 24 units like the window of the cascades.
+     */
+    private static void drawFace(int[] pixels, int width, int left, int top, int size) {
+        int unit = size / 24;
+        fill(pixels, width, left, top, 24 * unit, 24 * unit, 180);
+        fill(pixels, width, left + 5 * unit, top + 7 * unit, 5 * unit, 4 * unit, 40);
+        fill(pixels, width, left + 14 * unit, top + 7 * unit, 5 * unit, 4 * unit, 40);
+        fill(pixels, width, left + 10 * unit, top + 6 * unit, 4 * unit, 5 * unit, 210);
+        fill(pixels, width, left + 8 * unit, top + 17 * unit, 8 * unit, 2 * unit, 60);
+    }
+
+    private static void fill(int[] pixels, int width, int left, int top, int rectWidth,
+            int rectHeight, int level) {
+        for (int y = top; y < top + rectHeight; y++) {
+            for (int x = left; x < left + rectWidth; x++) {
+                pixels[y * width + x] = gray(level);
+            }
+        }
+    }
+
+    private static int gray(int level) {
+        return 0xFF000000 | level << 16 | level << 8 | level;
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.detect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.theta360.automaticfaceblur.Face;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Entries of DetectionCache on storage: hits, misses, eviction of the least recently used
+ * entries and broken entries.
+ */
+public class DetectionCacheTest {
+    private static final int VERSION = 1;
+    private static final String PARAMETERS = "android 2";
+    private static final int MAX_ENTRIES = 2;
+    private static final List<Face> FACES = Arrays.asList(new Face(10, 20, 30, 20, 20),
+            new Face(400, 50, 410, 52, 10));
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private File mDirectory;
+    private DetectionCache mCache;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(mFolder.getRoot(), "faces");
+        mCache = new DetectionCache(mDirectory, MAX_ENTRIES, VERSION);
+    }
+
+    @Test
+    public void get_returnsTheStoredFaces() throws IOException {
+        mCache.put(1, PARAMETERS, 512, 256, FACES);
+
+        DetectionCache.Detection detection = mCache.get(1, PARAMETERS);
+        assertNotNull(detection);
+        assertEquals(512, detection.getWidth());
+        assertEquals(256, detection.getHeight());
+        assertEquals(FACES.size(), detection.getFaces().size());
+        for (int index = 0; index < FACES.size(); index++) {
+            Face expected = FACES.get(index);
+            Face face = detection.getFaces().get(index);
+            assertEquals(expected.getLeftEyeX(), face.getLeftEyeX(), 0f);
+            assertEquals(expected.getLeftEyeY(), face.getLeftEyeY(), 0f);
+            assertEquals(expected.getRightEyeX(), face.getRightEyeX(), 0f);
+            assertEquals(expected.getRightEyeY(), face.getRightEyeY(), 0f);
+            assertEquals(expected.getEyeDistance(), face.getEyeDistance(), 0f);
+        }
+    }
+
+    @Test
+    public void get_missesAnotherKeyVersionOrParameters() throws IOException {
+        mCache.put(1, PARAMETERS, 512, 256, FACES);
+
+        assertNull(mCache.get(2, PARAMETERS));
+        assertNull(mCache.get(1, "android 4"));
+        assertNull(new DetectionCache(mDirectory, MAX_ENTRIES, VERSION + 1).get(1, PARAMETERS));
+    }
+
+    @Test
+    public void put_evictsTheLeastRecentlyUsedEntry() throws IOException {
+        mCache.put(1, PARAMETERS, 512, 256, FACES);
+        mCache.put(2, PARAMETERS, 512, 256, FACES);
+        //Times far apart, as storage may keep them in seconds.
+        assertTrue(getFile(1).setLastModified(1000000000L));
+        assertTrue(getFile(2).setLastModified(2000000000L));
+        assertNotNull(mCache.get(1, PARAMETERS));
+
+        mCache.put(3, PARAMETERS, 512, 256, FACES);
+
+        assertNull(mCache.get(2, PARAMETERS));
+        assertNotNull(mCache.get(1, PARAMETERS));
+        assertNotNull(mCache.get(3, PARAMETERS));
+        assertEquals(MAX_ENTRIES, mDirectory.list().length);
+    }
+
+    @Test
+    public void get_ignoresATruncatedEntry() throws IOException {
+        mCache.put(1, PARAMETERS, 512, 256, FACES);
+        File file = getFile(1);
+        try (RandomAccessFile entry = new RandomAccessFile(file, "rw")) {
+            entry.setLength(entry.length() - 3);
+        }
+
+        assertNull(mCache.get(1, PARAMETERS));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void get_ignoresAnEntryWithABrokenHeader() throws IOException {
+        mCache.put(1, PARAMETERS, 512, 256, FACES);
+        File file = getFile(1);
+        try (RandomAccessFile entry = new RandomAccessFile(file, "rw")) {
+            entry.writeInt(0);
+        }
+
+        assertNull(mCache.get(1, PARAMETERS));
+    }
+
+    @Test
+    public void get_ignoresAnEntryWithABrokenFaceCount() throws IOException {
+        mCache.put(1, PARAMETERS, 512, 256, FACES);
+        File file = getFile(1);
+        for (int count : new int[] {Integer.MAX_VALUE, -1}) {
+            try (RandomAccessFile entry = new RandomAccessFile(file, "rw")) {
+                //Magic, version, parameters, width and height come before the count.
+                entry.seek(4 + 4 + 2 + PARAMETERS.length() + 4 + 4);
+                entry.writeInt(count);
+            }
+
+            assertNull(mCache.get(1, PARAMETERS));
+            assertFalse(file.exists());
+            mCache.put(1, PARAMETERS, 512, 256, FACES);
+        }
+    }
+
+    @Test
+    public void hashScan_ignoresTheMetadata() throws IOException {
+        byte[] scan = {0x12, 0x34, 0x56, (byte) 0xFF, (byte) 0xD9};
+        long key = DetectionCache.hashScan(writeJpeg("first.jpg", new byte[] {1, 2}, scan));
+
+        assertEquals(key, DetectionCache.hashScan(
+                writeJpeg("second.jpg", new byte[] {3, 4, 5, 6}, scan)));
+        scan[1]++;
+        assertTrue(key != DetectionCache.hashScan(
+                writeJpeg("third.jpg", new byte[] {1, 2}, scan)));
+    }
+
+    private File getFile(long key) {
+        String prefix = String.format(Locale.US, "%016x-", key);
+        File[] files = mDirectory.listFiles((directory, name) -> name.startsWith(prefix));
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    /**
+     * Write a JPEG file of an APP1 segment holding the metadata, then a scan.
+     */
+    private File writeJpeg(String name, byte[] metadata, byte[] scan) throws IOException {
+        File file = mFolder.newFile(name);
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE1, 0,
+                    (byte) (metadata.length + 2)});
+            output.write(metadata);
+            output.write(new byte[] {(byte) 0xFF, (byte) 0xDA});
+            output.write(scan);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.detect;
+
+import static org.junit.Assert.assertEquals;
+
+import com.theta360.automaticfaceblur.Face;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Centers and merges of FaceIndex, around the seam of the equirectangular image and inside it.
+ */
+public class FaceIndexTest {
+    private static final int WIDTH = 1024;
+    private static final int HEIGHT = 512;
+    private static final int CELL_SIZE = 32;
+    private static final float EYES_DISTANCE = 30;
+
+    @Test
+    public void getCenterX_faceOfPriorWindowAcrossSeam() {
+        //A window around a prior on the seam starts near the right end and wraps to the left.
+        int windowLeft = WIDTH - 32;
+        Face face = new Face(toImageX(24, windowLeft), 100, toImageX(40, windowLeft), 100, 16);
+        assertEquals(WIDTH - 8, face.getLeftEyeX(), 0f);
+        assertEquals(8, face.getRightEyeX(), 0f);
+
+        assertEquals(0, FaceIndex.getCenterX(face, WIDTH), 0.01f);
+    }
+
+    @Test
+    public void getCenterX_faceInsideImage() {
+        Face face = new Face(300, 100, 340, 104, 40);
+
+        assertEquals(320, FaceIndex.getCenterX(face, WIDTH), 0.01f);
+    }
+
+    @Test
+    public void add_keepsAFaceSplitAcrossTheSeamWhole() {
+        FaceIndex index = new FaceIndex(WIDTH, HEIGHT, CELL_SIZE);
+        index.add(new Face(WIDTH - 15, 100, 15, 100, EYES_DISTANCE));
+
+        Face face = getOnlyFace(index);
+        assertEquals(0, FaceIndex.getCenterX(face, WIDTH) % WIDTH, 0.01f);
+        assertEquals(100, face.getLeftEyeY(), 0.01f);
+        assertEquals(EYES_DISTANCE, face.getEyeDistance(), 0.01f);
+    }
+
+    @Test
+    public void add_mergesDuplicatesOnBothSidesOfTheSeam() {
+        FaceIndex index = new FaceIndex(WIDTH, HEIGHT, CELL_SIZE);
+        index.add(face(WIDTH - 16, 100));
+        index.add(face(10, 100));
+
+        assertEquals(1, index.getMergeCount());
+        //Centered between the two across the seam, grown by half the distance between them.
+        Face face = getOnlyFace(index);
+        assertEquals(WIDTH - 3, FaceIndex.getCenterX(face, WIDTH), 0.01f);
+        assertEquals(EYES_DISTANCE + 13, face.getEyeDistance(), 0.01f);
+    }
+
+    @Test
+    public void add_mergesDuplicatesIntoARegionHoldingBoth() {
+        FaceIndex index = new FaceIndex(WIDTH, HEIGHT, CELL_SIZE);
+        index.add(face(300, 200));
+        index.add(face(320, 190));
+
+        Face face = getOnlyFace(index);
+        assertEquals(310, FaceIndex.getCenterX(face, WIDTH), 0.01f);
+        assertEquals(195, face.getLeftEyeY(), 0.01f);
+        assertEquals(EYES_DISTANCE + 10, face.getEyeDistance(), 0.01f);
+    }
+
+    @Test
+    public void add_keepsFacesFarApartSeparate() {
+        FaceIndex index = new FaceIndex(WIDTH, HEIGHT, CELL_SIZE);
+        index.add(face(100, 200));
+        index.add(face(400, 200));
+        index.add(face(100, 300));
+        //Near the seam on both sides, but further apart than the eye distance.
+        index.add(face(20, 100));
+        index.add(face(WIDTH - 20, 100));
+
+        assertEquals(5, index.getCount());
+        assertEquals(0, index.getMergeCount());
+        List<Face> faces = new ArrayList<>();
+        index.getFaces(faces);
+        assertEquals(5, faces.size());
+    }
+
+    private static Face face(float centerX, float centerY) {
+        return new Face(centerX - EYES_DISTANCE / 2, centerY, centerX + EYES_DISTANCE / 2,
+                centerY, EYES_DISTANCE);
+    }
+
+    private static Face getOnlyFace(FaceIndex index) {
+        List<Face> faces = new ArrayList<>();
+        index.getFaces(faces);
+        assertEquals(1, index.getCount());
+        assertEquals(1, faces.size());
+        return faces.get(0);
+    }
+
+    /**
+     * Convert an x coordinate of a window into the image, the way the task wraps each eye.
+     */
+    private static float toImageX(float x, int windowLeft) {
+        float imageX = x + windowLeft;
+        return imageX >= WIDTH ? imageX - WIDTH : imageX;
+    }
+}
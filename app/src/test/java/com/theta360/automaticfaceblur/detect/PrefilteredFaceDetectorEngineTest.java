@@ -0,0 +1,243 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.detect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.support.annotation.NonNull;
+import com.theta360.automaticfaceblur.Face;
+import com.theta360.automaticfaceblur.blur.IntArrayPixelBuffer;
+import com.theta360.automaticfaceblur.blur.PixelBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Recall of PrefilteredFaceDetectorEngine: every face the detector finds in the whole image
+ * must lie whole in a rectangle the prefilter keeps.
+ *
+ * The detector is an oracle which finds the drawn faces by a marker pixel at their center, as
+ * long as the face is whole in the image it is given. Scenes are drawn with the surfaces of
+ * real shots, faces of several skin tones and sizes among them.
+ */
+public class PrefilteredFaceDetectorEngineTest {
+    private static final int WIDTH = 2048;
+    private static final int HEIGHT = 1024;
+    private static final int CELL_SIZE = 32;
+    private static final int MARGIN = 2;
+    private static final float MAX_COVERAGE = 0.5f;
+    //Center of a face, with its index in the blue channel. No surface of the scenes has it.
+    private static final int MARKER = 0xFF01FE00;
+    private static final int[][] SKIN_TONES = {
+            {255, 219, 172}, {241, 194, 125}, {224, 172, 105}, {198, 134, 66}, {141, 85, 36},
+            {232, 190, 172}, {255, 205, 148}};
+    //Sides of the faces in pixels of the detection image.
+    private static final int[] FACE_SIZES = {16, 20, 24, 32, 48, 64, 96};
+    private static final String[] SCENES = {"outdoor", "office", "indoor"};
+
+    @Test
+    public void findFaces_keepsEveryFaceOfColoredScenes() {
+        for (String scene : SCENES) {
+            for (int seed = 0; seed < 8; seed++) {
+                List<int[]> drawn = new ArrayList<>();
+                int[] pixels = drawScene(scene, new Random(scene.hashCode() * 31 + seed), drawn);
+                //Any coverage is accepted, so the scenes are cropped and not searched whole.
+                PrefilteredFaceDetectorEngine engine = new PrefilteredFaceDetectorEngine(
+                        new OracleEngine(drawn), CELL_SIZE, MARGIN, 1f);
+                List<Face> faces = new ArrayList<>();
+                engine.findFaces(new IntArrayPixelBuffer(pixels, WIDTH, HEIGHT), faces);
+
+                String name = scene + " " + seed;
+                assertEquals(name + " " + engine, 0, engine.getFallbackCount());
+                assertTrue(name + " " + engine,
+                        engine.getSearchedPixels() < engine.getImagePixels());
+                BitSet found = findDrawnFaces(faces, drawn);
+                for (int face = 0; face < drawn.size(); face++) {
+                    int[] box = drawn.get(face);
+                    assertTrue(name + ": face of " + box[2] + " px at " + box[0] + "," + box[1]
+                            + " dropped", found.get(face));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void findFaces_searchesGrayScenesWhole() {
+        List<int[]> drawn = new ArrayList<>();
+        Random random = new Random(7);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int index = 0; index < pixels.length; index++) {
+            int level = 30 + random.nextInt(20);
+            pixels[index] = rgb(level, level, level + 2);
+        }
+        //Dim faces of a night shot, whose chroma the skin test does not trust.
+        for (int face = 0; face < 6; face++) {
+            drawFace(pixels, random, 80 + face * 150, 200, 32, new int[] {150, 140, 135}, drawn);
+        }
+        PrefilteredFaceDetectorEngine engine = new PrefilteredFaceDetectorEngine(
+                new OracleEngine(drawn), CELL_SIZE, MARGIN, MAX_COVERAGE);
+        List<Face> faces = new ArrayList<>();
+        engine.findFaces(new IntArrayPixelBuffer(pixels, WIDTH, HEIGHT), faces);
+        assertEquals(1, engine.getFallbackCount());
+        assertEquals(drawn.size(), findDrawnFaces(faces, drawn).cardinality());
+    }
+
+    /**
+     * @return indices of the drawn faces found, by the face reported at the center of each
+     */
+    private static BitSet findDrawnFaces(List<Face> faces, List<int[]> drawn) {
+        BitSet found = new BitSet();
+        for (Face face : faces) {
+            float centerX = (face.getLeftEyeX() + face.getRightEyeX()) / 2;
+            for (int index = 0; index < drawn.size(); index++) {
+                int[] box = drawn.get(index);
+                if (Math.abs(centerX - (box[0] + box[2] / 2)) < 1
+                        && Math.abs(face.getLeftEyeY() - (box[1] + box[2] / 2)) < 1) {
+                    found.set(index);
+                }
+            }
+        }
+        return found;
+    }
+
+    private static int[] drawScene(String scene, Random random, List<int[]> drawn) {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        int horizon = HEIGHT / 2;
+        if ("outdoor".equals(scene)) {
+            for (int y = 0; y < horizon; y++) {
+                int shade = y * 60 / horizon;
+                fill(pixels, random, 0, y, WIDTH, y + 1, new int[] {90 + shade, 150 + shade, 230},
+                        2);
+            }
+            fill(pixels, random, 0, horizon, WIDTH, HEIGHT, new int[] {90, 120, 70}, 14);
+            fill(pixels, random, 0, HEIGHT * 3 / 4, WIDTH, HEIGHT, new int[] {110, 110, 115}, 10);
+            //Brick houses, whose color is close to skin.
+            for (int x = 20; x < WIDTH; x += 256) {
+                fill(pixels, random, x, horizon - 200, x + 150, horizon,
+                        new int[] {170, 90, 60}, 12);
+            }
+        } else if ("office".equals(scene)) {
+            fill(pixels, random, 0, 0, WIDTH, HEIGHT / 3, new int[] {240, 240, 240}, 3);
+            fill(pixels, random, 0, HEIGHT / 3, WIDTH, HEIGHT * 2 / 3, new int[] {215, 218, 222},
+                    4);
+            fill(pixels, random, 0, HEIGHT * 2 / 3, WIDTH, HEIGHT, new int[] {95, 98, 105}, 12);
+            //Screens and blue chairs.
+            for (int x = 50; x < WIDTH; x += 200) {
+                fill(pixels, random, x, HEIGHT / 3 + 60, x + 120, HEIGHT / 3 + 160,
+                        new int[] {30, 30, 35}, 4);
+                fill(pixels, random, x + 10, horizon + 40, x + 100, HEIGHT * 2 / 3 + 60,
+                        new int[] {30, 50, 120}, 8);
+            }
+        } else {
+            fill(pixels, random, 0, 0, WIDTH, HEIGHT / 3, new int[] {235, 235, 230}, 3);
+            fill(pixels, random, 0, HEIGHT / 3, WIDTH, HEIGHT * 2 / 3, new int[] {225, 205, 175},
+                    4);
+            //Wood floor with its grain.
+            for (int y = HEIGHT * 2 / 3; y < HEIGHT; y++) {
+                int grain = (int) (12 * Math.sin(y * 0.7));
+                fill(pixels, random, 0, y, WIDTH, y + 1,
+                        new int[] {150 + grain, 100 + grain, 60 + grain}, 3);
+            }
+            //Sofa.
+            fill(pixels, random, 300, horizon, 700, HEIGHT * 2 / 3 + 60,
+                    new int[] {120, 40, 40}, 10);
+        }
+
+        //Faces around the horizon, apart from each other and the seam.
+        for (int attempt = 0; attempt < 200 && drawn.size() < 8; attempt++) {
+            int size = FACE_SIZES[random.nextInt(FACE_SIZES.length)];
+            int x = random.nextInt(WIDTH - size);
+            int y = horizon - HEIGHT / 6 + random.nextInt(HEIGHT / 3 - size);
+            boolean free = true;
+            for (int[] box : drawn) {
+                free &= x + size + 8 <= box[0] || box[0] + box[2] + 8 <= x
+                        || y + size + 8 <= box[1] || box[1] + box[2] + 8 <= y;
+            }
+            if (free) {
+                drawFace(pixels, random, x, y, size,
+                        SKIN_TONES[random.nextInt(SKIN_TONES.length)], drawn);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Draw a face of skin with darker eyes and mouth, and its marker at the center.
+     */
+    private static void drawFace(int[] pixels, Random random, int x, int y, int size, int[] skin,
+            List<int[]> drawn) {
+        int unit = size / 8;
+        int[] dark = {skin[0] / 4, skin[1] / 4, skin[2] / 4};
+        fill(pixels, random, x, y, x + size, y + size, skin, 4);
+        fill(pixels, random, x + 2 * unit, y + 3 * unit, x + 3 * unit, y + 4 * unit, dark, 3);
+        fill(pixels, random, x + 5 * unit, y + 3 * unit, x + 6 * unit, y + 4 * unit, dark, 3);
+        fill(pixels, random, x + 3 * unit, y + 6 * unit, x + 5 * unit, y + 7 * unit, dark, 3);
+        pixels[(y + size / 2) * WIDTH + x + size / 2] = MARKER | drawn.size();
+        drawn.add(new int[] {x, y, size});
+    }
+
+    private static void fill(int[] pixels, Random random, int left, int top, int right,
+            int bottom, int[] color, int noise) {
+        for (int y = Math.max(top, 0); y < Math.min(bottom, HEIGHT); y++) {
+            for (int x = Math.max(left, 0); x < Math.min(right, WIDTH); x++) {
+                int grain = random.nextInt(2 * noise + 1) - noise;
+                pixels[y * WIDTH + x] = rgb(color[0] + grain, color[1] + grain, color[2] + grain);
+            }
+        }
+    }
+
+    private static int rgb(int red, int green, int blue) {
+        return 0xFF000000 | clamp(red) << 16 | clamp(green) << 8 | clamp(blue);
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    /**
+     * Detector which finds a drawn face when the face is whole in the image, by its marker.
+     */
+    private static class OracleEngine implements FaceDetectorEngine {
+        private final List<int[]> mDrawn;
+
+        private OracleEngine(List<int[]> drawn) {
+            this.mDrawn = drawn;
+        }
+
+        @Override
+        public void findFaces(@NonNull PixelBuffer image, @NonNull List<Face> faces) {
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                image.getPixels(row, 0, width, 0, y, width, 1);
+                for (int x = 0; x < width; x++) {
+                    if ((row[x] & 0xFFFFFF00) != MARKER || (row[x] & 0xFF) >= mDrawn.size()) {
+                        continue;
+                    }
+                    int half = mDrawn.get(row[x] & 0xFF)[2] / 2;
+                    if (x - half >= 0 && x + half <= width && y - half >= 0
+                            && y + half <= height) {
+                        faces.add(new Face(x - half / 2f, y, x + half / 2f, y, half));
+                    }
+                }
+            }
+        }
+    }
+}
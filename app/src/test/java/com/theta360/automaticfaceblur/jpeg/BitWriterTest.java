@@ -0,0 +1,99 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.jpeg;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Round trips of the entropy coded bits through BitWriter and BitReader.
+ */
+public class BitWriterTest {
+    private static final int EOI = 0xD9;
+
+    @Test
+    public void read_returnsTheWrittenValues() throws Exception {
+        Random random = new Random(1);
+        int[] values = new int[10000];
+        int[] sizes = new int[values.length];
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BitWriter writer = new BitWriter(output);
+        for (int index = 0; index < values.length; index++) {
+            sizes[index] = 1 + random.nextInt(24);
+            //Runs of ones make 0xFF bytes, which must be stuffed with a zero.
+            values[index] = random.nextInt(4) == 0 ? -1 : random.nextInt(1 << sizes[index]);
+            writer.write(values[index], sizes[index]);
+        }
+        writer.writeMarker(EOI);
+
+        BitReader reader = new BitReader(new ByteArrayInputStream(output.toByteArray()));
+        for (int index = 0; index < values.length; index++) {
+            int mask = (1 << sizes[index]) - 1;
+            assertEquals("value " + index, values[index] & mask, reader.read(sizes[index]));
+        }
+        assertEquals(EOI, reader.readMarker());
+    }
+
+    @Test
+    public void receiveExtend_returnsTheWrittenAmplitudes() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BitWriter writer = new BitWriter(output);
+        for (int value = -2047; value <= 2047; value++) {
+            int size = BitWriter.sizeOf(value);
+            writer.write(size, 4);
+            writer.writeAmplitude(value, size);
+        }
+        writer.writeMarker(EOI);
+
+        BitReader reader = new BitReader(new ByteArrayInputStream(output.toByteArray()));
+        for (int value = -2047; value <= 2047; value++) {
+            assertEquals(value, reader.receiveExtend(reader.read(4)));
+        }
+        assertEquals(EOI, reader.readMarker());
+    }
+
+    @Test
+    public void readMarker_findsTheMarkersBetweenSegments() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BitWriter writer = new BitWriter(output);
+        writer.write(0x5, 3);
+        writer.writeMarker(0xD0);
+        writer.write(0xFFF, 12);
+        writer.writeMarker(EOI);
+
+        BitReader reader = new BitReader(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(0x5, reader.read(3));
+        assertEquals(0xD0, reader.readMarker());
+        assertEquals(0xFFF, reader.read(12));
+        //The last byte is padded with ones, and past a marker the data continues with zeros.
+        assertEquals(0xF, reader.read(4));
+        assertEquals(0, reader.read(16));
+        assertEquals(EOI, reader.readMarker());
+    }
+
+    @Test
+    public void sizeOf_countsTheBitsOfTheMagnitude() {
+        assertEquals(0, BitWriter.sizeOf(0));
+        assertEquals(1, BitWriter.sizeOf(-1));
+        assertEquals(2, BitWriter.sizeOf(3));
+        assertEquals(3, BitWriter.sizeOf(-4));
+        assertEquals(11, BitWriter.sizeOf(2047));
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.jpeg;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Encoding and decoding of symbols through a HuffmanTable.
+ */
+public class HuffmanTableTest {
+    //One code of each length from 2 to 15 and two of length 16, so both the lookup table and
+    //the longer codes are used.
+    private static final int[] COUNTS = {0, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 2};
+    private static final int[] VALUES =
+            {0x00, 0x01, 0x11, 0x02, 0x21, 0x03, 0x31, 0x04, 0x41, 0x05, 0x51, 0xF0, 0x06, 0x61,
+                    0x07, 0xFA};
+
+    @Test
+    public void decode_returnsTheEncodedSymbols() throws Exception {
+        HuffmanTable table = new HuffmanTable(COUNTS, VALUES);
+        Random random = new Random(2);
+        int[] symbols = new int[5000];
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BitWriter writer = new BitWriter(output);
+        for (int index = 0; index < symbols.length; index++) {
+            symbols[index] = VALUES[random.nextInt(VALUES.length)];
+            table.encode(writer, symbols[index]);
+        }
+        writer.writeMarker(0xD9);
+
+        BitReader reader = new BitReader(new ByteArrayInputStream(output.toByteArray()));
+        for (int index = 0; index < symbols.length; index++) {
+            assertEquals("symbol " + index, symbols[index], table.decode(reader));
+        }
+        assertEquals(0xD9, reader.readMarker());
+    }
+
+    @Test
+    public void decode_readsTheCanonicalCodes() throws Exception {
+        HuffmanTable table = new HuffmanTable(COUNTS, VALUES);
+        //Codes of lengths 2, 3 and 16: 00, 010 and 0111111111111111.
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BitWriter writer = new BitWriter(output);
+        writer.write(0x0, 2);
+        writer.write(0x2, 3);
+        writer.write(0x7FFF, 16);
+        writer.writeMarker(0xD9);
+
+        BitReader reader = new BitReader(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(0x00, table.decode(reader));
+        assertEquals(0x01, table.decode(reader));
+        assertEquals(0xFA, table.decode(reader));
+    }
+
+    @Test(expected = IOException.class)
+    public void constructor_rejectsTooManyCodes() throws Exception {
+        new HuffmanTable(new int[] {3, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+                new int[] {0, 1, 2});
+    }
+
+    @Test(expected = UnsupportedJpegException.class)
+    public void encode_rejectsSymbolsWithoutCode() throws Exception {
+        HuffmanTable table = new HuffmanTable(COUNTS, VALUES);
+        table.encode(new BitWriter(new ByteArrayOutputStream()), 0x12);
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.jpeg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+/**
+ * Mosaic of JpegMosaic, checked by decoding its files with ImageIO.
+ */
+public class JpegMosaicTest {
+    private static final String JPEG_METADATA = "javax_imageio_jpeg_image_1.0";
+    private static final int WIDTH = 96;
+    private static final int HEIGHT = 72;
+    private static final int GRID = 16;
+
+    @Test
+    public void write_copiesTheFileWithoutBlocks() throws Exception {
+        byte[] gray = encodeGray(0);
+        assertArrayEquals(gray, pixelate(gray, new JpegMosaic(WIDTH, HEIGHT, GRID, null)));
+
+        ByteArrayOutputStream color = new ByteArrayOutputStream();
+        JpegStripEncoder encoder = new JpegStripEncoder(color, WIDTH, HEIGHT, 90);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int index = 0; index < pixels.length; index++) {
+            int level = texture(index % WIDTH, index / WIDTH);
+            pixels[index] = 0xFF000000 | level << 16 | (255 - level) << 8 | level / 2;
+        }
+        encoder.write(pixels, 0, WIDTH, HEIGHT);
+        encoder.finish();
+        assertArrayEquals(color.toByteArray(), pixelate(color.toByteArray(),
+                new JpegMosaic(WIDTH, HEIGHT, GRID, null)));
+    }
+
+    @Test
+    public void write_averagesTheCellsOfTheRegions() throws Exception {
+        checkCells(encodeGray(0));
+    }
+
+    @Test
+    public void write_keepsTheRestartIntervals() throws Exception {
+        //Intervals of 5 MCUs end in the middle of the rows of MCUs and of the rows of the grid.
+        byte[] jpeg = encodeGray(5);
+        assertArrayEquals(jpeg, pixelate(jpeg, new JpegMosaic(WIDTH, HEIGHT, GRID, null)));
+
+        byte[] pixelated = checkCells(jpeg);
+        assertEquals(countRestarts(jpeg), countRestarts(pixelated));
+    }
+
+    @Test
+    public void add_wrapsAroundTheSeam() {
+        JpegMosaic mosaic = new JpegMosaic(WIDTH, HEIGHT, GRID, null);
+        mosaic.add(WIDTH - 4, 0, 8, 4);
+        assertEquals(2, mosaic.getPendingBlockCount());
+        mosaic.add(-4, 4, 8, 4);
+        assertEquals(2, mosaic.getPendingBlockCount());
+    }
+
+    @Test(expected = UnsupportedJpegException.class)
+    public void write_rejectsProgressiveFiles() throws Exception {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(grayImage(), null, null), param);
+        }
+        pixelate(output.toByteArray(), new JpegMosaic(WIDTH, HEIGHT, GRID, null));
+    }
+
+    @Test(expected = IOException.class)
+    public void write_failsOnTruncatedScans() throws Exception {
+        byte[] jpeg = encodeGray(0);
+        pixelate(Arrays.copyOf(jpeg, jpeg.length - 40), new JpegMosaic(WIDTH, HEIGHT, GRID,
+                null));
+    }
+
+    /**
+     * Pixelate a region of a gray file and check that every cell of the grid it covers is flat
+     * with the average of its pixels, while the other pixels are decoded as before.
+     *
+     * @return pixelated file
+     */
+    private static byte[] checkCells(byte[] jpeg) throws IOException {
+        JpegMosaic mosaic = new JpegMosaic(WIDTH, HEIGHT, GRID, null);
+        //Snapped outwards to the cells from (16, 16) to (48, 32).
+        mosaic.add(20, 18, 20, 10);
+        assertEquals(2, mosaic.getPendingBlockCount());
+        byte[] pixelated = pixelate(jpeg, mosaic);
+        assertEquals(0, mosaic.getPendingBlockCount());
+
+        int[] before = decodeGray(jpeg);
+        int[] after = decodeGray(pixelated);
+        for (int cellLeft = 16; cellLeft < 48; cellLeft += GRID) {
+            long sum = 0;
+            for (int y = 16; y < 16 + GRID; y++) {
+                for (int x = cellLeft; x < cellLeft + GRID; x++) {
+                    sum += before[y * WIDTH + x];
+                }
+            }
+            int flat = after[16 * WIDTH + cellLeft];
+            assertEquals("cell at " + cellLeft, sum / (double) (GRID * GRID), flat, 2);
+            for (int y = 16; y < 16 + GRID; y++) {
+                for (int x = cellLeft; x < cellLeft + GRID; x++) {
+                    assertEquals("pixel at " + x + "," + y, flat, after[y * WIDTH + x]);
+                }
+            }
+        }
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                if (y < 16 || y >= 32 || x < 16 || x >= 48) {
+                    assertEquals("pixel at " + x + "," + y, before[y * WIDTH + x],
+                            after[y * WIDTH + x]);
+                }
+            }
+        }
+        return pixelated;
+    }
+
+    private static byte[] pixelate(byte[] jpeg, JpegMosaic mosaic) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        mosaic.write(new ByteArrayInputStream(jpeg), output);
+        return output.toByteArray();
+    }
+
+    private static int texture(int x, int y) {
+        return (x * 7 + y * 13 + x * y % 23 * 5) & 0xFF;
+    }
+
+    private static BufferedImage grayImage() {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.getRaster().setSample(x, y, 0, texture(x, y));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Encode the gray texture with ImageIO, whose encoder is libjpeg.
+     *
+     * @param restartInterval MCUs between two restart markers, or 0 for none
+     */
+    private static byte[] encodeGray(int restartInterval) throws IOException {
+        BufferedImage image = grayImage();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        IIOMetadata metadata =
+                writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+        if (restartInterval > 0) {
+            Element root = (Element) metadata.getAsTree(JPEG_METADATA);
+            Element markers = (Element) root.getElementsByTagName("markerSequence").item(0);
+            IIOMetadataNode restart = new IIOMetadataNode("dri");
+            restart.setAttribute("interval", Integer.toString(restartInterval));
+            markers.insertBefore(restart, markers.getFirstChild());
+            metadata.setFromTree(JPEG_METADATA, root);
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            writer.dispose();
+        }
+        return output.toByteArray();
+    }
+
+    private static int[] decodeGray(byte[] jpeg) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        return image.getRaster().getPixels(0, 0, WIDTH, HEIGHT, (int[]) null);
+    }
+
+    private static int countRestarts(byte[] jpeg) {
+        int count = 0;
+        for (int index = 0; index + 1 < jpeg.length; index++) {
+            int marker = jpeg[index + 1] & 0xFF;
+            if ((jpeg[index] & 0xFF) == 0xFF && marker >= 0xD0 && marker <= 0xD7) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.theta360.automaticfaceblur.jpeg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+/**
+ * Files of JpegStripEncoder, checked by decoding them with ImageIO.
+ */
+public class JpegStripEncoderTest {
+    //Neither side is a multiple of the MCU size, so the last MCUs repeat the edges.
+    private static final int WIDTH = 70;
+    private static final int HEIGHT = 45;
+
+    @Test
+    public void write_decodesBackToTheImage() throws Exception {
+        int[] pixels = image();
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(encode(pixels, 16)));
+        assertEquals(WIDTH, decoded.getWidth());
+        assertEquals(HEIGHT, decoded.getHeight());
+        long error = 0;
+        int maxError = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int expected = pixels[y * WIDTH + x];
+                int actual = decoded.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int difference =
+                            Math.abs((expected >> shift & 0xFF) - (actual >> shift & 0xFF));
+                    error += difference;
+                    maxError = Math.max(maxError, difference);
+                }
+            }
+        }
+        assertTrue("mean error " + error / (3.0 * WIDTH * HEIGHT),
+                error <= 3L * WIDTH * HEIGHT);
+        assertTrue("max error " + maxError, maxError <= 16);
+    }
+
+    @Test
+    public void write_givesTheSameFileForAnyStrips() throws Exception {
+        int[] pixels = image();
+        byte[] whole = encode(pixels, HEIGHT);
+        assertArrayEquals(whole, encode(pixels, 16));
+        assertArrayEquals(whole, encode(pixels, 32));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void write_rejectsStripsOfPartialMcus() throws Exception {
+        new JpegStripEncoder(new ByteArrayOutputStream(), WIDTH, HEIGHT, 90)
+                .write(image(), 0, WIDTH, 10);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void finish_rejectsMissingRows() throws Exception {
+        JpegStripEncoder encoder =
+                new JpegStripEncoder(new ByteArrayOutputStream(), WIDTH, HEIGHT, 90);
+        encoder.write(image(), 0, WIDTH, 32);
+        encoder.finish();
+    }
+
+    /**
+     * @return smooth gradients in each channel, which the encoder keeps at full quality
+     */
+    private static int[] image() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int red = x * 255 / (WIDTH - 1);
+                int green = y * 255 / (HEIGHT - 1);
+                int blue = (x + y) * 255 / (WIDTH + HEIGHT - 2);
+                pixels[y * WIDTH + x] = 0xFF000000 | red << 16 | green << 8 | blue;
+            }
+        }
+        return pixels;
+    }
+
+    private static byte[] encode(int[] pixels, int stripRows) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        JpegStripEncoder encoder = new JpegStripEncoder(output, WIDTH, HEIGHT, 100);
+        for (int top = 0; top < HEIGHT; top += stripRows) {
+            encoder.write(pixels, top * WIDTH, WIDTH, Math.min(stripRows, HEIGHT - top));
+        }
+        encoder.finish();
+        return output.toByteArray();
+    }
+}